@@ -0,0 +1,47 @@
+package BatchUpdate;
+
+import Bench.Bench;
+import Database.UserData;
+import Database.UserDataCodec;
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import java.lang.reflect.Type;
+import java.util.Map;
+
+/**
+ * Decoding cost of a queue message: the delta itself plus the version of the
+ * stored document it is checked against. Compares building a Gson and a
+ * HashMap per message, as callback_function used to, with the streaming
+ * Delta and UserDataCodec.readVersion.
+ *
+ * @author Rob Fusco
+ */
+public class DeltaBench {
+
+    private static final String delta = "{\"old_job_title\": \"Executive Producer\", "
+            + "\"new_job_title\": \"Paycheck Collecter\", \"version\": 10}";
+    private static final String document = "{\"name\":\"Jane\",\"job_title\":\"Executive Producer\","
+            + "\"industry\":\"Trampoline Robotics\",\"version\":\"9\"}";
+
+    public static void main(String[] args) throws Exception {
+        Bench.measure("delta: Gson map per message", i -> {
+            Type keyValueSet = new TypeToken<Map<String, String>>() {
+            }.getType();
+            Map<String, String> deltaSet = new Gson().fromJson(delta, keyValueSet);
+            return deltaSet.size();
+        });
+
+        Delta reused = new Delta();
+        Bench.measure("delta: streaming reused Delta", i -> {
+            return reused.read(delta).getVersion();
+        });
+
+        Bench.measure("version: Gson UserData", i -> {
+            return new Gson().fromJson(document, UserData.class).getVersion();
+        });
+
+        Bench.measure("version: UserDataCodec.readVersion", i -> {
+            return UserDataCodec.readVersion(document);
+        });
+    }
+}
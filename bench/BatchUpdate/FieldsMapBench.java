@@ -0,0 +1,133 @@
+package BatchUpdate;
+
+import Bench.Bench;
+import Bench.Dataset;
+import Database.DatabaseMock;
+import Database.UserData.FieldType;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Fields map work on a synthetic dataset, see Dataset: building the fields
+ * map in place, in parallel and by bulk load, looking up the users of a job
+ * title, applying queue messages, and change_job_title end to end, i.e. the
+ * DB writes followed by the queue messages they cause being applied to the
+ * fields map.
+ *
+ * Lookups and changes are run for job titles of a few Zipf ranks, rank 0
+ * being the one most users have.
+ *
+ * @author Rob Fusco
+ */
+public class FieldsMapBench {
+
+    // Job title users are moved to and back from
+    private static final String benchJob = "Bench Job";
+
+    // Held so the level sticks, the parallel rebuild and the bulk load log
+    // every run at INFO
+    private static final Logger log = Logger.getLogger(BatchUpdate.class.getName());
+
+    public static void main(String[] args) throws Exception {
+        log.setLevel(Level.WARNING);
+        Dataset dataset = Dataset.fromProperties();
+        DatabaseMock db = dataset.create("BenchDB");
+        try {
+            Bench.measure("prePopulateFieldsMap", i -> {
+                BatchUpdate.prePopulateFieldsMap(db);
+                return i;
+            });
+
+            int threads = Runtime.getRuntime().availableProcessors();
+            Bench.measure("prePopulateFieldsMap: " + threads + " threads", i -> {
+                return BatchUpdate.prePopulateFieldsMap(db, threads).getRows();
+            });
+
+            Bench.measure("bulkLoadFieldsMap", i -> {
+                return BatchUpdate.bulkLoadFieldsMap(db).getRows();
+            });
+
+            // Held like a running subscriber would, the cache is cleared when
+            // the last handle closes
+            FieldsMapStore store = FieldsMapStore.open(db);
+            try {
+                for (int rank : new int[]{0, 10, 100}) {
+                    String job = dataset.jobTitle(rank);
+                    Set<Integer> matches = BatchUpdate.findMatches(db, job, FieldType.job_title);
+                    Bench.measure("findMatches: rank " + rank + " (" + size(matches) + " users)", i -> {
+                        return size(BatchUpdate.findMatches(db, job, FieldType.job_title));
+                    });
+                }
+            } finally {
+                store.close();
+            }
+
+            callbackFunction(db, dataset.jobTitle(1));
+
+            for (int rank : new int[]{10, 100}) {
+                changeJobTitle(db, dataset.jobTitle(rank));
+            }
+        } finally {
+            db.close();
+        }
+    }
+
+    /**
+     * One queue message per operation, moving users of job between job and
+     * benchJob and back.
+     */
+    private static void callbackFunction(DatabaseMock db, String job) throws Exception {
+        List<Integer> users = new ArrayList<>(BatchUpdate.findMatches(db, job, FieldType.job_title));
+        int n = Math.min(users.size(), 1024);
+        String forward = delta(job, benchJob, 1);
+        String back = delta(benchJob, job, 1);
+
+        BatchUpdate.UpdateFieldMap callback = new BatchUpdate.UpdateFieldMap(db, CommitPolicy.DEFAULT);
+        try {
+            Bench.measure("callback_function: job title", i -> {
+                int u = (i >>> 1) % n;
+                callback.callback_function(users.get(u), (i & 1) == 0 ? forward : back);
+                return u;
+            });
+        } finally {
+            callback.close();
+        }
+    }
+
+    /**
+     * One change_job_title per operation, alternately from job to benchJob
+     * and back, waiting for the writes and applying the resulting messages.
+     */
+    private static void changeJobTitle(DatabaseMock db, String job) throws Exception {
+        int users = size(BatchUpdate.findMatches(db, job, FieldType.job_title));
+        BatchUpdate.UpdateFieldMap callback = new BatchUpdate.UpdateFieldMap(db, CommitPolicy.DEFAULT);
+        try {
+            Bench.measure("change_job_title: " + job + " (" + users + " users)", i -> {
+                String from = (i & 1) == 0 ? job : benchJob;
+                String to = (i & 1) == 0 ? benchJob : job;
+                Set<Integer> moved = BatchUpdate.findMatches(db, from, FieldType.job_title);
+                BatchUpdate.change_job_title(db, from, to).await();
+                // The DB does not bump versions on change, send none
+                String delta = delta(from, to, -1);
+                for (int user_id : moved) {
+                    callback.callback_function(user_id, delta);
+                }
+                return moved.size();
+            });
+        } finally {
+            callback.close();
+        }
+    }
+
+    private static String delta(String from, String to, long version) {
+        return "{\"old_job_title\": \"" + from + "\", \"new_job_title\": \"" + to + "\""
+                + (version < 0 ? "" : ", \"version\": " + version) + "}";
+    }
+
+    private static int size(Set<Integer> user_ids) {
+        return user_ids == null ? 0 : user_ids.size();
+    }
+}
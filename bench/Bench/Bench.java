@@ -0,0 +1,219 @@
+package Bench;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+
+/**
+ * A small micro benchmark harness, run through the bench target of
+ * build.xml.
+ *
+ * measure runs an operation in a loop on the calling thread, first for a
+ * warm up period so the JIT has compiled it, then for a measured period, and
+ * reports throughput, average latency and bytes allocated per operation. The
+ * allocation figure comes from the HotSpot per-thread allocation counter and
+ * is -1 on JVMs that do not have one.
+ *
+ * Fast operations are run in batches between clock reads, the batch grows
+ * until a batch takes about 100us, so slow operations, like a whole fields map
+ * rebuild, are timed one by one. Some operations are also timed on their own
+ * for the latency percentiles: every SAMPLE_EVERY-th, or every one while
+ * batches are smaller than that, up to MAX_SAMPLES.
+ *
+ * The periods default to the bench.warmupMillis and bench.measureMillis
+ * system properties. With bench.out set every result is also appended to that
+ * file as a CSV line, to compare runs.
+ *
+ * @author Rob Fusco
+ */
+public final class Bench {
+
+    public static final long DEFAULT_WARMUP_MILLIS = Long.getLong("bench.warmupMillis", 2000);
+    public static final long DEFAULT_MEASURE_MILLIS = Long.getLong("bench.measureMillis", 5000);
+
+    public static final int SAMPLE_EVERY = 16;
+    public static final int MAX_SAMPLES = 1 << 16;
+
+    // Most operations run between clock reads
+    private static final int MAX_BATCH = 256;
+    // Batches grow until they take this long
+    private static final long BATCH_NANOS = 100000;
+
+    // Results are folded in here so the JIT can not drop the work
+    private static volatile long sink;
+
+    private Bench() {
+    }
+
+    /**
+     * One benchmark operation.
+     */
+    public interface Op {
+
+        /**
+         * @param i number of the invocation
+         * @return any value derived from the work, it is consumed so the work
+         * can not be optimized away
+         * @throws Exception
+         */
+        long run(int i) throws Exception;
+    }
+
+    public static Result measure(String name, Op op) throws Exception {
+        return measure(name, DEFAULT_WARMUP_MILLIS, DEFAULT_MEASURE_MILLIS, op);
+    }
+
+    public static Result measure(String name, long warmupMillis, long measureMillis, Op op) throws Exception {
+        loop(op, warmupMillis, null);
+
+        // Allocated up front so it does not count as allocated by op
+        long[] samples = new long[MAX_SAMPLES];
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        long[] counts = loop(op, measureMillis, samples);
+        long nanos = System.nanoTime() - start;
+        long allocatedAfter = allocatedBytes();
+
+        long bytes = allocatedBefore < 0 ? -1 : allocatedAfter - allocatedBefore;
+        Arrays.sort(samples, 0, (int) counts[1]);
+        Result result = new Result(name, counts[0], nanos, bytes, Arrays.copyOf(samples, (int) counts[1]));
+        System.out.println(result);
+        report(result);
+        return result;
+    }
+
+    /**
+     * @return operations run and latency samples taken
+     */
+    private static long[] loop(Op op, long millis, long[] samples) throws Exception {
+        long now = System.nanoTime();
+        long deadline = now + millis * 1000000L;
+        long acc = 0;
+        int i = 0;
+        int sampled = 0;
+        int batch = 1;
+        do {
+            long batchStart = now;
+            boolean sampleAll = batch < SAMPLE_EVERY;
+            for (int n = 0; n < batch; n++, i++) {
+                if (samples != null && sampled < samples.length && (sampleAll || i % SAMPLE_EVERY == 0)) {
+                    long opStart = System.nanoTime();
+                    acc += op.run(i);
+                    samples[sampled++] = System.nanoTime() - opStart;
+                } else {
+                    acc += op.run(i);
+                }
+            }
+            now = System.nanoTime();
+            if (batch < MAX_BATCH && now - batchStart < BATCH_NANOS) {
+                batch *= 2;
+            }
+        } while (now < deadline);
+        sink += acc;
+        return new long[]{i, sampled};
+    }
+
+    private static void report(Result result) {
+        String out = System.getProperty("bench.out");
+        if (out == null) {
+            return;
+        }
+        boolean header = !new File(out).exists();
+        try (PrintWriter writer = new PrintWriter(new FileWriter(out, true))) {
+            if (header) {
+                writer.println("name,ops,ops_per_s,ns_per_op,p50_ns,p99_ns,p999_ns,bytes_per_op");
+            }
+            writer.printf("\"%s\",%d,%.1f,%.1f,%d,%d,%d,%.1f%n", result.getName(), result.getOps(),
+                    result.getOpsPerSecond(), result.getNanosPerOp(), result.getPercentileNanos(50),
+                    result.getPercentileNanos(99), result.getPercentileNanos(99.9), result.getBytesPerOp());
+        } catch (IOException ex) {
+            System.err.println("Could not write " + out + ": " + ex);
+        }
+    }
+
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) threads;
+            if (hotspot.isThreadAllocatedMemorySupported() && hotspot.isThreadAllocatedMemoryEnabled()) {
+                return hotspot.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * What one benchmark measured.
+     */
+    public static class Result {
+
+        private final String name;
+        private final long ops;
+        private final long nanos;
+        private final long bytes;
+        // Sorted latencies of the timed operations
+        private final long[] samples;
+
+        Result(String name, long ops, long nanos, long bytes, long[] samples) {
+            this.name = name;
+            this.ops = ops;
+            this.nanos = nanos;
+            this.bytes = bytes;
+            this.samples = samples;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getOps() {
+            return ops;
+        }
+
+        public double getOpsPerSecond() {
+            return ops * 1e9 / nanos;
+        }
+
+        public double getNanosPerOp() {
+            return (double) nanos / ops;
+        }
+
+        /**
+         * @return bytes allocated per operation, -1 if unknown
+         */
+        public double getBytesPerOp() {
+            return bytes < 0 ? -1 : (double) bytes / ops;
+        }
+
+        /**
+         * @return bytes allocated per second, -1 if unknown
+         */
+        public double getBytesPerSecond() {
+            return bytes < 0 ? -1 : bytes * 1e9 / nanos;
+        }
+
+        /**
+         * @param percentile e.g. 99 for the 99th percentile
+         * @return latency of one operation at percentile, -1 if none were
+         * timed
+         */
+        public long getPercentileNanos(double percentile) {
+            if (samples.length == 0) {
+                return -1;
+            }
+            int index = (int) Math.ceil(percentile / 100 * samples.length) - 1;
+            return samples[Math.max(0, Math.min(samples.length - 1, index))];
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-44s %14.1f ops/s %12.1f ns/op  p50 %10d  p99 %10d  p99.9 %10d ns %10.1f B/op %8.1f MB/s",
+                    name, getOpsPerSecond(), getNanosPerOp(), getPercentileNanos(50), getPercentileNanos(99),
+                    getPercentileNanos(99.9), getBytesPerOp(), getBytesPerSecond() / 1e6);
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package Bench;
+
+import Database.DatabaseMock;
+import Database.UserData;
+import Database.UserDataCodec;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Synthetic users for benchmarks: user_ids 0 to users - 1, with job titles
+ * and industries drawn from a Zipf distribution, so a few values are shared
+ * by many users and most by few, like real job titles. skew is the Zipf
+ * exponent, 0 spreads users evenly.
+ *
+ * Sizes come from the bench.users, bench.skew, bench.jobTitles,
+ * bench.industries and bench.seed system properties, see fromProperties. The
+ * same settings always give the same users. DBs are created in the storage
+ * format named by bench.format, JSON by default.
+ *
+ * @author Rob Fusco
+ */
+public final class Dataset {
+
+    public static final int DEFAULT_USERS = 100000;
+    public static final double DEFAULT_SKEW = 1.0;
+    public static final int DEFAULT_JOB_TITLES = 1000;
+    public static final int DEFAULT_INDUSTRIES = 100;
+    public static final long DEFAULT_SEED = 42;
+
+    // Users written per DB transaction
+    private static final int CHUNK = 10000;
+
+    private final int users;
+    private final double skew;
+    private final int jobTitles;
+    private final int industries;
+    private final long seed;
+
+    public Dataset(int users, double skew, int jobTitles, int industries, long seed) {
+        this.users = users;
+        this.skew = skew;
+        this.jobTitles = jobTitles;
+        this.industries = industries;
+        this.seed = seed;
+    }
+
+    /**
+     * @return the dataset the system properties describe, the defaults for
+     * those not set
+     */
+    public static Dataset fromProperties() {
+        return new Dataset(
+                Integer.getInteger("bench.users", DEFAULT_USERS),
+                Double.parseDouble(System.getProperty("bench.skew", Double.toString(DEFAULT_SKEW))),
+                Integer.getInteger("bench.jobTitles", DEFAULT_JOB_TITLES),
+                Integer.getInteger("bench.industries", DEFAULT_INDUSTRIES),
+                Long.getLong("bench.seed", DEFAULT_SEED));
+    }
+
+    /**
+     * Creates a DB called name in the working directory holding the users of
+     * this dataset, replacing any DB, fields map and dead letters of that
+     * name.
+     *
+     * @param name
+     * @return the open DB
+     * @throws IOException
+     * @throws TimeoutException
+     */
+    public DatabaseMock create(String name) throws IOException, TimeoutException {
+        return create(name, DatabaseMock.StorageFormat.valueOf(System.getProperty("bench.format", "JSON")));
+    }
+
+    /**
+     * Same as create(name), storing rows in format.
+     *
+     * @param name
+     * @param format
+     * @return the open DB
+     * @throws IOException
+     * @throws TimeoutException
+     */
+    public DatabaseMock create(String name, DatabaseMock.StorageFormat format) throws IOException, TimeoutException {
+        delete(name);
+        delete("FieldsMap4" + name);
+        delete("DeadLetters4" + name);
+
+        long start = System.nanoTime();
+        DatabaseMock db = new DatabaseMock(name, format);
+        Random random = new Random(seed);
+        Zipf titles = new Zipf(jobTitles, skew);
+        Zipf industryRanks = new Zipf(industries, skew);
+        Map<Integer, String> documents = new HashMap<>();
+        for (int user_id = 0; user_id < users; user_id++) {
+            UserData user_data = new UserData("User " + user_id,
+                    jobTitle(titles.next(random)), industry(industryRanks.next(random)));
+            documents.put(user_id, UserDataCodec.encode(user_data));
+            if (documents.size() == CHUNK || user_id == users - 1) {
+                db.updateBatch(documents);
+                documents.clear();
+            }
+        }
+        System.out.println(String.format("Created %s as %s in %.1fs", this, format, (System.nanoTime() - start) / 1e9));
+        return db;
+    }
+
+    /**
+     * @param rank 0 for the most common job title
+     * @return the job title of that rank
+     */
+    public String jobTitle(int rank) {
+        return "Job " + rank;
+    }
+
+    /**
+     * @param rank 0 for the most common industry
+     * @return the industry of that rank
+     */
+    public String industry(int rank) {
+        return "Industry " + rank;
+    }
+
+    public int getUsers() {
+        return users;
+    }
+
+    public double getSkew() {
+        return skew;
+    }
+
+    public int getJobTitles() {
+        return jobTitles;
+    }
+
+    public int getIndustries() {
+        return industries;
+    }
+
+    @Override
+    public String toString() {
+        return "Dataset{users=" + users + ", skew=" + skew + ", jobTitles=" + jobTitles
+                + ", industries=" + industries + ", seed=" + seed + "}";
+    }
+
+    private static void delete(String name) {
+        File[] files = new File(".").listFiles((dir, file) -> file.startsWith(name + "."));
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Draws ranks 0 to n - 1, rank k with a probability proportional to
+     * 1 / (k + 1)^skew.
+     */
+    public static final class Zipf {
+
+        private final double[] cumulative;
+
+        public Zipf(int n, double skew) {
+            if (n < 1) {
+                throw new IllegalArgumentException("n must be positive");
+            }
+            cumulative = new double[n];
+            double sum = 0;
+            for (int k = 0; k < n; k++) {
+                sum += 1 / Math.pow(k + 1, skew);
+                cumulative[k] = sum;
+            }
+            for (int k = 0; k < n; k++) {
+                cumulative[k] /= sum;
+            }
+        }
+
+        public int next(Random random) {
+            double u = random.nextDouble();
+            int lo = 0;
+            int hi = cumulative.length - 1;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (cumulative[mid] < u) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+    }
+}
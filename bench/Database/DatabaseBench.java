@@ -0,0 +1,74 @@
+package Database;
+
+import Bench.Bench;
+import Bench.Dataset;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * DB access on a synthetic dataset, see Dataset: scanning, reading random
+ * users as JSON and decoded, reading only their version, and writing
+ * documents back. Run with -Dbench.format=BINARY to compare storage formats.
+ *
+ * @author Rob Fusco
+ */
+public class DatabaseBench {
+
+    // Random user_ids are drawn up front, the draw is not what is measured
+    private static final int IDS = 1 << 16;
+
+    public static void main(String[] args) throws Exception {
+        Dataset dataset = Dataset.fromProperties();
+        DatabaseMock db = dataset.create("BenchDB");
+        try {
+            int[] ids = new int[IDS];
+            Random random = new Random(1);
+            for (int i = 0; i < IDS; i++) {
+                ids[i] = random.nextInt(dataset.getUsers());
+            }
+
+            AtomicReference<Iterator<Map.Entry<Integer, String>>> scan = new AtomicReference<>(db.scan(0));
+            Bench.measure("scan: per row", i -> {
+                if (!scan.get().hasNext()) {
+                    scan.set(db.scan(0));
+                }
+                return scan.get().next().getKey();
+            });
+
+            AtomicReference<Iterator<Map.Entry<Integer, UserData>>> scanUserData = new AtomicReference<>(db.scanUserData(0, null, DatabaseMock.DEFAULT_SCAN_PAGE_SIZE));
+            Bench.measure("scanUserData: per row", i -> {
+                if (!scanUserData.get().hasNext()) {
+                    scanUserData.set(db.scanUserData(0, null, DatabaseMock.DEFAULT_SCAN_PAGE_SIZE));
+                }
+                return scanUserData.get().next().getValue().getVersion();
+            });
+
+            Bench.measure("read: random user", i -> {
+                return db.read(ids[i & (IDS - 1)]).length();
+            });
+
+            Bench.measure("readUserData: random user", i -> {
+                return db.readUserData(ids[i & (IDS - 1)]).getVersion();
+            });
+
+            Bench.measure("readVersion: random user", i -> {
+                return db.readVersion(ids[i & (IDS - 1)]);
+            });
+
+            // Rewrites a fixed set of documents, update does not commit and
+            // a growing transaction would end up being measured instead
+            String[] documents = new String[1024];
+            for (int i = 0; i < documents.length; i++) {
+                documents[i] = db.read(ids[i]);
+            }
+            Bench.measure("update: 1024 users", i -> {
+                int n = i & (documents.length - 1);
+                return db.update(ids[n], documents[n]);
+            });
+        } finally {
+            db.close();
+        }
+    }
+}
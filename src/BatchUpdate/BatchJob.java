@@ -0,0 +1,188 @@
+package BatchUpdate;
+
+import Database.UserData.FieldType;
+
+/**
+ * A batch field change (e.g. renaming a job_title for every user that has
+ * it) as recorded in the JobJournal of its DB: what it changes, how many
+ * users it started with and how far it got.
+ *
+ * @author Rob Fusco
+ */
+public class BatchJob {
+
+    public enum Status {
+        // Running, or was running when the process stopped
+        RUNNING,
+        // Every user was written or dead-lettered
+        DONE,
+        // The last run ended with users left to write, resumeJobs runs them
+        FAILED
+    }
+
+    private final long id;
+    private final FieldType field;
+    private final String old_value;
+    private final String new_value;
+    private final int total_users;
+    private final long created_at;
+    private Status status = Status.RUNNING;
+    private int done_users = 0;
+    private int dead_lettered_users = 0;
+    private int failed_users = 0;
+    private int runs = 0;
+    private long run_started_at;
+    private int run_started_users;
+    private long updated_at;
+    private long finished_at = 0;
+
+    BatchJob(long id, FieldType field, String old_value, String new_value, int total_users, long created_at) {
+        this.id = id;
+        this.field = field;
+        this.old_value = old_value;
+        this.new_value = new_value;
+        this.total_users = total_users;
+        this.created_at = created_at;
+        this.updated_at = created_at;
+    }
+
+    void started(long now) {
+        status = Status.RUNNING;
+        runs++;
+        failed_users = 0;
+        run_started_at = now;
+        run_started_users = done_users + dead_lettered_users;
+        updated_at = now;
+        finished_at = 0;
+    }
+
+    void chunkDone(int users, long now) {
+        done_users += users;
+        updated_at = now;
+    }
+
+    void chunkDeadLettered(int users, long now) {
+        dead_lettered_users += users;
+        updated_at = now;
+    }
+
+    void chunkFailed(int users, long now) {
+        failed_users += users;
+        updated_at = now;
+    }
+
+    void finished(boolean complete, long now) {
+        status = complete ? Status.DONE : Status.FAILED;
+        updated_at = now;
+        finished_at = now;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public FieldType getField() {
+        return field;
+    }
+
+    public String getOldValue() {
+        return old_value;
+    }
+
+    public String getNewValue() {
+        return new_value;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * @return users the job was started with
+     */
+    public int getTotalUsers() {
+        return total_users;
+    }
+
+    /**
+     * @return users written, across runs
+     */
+    public int getDoneUsers() {
+        return done_users;
+    }
+
+    /**
+     * @return users whose write gave up and went to the DeadLetterStore
+     */
+    public int getDeadLetteredUsers() {
+        return dead_lettered_users;
+    }
+
+    /**
+     * @return users of the last run that failed and are left to write
+     */
+    public int getFailedUsers() {
+        return failed_users;
+    }
+
+    /**
+     * @return users neither written nor dead-lettered yet
+     */
+    public int getRemainingUsers() {
+        return total_users - done_users - dead_lettered_users;
+    }
+
+    /**
+     * @return times the job was started, 1 plus the times it was resumed
+     */
+    public int getRuns() {
+        return runs;
+    }
+
+    public long getCreatedAt() {
+        return created_at;
+    }
+
+    /**
+     * @return when the last checkpoint was written
+     */
+    public long getUpdatedAt() {
+        return updated_at;
+    }
+
+    /**
+     * @return when the last run ended, 0 if it has not
+     */
+    public long getFinishedAt() {
+        return finished_at;
+    }
+
+    /**
+     * @return users written or dead-lettered per second by the current or last
+     * run
+     */
+    public double getUsersPerSecond() {
+        long end = finished_at != 0 ? finished_at : updated_at;
+        long millis = end - run_started_at;
+        int users = done_users + dead_lettered_users - run_started_users;
+        return millis <= 0 ? 0 : users * 1000.0 / millis;
+    }
+
+    /**
+     * @return estimated millis until the remaining users are written at the
+     * current rate, 0 once none are left, -1 if there is no rate yet
+     */
+    public long getEtaMillis() {
+        if (getRemainingUsers() == 0) {
+            return 0;
+        }
+        double rate = getUsersPerSecond();
+        return rate == 0 ? -1 : (long) (getRemainingUsers() * 1000 / rate);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("job %d %s %s -> %s: %s, %d of %d users done, %d dead-lettered, %.0f users/s",
+                id, field, old_value, new_value, status, done_users, total_users, dead_lettered_users, getUsersPerSecond());
+    }
+}
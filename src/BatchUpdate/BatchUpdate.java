@@ -3,13 +3,22 @@ package BatchUpdate;
 import Database.DatabaseMock;
 import Database.UserData;
 import Database.UserData.FieldType;
+import Database.UserDataCodec;
+import Database.VersionConflictException;
 import MessageQueue.MessageQueueMock;
+import MessageQueue.MessageQueueMock.BatchCallBack;
 import MessageQueue.MessageQueueMock.CallBack;
-import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
+import MessageQueue.MessageQueueMock.Update;
+import Metrics.PipelineMetrics;
 import java.io.IOException;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.TimeoutException;
@@ -17,20 +26,34 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 import jdbm.PrimaryTreeMap;
 import jdbm.RecordManager;
-import jdbm.RecordManagerFactory;
-import java.lang.reflect.Type;
 
 /**
  *
  * @author Rob Fusco
  */
 public class BatchUpdate {
-    // Tables in the fields map DB that represent job_title or industry to user_id mapping.
+    // Tables in the fields map DB that represent job_title or industry to user_id mapping,
+    // see FieldIndex for the indexes built from them.
     // Each table (or PrimaryTreeMap) is a fields map. A fields map is simply a persisted hash map
     // where the key is the value of job_title or industry and the value is 
-    // a unique set of user_ids
-    public static final String jobTitleMap = "jobTitle";
-    public static final String industryMap = "industryTitle";
+    // a unique set of user_ids, stored as a PostingList.
+    // The names changed along with the value format, FieldsMapStore migrates
+    // tables written by older versions when it opens the fields map.
+    public static final String jobTitleMap = "jobTitlePostings";
+    public static final String industryMap = "industryPostings";
+
+    /**
+     * Opens a fields map table with the serializer its values are stored with.
+     * Always open fields map tables through here, JDBM does not remember the
+     * serializer of a table.
+     *
+     * @param recMan the fields map DB
+     * @param name jobTitleMap or industryMap
+     * @return
+     */
+    public static PrimaryTreeMap<String, PostingList> fieldsMapTree(RecordManager recMan, String name) {
+        return recMan.treeMap(name, PostingListSerializer.INSTANCE);
+    }
 
     /**
      * Builds a DB that represents a fields map.
@@ -50,65 +73,105 @@ public class BatchUpdate {
      * @throws IOException 
      */
     public static void prePopulateFieldsMap(DatabaseMock db) throws IOException {
-        Gson gson = new Gson();
-        RecordManager recMan = RecordManagerFactory.createRecordManager(getFieldsMapName(db));
-        PrimaryTreeMap<String, Set<Integer>> jobTitlesTree = recMan.treeMap(jobTitleMap);
-        PrimaryTreeMap<String, Set<Integer>> industriesTree = recMan.treeMap(industryMap);
-
-        Iterator<Map.Entry<Integer, String>> iter = db.scan(0);
-        while (iter.hasNext()) {
-            Map.Entry<Integer, String> entry = iter.next();
-            int user_id = entry.getKey();
-            String json_data = entry.getValue();
-            if (json_data != null) {
-                UserData user_data = gson.fromJson(json_data, UserData.class);
-                addToFieldsMap(jobTitlesTree, user_data.getJobTitle(), user_id);
-                addToFieldsMap(industriesTree, user_data.getIndustry(), user_id);
-                recMan.commit();
+        prePopulateFieldsMap(db, CommitPolicy.DEFAULT);
+    }
+
+    /**
+     * Same as prePopulateFieldsMap(DatabaseMock db), committing the fields map
+     * as often as policy says instead of after every user.
+     *
+     * @param db
+     * @param policy
+     * @throws IOException
+     */
+    public static void prePopulateFieldsMap(DatabaseMock db, CommitPolicy policy) throws IOException {
+        try (FieldsMapStore store = FieldsMapStore.open(db);
+                GroupCommitter committer = new GroupCommitter(policy, store)) {
+            Iterator<Map.Entry<Integer, UserData>> iter = db.scanUserData(Integer.MIN_VALUE, null, DatabaseMock.DEFAULT_SCAN_PAGE_SIZE);
+            while (iter.hasNext()) {
+                Map.Entry<Integer, UserData> entry = iter.next();
+                int user_id = entry.getKey();
+                UserData user_data = entry.getValue();
+                if (user_data != null) {
+                    committer.mutate(() -> {
+                        int mutations = 0;
+                        for (FieldIndex index : FieldIndex.all()) {
+                            String key = index.extract(user_data);
+                            if (key != null) {
+                                store.add(index.getTable(), key, user_id);
+                                mutations++;
+                            }
+                        }
+                        return mutations;
+                    });
+                }
             }
         }
-        recMan.close();
     }
 
     /**
-     * Write a single user_id to a table (defined by PrimaryTreeMap<String, Set<Integer>> tree)
-     * into the fields map for either a job_title or industry.
-     * 
-     * If tables exist for name or other fields that have yet to be defined this method
-     * should still work as long as the right PrimaryTreeMap<String, Set<Integer>>
-     * is provided.
-     * 
-     * @param tree
-     * @param value
-     * @param user_id 
+     * Parallel version of prePopulateFieldsMap(DatabaseMock db) for large DBs.
+     * The user_id key space is split into ranges that are scanned, parsed and
+     * aggregated in memory on their own thread, the partial results are merged
+     * and each fields map key is then written once.
+     *
+     * Same guarantees as prePopulateFieldsMap(DatabaseMock db), but the
+     * postings of every key are held in memory until they are written.
+     *
+     * @param db
+     * @param threads number of threads scanning the DB, usually one per core
+     * @return rows read and rows per second
+     * @throws IOException
      */
-    private static void addToFieldsMap(PrimaryTreeMap<String, Set<Integer>> tree, String value, int user_id) {
-        Set<Integer> user_ids = tree.get(value);
-        if (user_ids == null) {
-            Set<Integer> new_user_ids = new HashSet<>();
-            new_user_ids.add(user_id);
-            tree.put(value, new_user_ids);
-        } else {
-            user_ids.add(user_id);
-            tree.put(value, user_ids);
-        }
+    public static RebuildStats prePopulateFieldsMap(DatabaseMock db, int threads) throws IOException {
+        RebuildStats stats = ParallelFieldsMapBuilder.build(db, threads);
+        Logger.getLogger(BatchUpdate.class.getName()).log(Level.INFO, "Rebuilt fields map {0}: {1}",
+                new Object[]{getFieldsMapName(db), stats});
+        return stats;
     }
 
     /**
-     * Removes a user_id for the value from the fields map based on PrimaryTreeMap<String, Set<Integer>> tree
-     * Used when the user document has been updated and the fields map needs to 
-     * be updated to reflect the document change.
-     * 
-     * @param tree
-     * @param value
-     * @param user_id 
+     * Rebuilds the fields map of a DB whose postings do not fit in memory,
+     * with the default buffer of ExternalFieldsMapBuilder.
+     *
+     * @param db
+     * @return rows read and rows per second, partitions being the sorted runs
+     * spilled to disk
+     * @throws IOException
+     * @see #bulkLoadFieldsMap(DatabaseMock, int)
      */
-    private static void removeFromFieldsMap(PrimaryTreeMap<String, Set<Integer>> tree, String value, int user_id) {
-        Set<Integer> user_ids = tree.get(value);
-        if (user_ids != null) {
-            user_ids.remove(user_id);
-            tree.put(value, user_ids);
-        }
+    public static RebuildStats bulkLoadFieldsMap(DatabaseMock db) throws IOException {
+        return bulkLoadFieldsMap(db, ExternalFieldsMapBuilder.DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * External sort version of prePopulateFieldsMap(DatabaseMock db) for DBs
+     * too large to aggregate in memory. Entries are buffered, spilled to
+     * sorted runs in a temporary directory once maxEntries of them are held,
+     * and the runs are merged into fresh fields map tables, each key being
+     * written once in key order. The fresh tables then replace the old ones
+     * in a single commit.
+     *
+     * Memory is bounded by maxEntries except for the key being written, whose
+     * whole posting list is held while it is merged from the runs: a few
+     * bytes per user that has the most common value of a field.
+     *
+     * Unlike prePopulateFieldsMap, user_ids that are no longer in the
+     * documents do not survive. Writes applied to the fields map while it is
+     * being built are lost when the fresh tables are swapped in: stop the
+     * queue consumer first, or leave them to the next FieldsMapVerifier pass.
+     *
+     * @param db
+     * @param maxEntries (value, user_id) entries buffered in memory at most
+     * @return rows read and rows per second, partitions being the sorted runs
+     * spilled to disk
+     * @throws IOException
+     */
+    public static RebuildStats bulkLoadFieldsMap(DatabaseMock db, int maxEntries) throws IOException {
+        RebuildStats stats = ExternalFieldsMapBuilder.build(db, maxEntries);
+        Logger.getLogger(BatchUpdate.class.getName()).log(Level.INFO, "Bulk loaded fields map {0}: {1}",
+                new Object[]{getFieldsMapName(db), stats});
+        return stats;
     }
 
     /**
@@ -119,9 +182,78 @@ public class BatchUpdate {
      * @throws Exception 
      */
     public static MessageQueueMock updateFieldsMap(DatabaseMock db) throws Exception {
+        return updateFieldsMap(db, CommitPolicy.DEFAULT);
+    }
+
+    /**
+     * Same as updateFieldsMap(DatabaseMock db), committing the fields map as
+     * often as policy says instead of once per message. Whatever is still
+     * pending is committed when the subscription ends or the JVM shuts down.
+     *
+     * @param db
+     * @param policy
+     * @return
+     * @throws Exception
+     */
+    public static MessageQueueMock updateFieldsMap(DatabaseMock db, CommitPolicy policy) throws Exception {
+        MessageQueueMock recv = new MessageQueueMock();
+        UpdateFieldMap callback = new UpdateFieldMap(db, policy);
+        Thread hook = callback.committer.addShutdownHook();
+        try {
+            recv.subscribe_to_updates(callback);
+        } finally {
+            Runtime.getRuntime().removeShutdownHook(hook);
+            callback.close();
+        }
+        return recv;
+    }
+
+    /**
+     * Same as updateFieldsMap(DatabaseMock db, CommitPolicy policy), but
+     * applies messages on lanes threads at once. Messages of one user are
+     * applied in order on the same lane, messages of different users in
+     * parallel.
+     *
+     * @param db
+     * @param policy
+     * @param lanes
+     * @return
+     * @throws Exception
+     */
+    public static MessageQueueMock updateFieldsMap(DatabaseMock db, CommitPolicy policy, int lanes) throws Exception {
         MessageQueueMock recv = new MessageQueueMock();
-        CallBack callback = new UpdateFieldMap(db);
-        recv.subscribe_to_updates(callback);
+        UpdateFieldMap callback = new UpdateFieldMap(db, policy);
+        Thread hook = callback.committer.addShutdownHook();
+        try {
+            recv.subscribe_to_updates(callback, lanes);
+        } finally {
+            Runtime.getRuntime().removeShutdownHook(hook);
+            callback.close();
+        }
+        return recv;
+    }
+
+    /**
+     * Same as updateFieldsMap(DatabaseMock db), but takes messages off the
+     * queue in batches of up to maxBatch, or whatever arrived within
+     * maxWaitMillis. Each batch is coalesced per user_id and applied to the
+     * fields map in one commit, and its messages are only acknowledged after
+     * that commit.
+     *
+     * @param db
+     * @param maxBatch
+     * @param maxWaitMillis
+     * @return
+     * @throws Exception
+     */
+    public static MessageQueueMock updateFieldsMap(DatabaseMock db, int maxBatch, long maxWaitMillis) throws Exception {
+        MessageQueueMock recv = new MessageQueueMock();
+        UpdateFieldMap callback = new UpdateFieldMap(db, CommitPolicy.DEFAULT);
+        try {
+            recv.subscribe_to_updates(callback, maxBatch, maxWaitMillis);
+        } finally {
+            callback.close();
+        }
         return recv;
     }
 
@@ -130,12 +262,35 @@ public class BatchUpdate {
      * queue. Pass this class as a parameter to the subscription method to define
      * what the callback behavior is.
      * 
+     * Holds the fields map open for as long as it lives and group commits its
+     * writes, call close when done with it. Safe to call from several threads
+     * as long as the messages of one user come from one thread.
      */
-    static class UpdateFieldMap implements CallBack {
+    static class UpdateFieldMap implements CallBack, BatchCallBack {
         DatabaseMock db;
+        final FieldsMapStore store;
+        final GroupCommitter committer;
+
+        // Message deltas are decoded into one reused Delta per thread
+        private static final ThreadLocal<Delta> deltas = ThreadLocal.withInitial(Delta::new);
 
-        private UpdateFieldMap(DatabaseMock db) {
+        UpdateFieldMap(DatabaseMock db, CommitPolicy policy) throws IOException {
             this.db = db;
+            this.store = FieldsMapStore.open(db);
+            this.committer = new GroupCommitter(policy, store);
+        }
+
+        /**
+         * Commits anything pending and releases the fields map.
+         *
+         * @throws IOException
+         */
+        void close() throws IOException {
+            try {
+                committer.close();
+            } finally {
+                store.close();
+            }
         }
 
         /**
@@ -146,102 +301,375 @@ public class BatchUpdate {
          */
         @Override
         public void callback_function(int user_id, String delta) {
-            Type keyValueSet = new TypeToken<Map<String, String>>() {
-            }.getType();
+            Delta parsed = parse(user_id, delta);
 
-            Gson gson = new Gson();
-            Map<String, String> deltaSet = gson.fromJson(delta, keyValueSet);
+            // Check the version before touching the fields map, writes that
+            // end up in a group can not be taken back individually
+            if (parsed == null || isStale(user_id, parsed)) {
+                return;
+            }
 
-            boolean moreRecent = true;
             try {
-                RecordManager recMan = RecordManagerFactory.createRecordManager(getFieldsMapName(db));
-                for (Map.Entry<String, String> entry : deltaSet.entrySet()) {
-                    if (entry.getKey().equals("version")) {
-                        // Check that version > latest version in DB
-                        String json = db.read(user_id);
-                        UserData user_data = gson.fromJson(json, UserData.class);
-                        // If the version in the DB is higher than the version from the queue
-                        // then we have invalid or old message from the queue so do not update
-                        // the fields map
-                        if (user_data.getVersion() >= Integer.parseInt(entry.getValue())) {
-                            moreRecent = false;
-                        }
-                    } else if (entry.getKey().startsWith("old_")) {
-                        String type = entry.getKey().substring(4);
-                        switch (type) {
-                            case "job_title":
-                                PrimaryTreeMap<String, Set<Integer>> jobTitlesTree = recMan.treeMap(jobTitleMap);
-                                removeFromFieldsMap(jobTitlesTree, entry.getValue(), user_id);
-                                break;
-                            case "industry":
-                                PrimaryTreeMap<String, Set<Integer>> industriesTree = recMan.treeMap(industryMap);
-                                removeFromFieldsMap(industriesTree, entry.getValue(), user_id);
-                                break;
-                            case "name":
-                                break;
-                            case "version":
-                                break;
-                            default:
-                                break;
-                        }
-                    } else if (entry.getKey().startsWith("new_")) {
-                        String type = entry.getKey().substring(4);
-                        switch (type) {
-                            case "job_title":
-                                PrimaryTreeMap<String, Set<Integer>> jobTitlesTree = recMan.treeMap(jobTitleMap);
-                                addToFieldsMap(jobTitlesTree, entry.getValue(), user_id);
-                                break;
-                            case "industry":
-                                PrimaryTreeMap<String, Set<Integer>> industriesTree = recMan.treeMap(industryMap);
-                                addToFieldsMap(industriesTree, entry.getValue(), user_id);
-                                break;
-                            case "name":
-                                break;
-                            case "version":
-                                break;
-                            default:
-                                break;
-                        }
-                    }
+                committer.mutate(() -> applyDelta(user_id, parsed));
+            } catch (IOException ex) {
+                Logger.getLogger(BatchUpdate.class.getName()).log(Level.SEVERE, "Error accessing Fields Map", ex);
+            }
+        }
+
+        /**
+         * Apply a batch of messages to the fields map in one transaction.
+         * Stale messages are dropped, the rest are coalesced so each user is
+         * written once, and the batch is committed before returning so the
+         * messages can be acknowledged.
+         *
+         * @param updates
+         * @throws IOException
+         */
+        @Override
+        public void callback_batch(List<Update> updates) throws IOException {
+            DeltaCoalescer coalescer = new DeltaCoalescer();
+            for (Update update : updates) {
+                Delta parsed = parse(update.getUserId(), update.getDelta());
+                if (parsed != null && !isStale(update.getUserId(), parsed)) {
+                    coalescer.add(update.getUserId(), parsed);
                 }
-                if (moreRecent) {
-                    recMan.commit();
+            }
+
+            committer.mutate(() -> {
+                int mutations = 0;
+                for (Map.Entry<Integer, Delta> entry : coalescer.coalesced().entrySet()) {
+                    mutations += applyDelta(entry.getKey(), entry.getValue());
                 }
-                recMan.close();
+                return mutations;
+            });
+            committer.flush();
+        }
+
+        /**
+         * @return the thread's reusable Delta holding the message, null if
+         * the message could not be parsed
+         */
+        private static Delta parse(int user_id, String delta) {
+            try {
+                return deltas.get().read(delta);
             } catch (IOException ex) {
-                Logger.getLogger(BatchUpdate.class.getName()).log(Level.SEVERE, "Error accessing Fields Map", ex);
+                // Redelivering a malformed message will not fix it
+                Logger.getLogger(BatchUpdate.class.getName()).log(Level.SEVERE, "Dropping bad message for user " + user_id, ex);
+                PipelineMetrics.get().badMessage();
+                return null;
+            }
+        }
+
+        /**
+         * @return true if the DB already has a version at least as recent as
+         * the one in the delta, or no longer has the user at all
+         */
+        private boolean isStale(int user_id, Delta delta) {
+            if (!delta.hasVersion()) {
+                return false;
+            }
+            // Check that version > latest version in DB
+            Long version = db.readVersion(user_id);
+            if (version == null) {
+                PipelineMetrics.get().staleMessage();
+                return true;
+            }
+            // If the version in the DB is higher than the version from the queue
+            // then we have invalid or old message from the queue so do not update
+            // the fields map
+            if (version >= delta.getVersion()) {
+                PipelineMetrics.get().staleMessage();
+                return true;
             }
+            return false;
         }
+
+        /**
+         * Moves user_id from every old_ value to the matching new_ value.
+         * All removals are done before any addition so a delta that leaves a
+         * field unchanged does not drop the user.
+         *
+         * @return number of fields map writes
+         */
+        private int applyDelta(int user_id, Delta delta) {
+            Collection<FieldIndex> indexes = FieldIndex.all();
+            int mutations = 0;
+            for (FieldIndex index : indexes) {
+                String key = delta.hasOld(index.getField()) ? index.key(delta.getOld(index.getField())) : null;
+                if (key != null) {
+                    store.remove(index.getTable(), key, user_id);
+                    mutations++;
+                }
+            }
+            for (FieldIndex index : indexes) {
+                String key = delta.hasNew(index.getField()) ? index.key(delta.getNew(index.getField())) : null;
+                if (key != null) {
+                    store.add(index.getTable(), key, user_id);
+                    mutations++;
+                }
+            }
+            return mutations;
+        }
+    }
+
+    // Engine used by batch changes that do not name their own
+    private static WriteEngine defaultWriteEngine;
+
+    /**
+     * Sets the engine used by change_job_title and change_industry when no
+     * engine is passed in.
+     *
+     * @param engine
+     */
+    public static synchronized void setDefaultWriteEngine(WriteEngine engine) {
+        defaultWriteEngine = engine;
+    }
+
+    public static synchronized WriteEngine getDefaultWriteEngine() {
+        if (defaultWriteEngine == null) {
+            defaultWriteEngine = WriteEngine.platform(WriteEngine.DEFAULT_THREADS, WriteEngine.DEFAULT_MAX_IN_FLIGHT);
+        }
+        return defaultWriteEngine;
+    }
+
+    // Times a chunk re-reads users whose write conflicted before giving up
+    static final int MAX_CONFLICT_ATTEMPTS = 16;
+
+    // Users read, changed and written back per DB transaction by batch changes
+    public static final int DEFAULT_CHUNK_SIZE = 500;
+    private static int chunkSize = DEFAULT_CHUNK_SIZE;
+
+    /**
+     * Sets how many users change_job_title and change_industry read and
+     * write per DB transaction. Bigger chunks mean fewer, larger transactions.
+     *
+     * @param size
+     */
+    public static synchronized void setChunkSize(int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("chunk size must be positive");
+        }
+        chunkSize = size;
+    }
+
+    public static synchronized int getChunkSize() {
+        return chunkSize;
+    }
+
+    private static RetryPolicy retryPolicy = RetryPolicy.DEFAULT;
+
+    /**
+     * Sets how change_job_title and change_industry retry DB writes that time
+     * out. Users whose write still times out when the policy gives up are
+     * added to the DeadLetterStore of the DB.
+     *
+     * @param policy
+     */
+    public static synchronized void setRetryPolicy(RetryPolicy policy) {
+        retryPolicy = policy;
+    }
+
+    public static synchronized RetryPolicy getRetryPolicy() {
+        return retryPolicy;
     }
 
-    public static void change_job_title(DatabaseMock db, String oldJob, String newJob) throws IOException {
-        change_field(db, oldJob, newJob, FieldType.job_title);
+    public static BatchWrite change_job_title(DatabaseMock db, String oldJob, String newJob) throws IOException {
+        return change_job_title(db, oldJob, newJob, getDefaultWriteEngine());
     }
 
-    public static void change_industry(DatabaseMock db, String oldIndustry, String newIndustry) throws IOException {
-        change_field(db, oldIndustry, newIndustry, FieldType.industry);
+    public static BatchWrite change_job_title(DatabaseMock db, String oldJob, String newJob, WriteEngine engine) throws IOException {
+        return change_field(db, oldJob, newJob, FieldType.job_title, engine);
     }
 
-    private static void change_field(DatabaseMock db, String oldVal, String newVal, FieldType fieldType) throws IOException {
+    public static BatchWrite change_industry(DatabaseMock db, String oldIndustry, String newIndustry) throws IOException {
+        return change_industry(db, oldIndustry, newIndustry, getDefaultWriteEngine());
+    }
+
+    public static BatchWrite change_industry(DatabaseMock db, String oldIndustry, String newIndustry, WriteEngine engine) throws IOException {
+        return change_field(db, oldIndustry, newIndustry, FieldType.industry, engine);
+    }
+
+    /**
+     * Writes newVal to every user whose fieldType is currently oldVal.
+     * The users are read, changed and written back in chunks of
+     * getChunkSize(), one DB transaction per chunk. One chunk doesn't need to
+     * wait for the next to finish before it can start, so the chunks are
+     * handed to the engine which runs them in parallel while capping how many
+     * are outstanding at once.
+     *
+     * The change is recorded in the JobJournal of the DB with the users it
+     * was started with, and every chunk is checkpointed there as it finishes,
+     * so resumeJobs can finish it if the process stops first.
+     *
+     * @return a handle to wait on the writes, they may still be running
+     */
+    private static BatchWrite change_field(DatabaseMock db, String oldVal, String newVal, FieldType fieldType, WriteEngine engine) throws IOException {
         Set<Integer> entries = findMatches(db, oldVal, fieldType);
 
-        if (entries != null) {
-            Iterator<Integer> iter = entries.iterator();
-            while (iter.hasNext()) {
-                int value = iter.next();
-                // One DB write doesn't need to wait for the next to finish before
-                // it can start, spin all DB write off into their own thread.
-                // May need to determine when Java will fail to to too many
-                // threads and rework this concept.
-                Thread t = new Thread() {
-                    @Override
-                    public void run() {
-                        change_single_field(db, value, newVal, fieldType);
+        if (entries == null || entries.isEmpty()) {
+            return BatchWrite.empty();
+        }
+        int size = getChunkSize();
+        List<List<Integer>> chunks = new ArrayList<>();
+        List<Integer> chunk = null;
+        for (int user_id : entries) {
+            if (chunk == null || chunk.size() == size) {
+                chunk = new ArrayList<>(Math.min(size, entries.size()));
+                chunks.add(chunk);
+            }
+            chunk.add(user_id);
+        }
+        JobJournal journal = JobJournal.open(db);
+        BatchJob job;
+        try {
+            job = journal.create(fieldType, oldVal, newVal, chunks);
+        } catch (IOException | RuntimeException ex) {
+            journal.close();
+            throw ex;
+        }
+        return runJob(db, journal, job.getId(), chunks, engine);
+    }
+
+    /**
+     * Resumes the batch changes of db that did not finish, e.g. because the
+     * process stopped, from their last checkpoint in the JobJournal of the
+     * DB. Chunks of users that were already written are not run again.
+     *
+     * @param db
+     * @return the resumed runs by job id
+     * @throws IOException
+     */
+    public static Map<Long, BatchWrite> resumeJobs(DatabaseMock db) throws IOException {
+        return resumeJobs(db, getDefaultWriteEngine());
+    }
+
+    public static Map<Long, BatchWrite> resumeJobs(DatabaseMock db, WriteEngine engine) throws IOException {
+        Map<Long, BatchWrite> resumed = new LinkedHashMap<>();
+        try (JobJournal journal = JobJournal.open(db)) {
+            for (long id : journal.resumable()) {
+                List<List<Integer>> chunks = journal.remaining(id);
+                Logger.getLogger(BatchUpdate.class.getName()).log(Level.INFO, "Resuming {0}, {1} chunks left",
+                        new Object[]{journal.get(id), chunks.size()});
+                BatchWrite batch = runJob(db, JobJournal.open(db), id, chunks, engine);
+                if (batch != null) {
+                    resumed.put(id, batch);
+                }
+            }
+        }
+        return resumed;
+    }
+
+    /**
+     * Hands the chunks of a journaled job to engine, checkpointing each chunk
+     * in journal as it finishes. Takes over the journal handle, which is
+     * closed once every chunk has finished.
+     *
+     * @return a handle to wait on the writes, null if the job is already
+     * running in this process
+     */
+    private static BatchWrite runJob(DatabaseMock db, JobJournal journal, long id, List<List<Integer>> chunks, WriteEngine engine) throws IOException {
+        BatchJob job;
+        try {
+            job = journal.start(id);
+        } catch (IOException | RuntimeException ex) {
+            journal.close();
+            throw ex;
+        }
+        if (job == null) {
+            journal.close();
+            return null;
+        }
+        FieldIndex index = FieldIndex.forField(job.getField());
+        RetryPolicy retry = getRetryPolicy();
+        BatchWrite batch = engine.submitChunks(chunks, user_ids -> {
+            try {
+                change_chunk(db, user_ids, job.getOldValue(), job.getNewValue(), index, retry);
+            } catch (TimeoutException ex) {
+                deadLetter(db, user_ids, job.getField(), job.getOldValue(), job.getNewValue(), ex);
+                journal.chunkDeadLettered(id, user_ids);
+                throw ex;
+            } catch (Exception ex) {
+                journal.chunkFailed(id, user_ids);
+                throw ex;
+            }
+            journal.chunkDone(id, user_ids);
+        });
+        batch.setJobId(id);
+        batch.whenDone(() -> {
+            try {
+                BatchJob finished = journal.finish(id);
+                Logger.getLogger(BatchUpdate.class.getName()).log(
+                        finished.getStatus() == BatchJob.Status.DONE ? Level.INFO : Level.WARNING, "Finished {0}", finished);
+            } catch (IOException ex) {
+                Logger.getLogger(BatchUpdate.class.getName()).log(Level.SEVERE, "Could not record the end of job " + id, ex);
+            } finally {
+                try {
+                    journal.close();
+                } catch (IOException ex) {
+                    Logger.getLogger(BatchUpdate.class.getName()).log(Level.SEVERE, "Could not close " + journal.getName(), ex);
+                }
+            }
+        });
+        return batch;
+    }
+
+    /**
+     * Runs the field changes in the DeadLetterStore of db again, with the
+     * current retry policy, and removes the ones that went through.
+     *
+     * @param db
+     * @return number of dead letters that went through
+     * @throws IOException
+     */
+    public static int retryDeadLetters(DatabaseMock db) throws IOException {
+        RetryPolicy retry = getRetryPolicy();
+        int done = 0;
+        try (DeadLetterStore store = DeadLetterStore.open(db)) {
+            // Same change for many users is run a chunk at a time
+            Map<List<String>, Map<Long, Integer>> changes = new LinkedHashMap<>();
+            for (Map.Entry<Long, DeadLetter> entry : store.list().entrySet()) {
+                DeadLetter letter = entry.getValue();
+                List<String> change = Arrays.asList(letter.getField().name(), letter.getOldValue(), letter.getNewValue());
+                changes.computeIfAbsent(change, c -> new LinkedHashMap<>()).put(entry.getKey(), letter.getUserId());
+            }
+            for (Map.Entry<List<String>, Map<Long, Integer>> change : changes.entrySet()) {
+                FieldIndex index = FieldIndex.forField(FieldType.valueOf(change.getKey().get(0)));
+                if (index == null) {
+                    continue;
+                }
+                List<Long> ids = new ArrayList<>(change.getValue().keySet());
+                for (int from = 0; from < ids.size(); from += getChunkSize()) {
+                    List<Long> chunk = ids.subList(from, Math.min(ids.size(), from + getChunkSize()));
+                    List<Integer> user_ids = new ArrayList<>();
+                    for (Long id : chunk) {
+                        user_ids.add(change.getValue().get(id));
                     }
-                };
-                t.start();
+                    try {
+                        change_chunk(db, user_ids, change.getKey().get(1), change.getKey().get(2), index, retry);
+                    } catch (TimeoutException | VersionConflictException ex) {
+                        Logger.getLogger(BatchUpdate.class.getName()).log(Level.WARNING, "Dead letters still failing", ex);
+                        continue;
+                    }
+                    store.removeAll(chunk);
+                    done += chunk.size();
+                }
             }
         }
+        return done;
+    }
+
+    private static void deadLetter(DatabaseMock db, List<Integer> user_ids, FieldType fieldType, String oldVal, String newVal, Exception cause) throws IOException {
+        long now = System.currentTimeMillis();
+        List<DeadLetter> letters = new ArrayList<>();
+        for (int user_id : user_ids) {
+            letters.add(new DeadLetter(user_id, fieldType, oldVal, newVal, now, String.valueOf(cause)));
+        }
+        try (DeadLetterStore store = DeadLetterStore.open(db)) {
+            store.addAll(letters);
+        }
+        PipelineMetrics.get().deadLettered(letters.size());
+        Logger.getLogger(BatchUpdate.class.getName()).log(Level.SEVERE,
+                "Gave up changing {0} for {1} users, added to {2}", new Object[]{fieldType, user_ids.size(), DeadLetterStore.getDeadLetterName(db)});
     }
 
     /**
@@ -250,62 +678,65 @@ public class BatchUpdate {
      * @param val
      * @param fieldType
      * @return an array of user_ids, where the value of column fieldType is equal to
-     * val, returns null if not matches or inapplicable
+     * val, returns null if not matches or fieldType has no index. Read only,
+     * it can be the posting list cached for val.
      */
-    private static Set<Integer> findMatches(DatabaseMock db, String val, FieldType fieldType) throws IOException {
-        Set<Integer> user_ids = null;
-        RecordManager recMan = RecordManagerFactory.createRecordManager(getFieldsMapName(db));
-
-        switch (fieldType) {
-            case job_title:
-                PrimaryTreeMap<String, Set<Integer>> jobTitlesDB = recMan.treeMap(jobTitleMap);
-                user_ids = jobTitlesDB.get(val);
-                break;
-            case industry:
-                PrimaryTreeMap<String, Set<Integer>> industryDB = recMan.treeMap(industryMap);
-                user_ids = industryDB.get(val);
-                break;
-            case name:
-                break;
-            case version:
-                break;
-            default:
-                break;
+    static Set<Integer> findMatches(DatabaseMock db, String val, FieldType fieldType) throws IOException {
+        FieldIndex index = FieldIndex.forField(fieldType);
+        String key = index == null ? null : index.key(val);
+        if (key == null) {
+            return null;
         }
-
-        recMan.close();
-        return user_ids;
+        // A hit does not need the fields map opened, there is one only while
+        // some other handle on it is open
+        PostingList user_ids = PostingListCache.forFieldsMap(getFieldsMapName(db)).get(index.getTable(), key);
+        if (user_ids == null) {
+            try (FieldsMapStore store = FieldsMapStore.open(db)) {
+                user_ids = store.load(index.getTable(), key);
+            }
+        }
+        return user_ids == null ? null : Collections.unmodifiableSet(user_ids);
     }
 
-    private static void change_single_field(DatabaseMock db, int user_id, String val, FieldType fieldType) {
-        Gson gson = new Gson();
-        String user_data_json = db.read(user_id);
-
-        UserData user_data = gson.fromJson(user_data_json, UserData.class);
-        switch (fieldType) {
-            case name:
-                user_data.setName(val);
-                break;
-            case job_title:
-                user_data.setJobTitle(val);
-                break;
-            case industry:
-                user_data.setIndustry(val);
-                break;
-            default:
-                break;
-        }
+    /**
+     * Moves the users in user_ids from oldVal to newVal. Written with
+     * compare-and-set so a user that was changed by someone else after being
+     * read is read again and redone instead of overwritten, only the users
+     * that conflicted are read again. Users that no longer have oldVal by
+     * then are left alone, which also makes running a chunk again harmless.
+     * Writes that time out are retried as retry says.
+     */
+    private static void change_chunk(DatabaseMock db, List<Integer> user_ids, String oldVal, String newVal, FieldIndex index, RetryPolicy retry)
+            throws IOException, TimeoutException, VersionConflictException {
+        String oldKey = index.key(oldVal);
+        Collection<Integer> pending = user_ids;
+        for (int attempt = 1; !pending.isEmpty(); attempt++) {
+            Map<Integer, String> documents = new LinkedHashMap<>();
+            Map<Integer, Long> expectedVersions = new HashMap<>();
+            for (Map.Entry<Integer, UserData> entry : db.readUserDataBatch(pending).entrySet()) {
+                UserData user_data = entry.getValue();
+                if (!oldKey.equals(index.extract(user_data))) {
+                    continue;
+                }
+                expectedVersions.put(entry.getKey(), user_data.getVersion());
+                user_data.setField(index.getField(), newVal);
+                documents.put(entry.getKey(), UserDataCodec.encode(user_data));
+            }
 
-        boolean updated;
-        do {
-            try {
-                db.update(user_id, gson.toJson(user_data));
-                updated = true;
-            } catch (TimeoutException ex) {
-                Logger.getLogger(BatchUpdate.class.getName()).log(Level.WARNING, null, ex);
-                updated = false;
+            Map<Integer, Long> written = retry.run(() -> db.compareAndUpdateBatch(documents, expectedVersions));
+
+            List<Integer> conflicts = new ArrayList<>();
+            for (int user_id : documents.keySet()) {
+                if (!written.containsKey(user_id)) {
+                    conflicts.add(user_id);
+                }
+            }
+            if (!conflicts.isEmpty() && attempt == MAX_CONFLICT_ATTEMPTS) {
+                int user_id = conflicts.get(0);
+                throw new VersionConflictException(user_id, expectedVersions.get(user_id), db.readVersion(user_id));
             }
-        } while (!updated);
+            pending = conflicts;
+        }
     }
 
     /**
@@ -0,0 +1,154 @@
+package BatchUpdate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Handle for a set of per-user DB writes that were handed to a WriteEngine.
+ * The writes run in the background, use this to wait for all of them to land
+ * and to find out how many succeeded or failed. Waiting also covers what the
+ * batch does once its writes are done, e.g. finishing its job in the
+ * JobJournal.
+ *
+ * @author Rob Fusco
+ */
+public class BatchWrite {
+
+    private final int total;
+    private final AtomicInteger succeeded = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    // Writes left
+    private final CountDownLatch done;
+    // Counted down once the whenDone actions have run
+    private final CountDownLatch completed;
+    private final List<Runnable> whenDone = new ArrayList<>();
+    // Whether the whenDone actions were taken to run, guarded by whenDone
+    private boolean fired;
+    private volatile long jobId = -1;
+
+    BatchWrite(int total) {
+        this.total = total;
+        this.done = new CountDownLatch(total);
+        this.completed = new CountDownLatch(total == 0 ? 0 : 1);
+        this.fired = total == 0;
+    }
+
+    /**
+     * A batch with nothing to write, already complete.
+     *
+     * @return
+     */
+    static BatchWrite empty() {
+        return new BatchWrite(0);
+    }
+
+    void succeeded(int users) {
+        succeeded.addAndGet(users);
+        for (int i = 0; i < users; i++) {
+            done.countDown();
+        }
+        runWhenDone();
+    }
+
+    void failed(int users) {
+        failed.addAndGet(users);
+        for (int i = 0; i < users; i++) {
+            done.countDown();
+        }
+        runWhenDone();
+    }
+
+    /**
+     * Runs action once every write in the batch has finished, right away if
+     * they already have. Run by the thread that finished the last write,
+     * before await returns.
+     *
+     * @param action
+     */
+    void whenDone(Runnable action) {
+        synchronized (whenDone) {
+            if (!fired) {
+                whenDone.add(action);
+                return;
+            }
+        }
+        action.run();
+    }
+
+    private void runWhenDone() {
+        if (done.getCount() != 0) {
+            return;
+        }
+        List<Runnable> actions;
+        synchronized (whenDone) {
+            // Another thread that saw the writes done may already run them
+            if (fired) {
+                return;
+            }
+            fired = true;
+            actions = new ArrayList<>(whenDone);
+            whenDone.clear();
+        }
+        try {
+            for (Runnable action : actions) {
+                action.run();
+            }
+        } finally {
+            completed.countDown();
+        }
+    }
+
+    /**
+     * Blocks until every write in the batch has either succeeded or failed
+     * and the batch has finished up after them.
+     *
+     * @throws InterruptedException
+     */
+    public void await() throws InterruptedException {
+        completed.await();
+    }
+
+    /**
+     * Blocks until every write in the batch has finished and the batch has
+     * finished up after them, or the timeout expires.
+     *
+     * @param timeout
+     * @param unit
+     * @return true if all writes finished, false if the timeout expired first
+     * @throws InterruptedException
+     */
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        return completed.await(timeout, unit);
+    }
+
+    public boolean isDone() {
+        return completed.getCount() == 0;
+    }
+
+    public int getTotal() {
+        return total;
+    }
+
+    public int getSucceeded() {
+        return succeeded.get();
+    }
+
+    public int getFailed() {
+        return failed.get();
+    }
+
+    void setJobId(long jobId) {
+        this.jobId = jobId;
+    }
+
+    /**
+     * @return id of the batch in the JobJournal of its DB, -1 if it is not
+     * journaled
+     */
+    public long getJobId() {
+        return jobId;
+    }
+}
@@ -0,0 +1,62 @@
+package BatchUpdate;
+
+/**
+ * When to commit fields map mutations: after every N mutations or once the
+ * oldest uncommitted mutation is T milliseconds old, whichever comes first.
+ * A limit of 0 switches that trigger off.
+ *
+ * @author Rob Fusco
+ */
+public class CommitPolicy {
+
+    /**
+     * Commit after every mutation, the behaviour before group commit existed.
+     */
+    public static final CommitPolicy PER_MUTATION = new CommitPolicy(1, 0);
+
+    /**
+     * Commit every 1000 mutations or every second.
+     */
+    public static final CommitPolicy DEFAULT = new CommitPolicy(1000, 1000);
+
+    private final int maxMutations;
+    private final long maxDelayMillis;
+
+    /**
+     * @param maxMutations commit once this many mutations are pending, 0 for
+     * no limit
+     * @param maxDelayMillis commit once the oldest pending mutation is this
+     * old, 0 for no limit
+     */
+    public CommitPolicy(int maxMutations, long maxDelayMillis) {
+        if (maxMutations < 0 || maxDelayMillis < 0) {
+            throw new IllegalArgumentException("Commit limits can not be negative");
+        }
+        if (maxMutations == 0 && maxDelayMillis == 0) {
+            throw new IllegalArgumentException("At least one commit limit is needed");
+        }
+        this.maxMutations = maxMutations;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    public static CommitPolicy everyMutations(int maxMutations) {
+        return new CommitPolicy(maxMutations, 0);
+    }
+
+    public static CommitPolicy everyMillis(long maxDelayMillis) {
+        return new CommitPolicy(0, maxDelayMillis);
+    }
+
+    public int getMaxMutations() {
+        return maxMutations;
+    }
+
+    public long getMaxDelayMillis() {
+        return maxDelayMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "CommitPolicy{maxMutations=" + maxMutations + ", maxDelayMillis=" + maxDelayMillis + "}";
+    }
+}
@@ -0,0 +1,62 @@
+package BatchUpdate;
+
+import Database.UserData.FieldType;
+
+/**
+ * A field change for one user that could not be written, kept in a
+ * DeadLetterStore so it can be run again later with
+ * BatchUpdate.retryDeadLetters.
+ *
+ * @author Rob Fusco
+ */
+public class DeadLetter {
+
+    private final int user_id;
+    private final FieldType field;
+    private final String old_value;
+    private final String new_value;
+    private final long failed_at;
+    private final String reason;
+
+    public DeadLetter(int user_id, FieldType field, String old_value, String new_value, long failed_at, String reason) {
+        this.user_id = user_id;
+        this.field = field;
+        this.old_value = old_value;
+        this.new_value = new_value;
+        this.failed_at = failed_at;
+        this.reason = reason;
+    }
+
+    public int getUserId() {
+        return user_id;
+    }
+
+    public FieldType getField() {
+        return field;
+    }
+
+    public String getOldValue() {
+        return old_value;
+    }
+
+    public String getNewValue() {
+        return new_value;
+    }
+
+    /**
+     * @return when the change gave up, in milliseconds since the epoch
+     */
+    public long getFailedAt() {
+        return failed_at;
+    }
+
+    public String getReason() {
+        return reason;
+    }
+
+    @Override
+    public String toString() {
+        return "DeadLetter{user_id=" + user_id + ", " + field + ": " + old_value + " -> " + new_value
+                + ", failed_at=" + failed_at + ", reason=" + reason + "}";
+    }
+}
@@ -0,0 +1,142 @@
+package BatchUpdate;
+
+import Database.DatabaseMock;
+import com.google.gson.Gson;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jdbm.PrimaryTreeMap;
+import jdbm.RecordManager;
+import jdbm.RecordManagerFactory;
+
+/**
+ * Persisted list of the field changes that gave up, per database. Entries are
+ * numbered in the order they were added and committed as soon as they are
+ * added, so they survive a restart until they are run again and removed.
+ *
+ * The list is bounded: once it holds maxEntries, adding drops the oldest
+ * entries and logs them, so a DB that keeps failing can not fill the disk.
+ *
+ * Handles are shared like FieldsMapStore handles, open returns the open store
+ * of a database if there is one. Always close what you open. Safe to use from
+ * several threads.
+ *
+ * @author Rob Fusco
+ */
+public class DeadLetterStore implements Closeable {
+
+    public static final int DEFAULT_MAX_ENTRIES = 100000;
+
+    private static final String table = "deadLetters";
+    private static final Gson gson = new Gson();
+
+    private static final StoreRegistry<DeadLetterStore> stores = new StoreRegistry<>("Dead letters");
+
+    private final String name;
+    private final RecordManager recMan;
+    private final PrimaryTreeMap<Long, String> entries;
+    private final int maxEntries;
+    private long nextId;
+    private int size;
+
+    private DeadLetterStore(String name, int maxEntries) throws IOException {
+        this.name = name;
+        this.maxEntries = maxEntries;
+        this.recMan = RecordManagerFactory.createRecordManager(name);
+        this.entries = recMan.treeMap(table);
+        this.nextId = entries.isEmpty() ? 0 : entries.lastKey() + 1;
+        this.size = entries.size();
+    }
+
+    /**
+     * Opens the dead letter list of db, or shares it if it is already open.
+     *
+     * @param db
+     * @return a handle that must be closed when no longer needed
+     * @throws IOException
+     */
+    public static DeadLetterStore open(DatabaseMock db) throws IOException {
+        String name = getDeadLetterName(db);
+        return stores.open(name, n -> new DeadLetterStore(n, DEFAULT_MAX_ENTRIES));
+    }
+
+    /**
+     * Releases this handle, the last one to be closed closes the DB.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        stores.release(name, this, recMan::close);
+    }
+
+    /**
+     * Adds and commits dead letters.
+     *
+     * @param letters
+     * @throws IOException
+     */
+    public synchronized void addAll(Collection<DeadLetter> letters) throws IOException {
+        for (DeadLetter letter : letters) {
+            entries.put(nextId++, gson.toJson(letter));
+            size++;
+        }
+        while (size > maxEntries) {
+            Long oldest = entries.firstKey();
+            Logger.getLogger(DeadLetterStore.class.getName()).log(Level.SEVERE,
+                    "Dead letters {0} full, dropping {1}", new Object[]{name, entries.get(oldest)});
+            entries.remove(oldest);
+            size--;
+        }
+        recMan.commit();
+    }
+
+    /**
+     * @return every dead letter by id, oldest first
+     */
+    public synchronized Map<Long, DeadLetter> list() {
+        Map<Long, DeadLetter> letters = new LinkedHashMap<>();
+        for (Map.Entry<Long, String> entry : entries.entrySet()) {
+            letters.put(entry.getKey(), gson.fromJson(entry.getValue(), DeadLetter.class));
+        }
+        return letters;
+    }
+
+    /**
+     * Removes and commits dead letters, e.g. once they have been run again.
+     *
+     * @param ids
+     * @throws IOException
+     */
+    public synchronized void removeAll(Collection<Long> ids) throws IOException {
+        for (Long id : ids) {
+            if (entries.remove(id) != null) {
+                size--;
+            }
+        }
+        recMan.commit();
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Convenience method, consistently name the dead letter DB based on the DB
+     * it is for
+     *
+     * @param db
+     * @return a dead letter DB name with the DB name appended to the end
+     */
+    public static String getDeadLetterName(DatabaseMock db) {
+        return "DeadLetters4" + db.getName();
+    }
+}
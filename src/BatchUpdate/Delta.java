@@ -0,0 +1,178 @@
+package BatchUpdate;
+
+import Database.UserData.FieldType;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import java.io.IOException;
+import java.io.StringReader;
+
+/**
+ * A queue message delta, e.g.
+ * {"old_job_title": "A", "new_job_title": "B", "version": 10}
+ *
+ * read streams the JSON straight into the old_ and new_ slot of each field
+ * and a primitive version, skipping anything else, so one Delta can be reused
+ * for every message a thread handles instead of parsing each one into a new
+ * HashMap.
+ *
+ * Not thread safe, use one per thread.
+ *
+ * @author Rob Fusco
+ */
+class Delta {
+
+    private static final FieldType[] fields = FieldType.values();
+    private static final String oldPrefix = "old_";
+    private static final String newPrefix = "new_";
+
+    private final String[] oldValues = new String[fields.length];
+    private final String[] newValues = new String[fields.length];
+    // A field can be present with a null value, so presence is kept apart
+    private final boolean[] hasOld = new boolean[fields.length];
+    private final boolean[] hasNew = new boolean[fields.length];
+    private long version;
+    private boolean hasVersion;
+
+    /**
+     * Replaces the contents of this delta with the message in json.
+     *
+     * @param json
+     * @return this
+     * @throws IOException if json is not a JSON object
+     */
+    Delta read(String json) throws IOException {
+        reset();
+        try (JsonReader reader = new JsonReader(new StringReader(json))) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String key = reader.nextName();
+                if (key.equals("version")) {
+                    if (reader.peek() == JsonToken.NULL) {
+                        reader.nextNull();
+                    } else {
+                        setVersion(reader.nextLong());
+                    }
+                } else if (key.startsWith(oldPrefix)) {
+                    FieldType field = field(key, oldPrefix.length());
+                    if (field == null) {
+                        reader.skipValue();
+                    } else {
+                        setOld(field, nextString(reader));
+                    }
+                } else if (key.startsWith(newPrefix)) {
+                    FieldType field = field(key, newPrefix.length());
+                    if (field == null) {
+                        reader.skipValue();
+                    } else {
+                        setNew(field, nextString(reader));
+                    }
+                } else {
+                    reader.skipValue();
+                }
+            }
+        } catch (IllegalStateException | NumberFormatException ex) {
+            throw new IOException("Bad delta: " + json, ex);
+        }
+        return this;
+    }
+
+    /**
+     * Clears every field and the version.
+     *
+     * @return this
+     */
+    Delta reset() {
+        for (int i = 0; i < fields.length; i++) {
+            oldValues[i] = null;
+            newValues[i] = null;
+            hasOld[i] = false;
+            hasNew[i] = false;
+        }
+        version = 0;
+        hasVersion = false;
+        return this;
+    }
+
+    /**
+     * @return an independent copy of this delta
+     */
+    Delta copy() {
+        Delta copy = new Delta();
+        System.arraycopy(oldValues, 0, copy.oldValues, 0, fields.length);
+        System.arraycopy(newValues, 0, copy.newValues, 0, fields.length);
+        System.arraycopy(hasOld, 0, copy.hasOld, 0, fields.length);
+        System.arraycopy(hasNew, 0, copy.hasNew, 0, fields.length);
+        copy.version = version;
+        copy.hasVersion = hasVersion;
+        return copy;
+    }
+
+    boolean hasOld(FieldType field) {
+        return hasOld[field.ordinal()];
+    }
+
+    String getOld(FieldType field) {
+        return oldValues[field.ordinal()];
+    }
+
+    void setOld(FieldType field, String value) {
+        oldValues[field.ordinal()] = value;
+        hasOld[field.ordinal()] = true;
+    }
+
+    void clearOld(FieldType field) {
+        oldValues[field.ordinal()] = null;
+        hasOld[field.ordinal()] = false;
+    }
+
+    boolean hasNew(FieldType field) {
+        return hasNew[field.ordinal()];
+    }
+
+    String getNew(FieldType field) {
+        return newValues[field.ordinal()];
+    }
+
+    void setNew(FieldType field, String value) {
+        newValues[field.ordinal()] = value;
+        hasNew[field.ordinal()] = true;
+    }
+
+    void clearNew(FieldType field) {
+        newValues[field.ordinal()] = null;
+        hasNew[field.ordinal()] = false;
+    }
+
+    boolean hasVersion() {
+        return hasVersion;
+    }
+
+    long getVersion() {
+        return version;
+    }
+
+    void setVersion(long version) {
+        this.version = version;
+        this.hasVersion = true;
+    }
+
+    // Matches the rest of key against the field names without a substring
+    private static FieldType field(String key, int offset) {
+        int length = key.length() - offset;
+        for (FieldType field : fields) {
+            String name = field.name();
+            if (name.length() == length && key.regionMatches(offset, name, 0, length)) {
+                return field;
+            }
+        }
+        return null;
+    }
+
+    private static String nextString(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        return reader.nextString();
+    }
+}
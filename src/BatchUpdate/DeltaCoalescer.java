@@ -0,0 +1,68 @@
+package BatchUpdate;
+
+import Database.UserData.FieldType;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Folds the deltas of a batch of queue messages into one delta per user_id.
+ *
+ * Deltas must be added in the order they were sent. For every field the
+ * oldest old_ value and the newest new_ value are kept, since applying A to B
+ * and then B to C is the same as applying A to C. A delta with an old_ but no
+ * new_ value removes the field, so it also drops the new_ value kept so far.
+ * A field that ends up where it started (old_ equals new_) is dropped
+ * altogether, and version keeps the highest version seen.
+ *
+ * @author Rob Fusco
+ */
+class DeltaCoalescer {
+
+    private final Map<Integer, Delta> byUser = new LinkedHashMap<>();
+
+    /**
+     * @param user_id
+     * @param delta copied, so it can be reused once this returns
+     */
+    void add(int user_id, Delta delta) {
+        Delta merged = byUser.get(user_id);
+        if (merged == null) {
+            byUser.put(user_id, delta.copy());
+            return;
+        }
+        for (FieldType field : FieldType.values()) {
+            if (delta.hasOld(field) && !merged.hasOld(field)) {
+                merged.setOld(field, delta.getOld(field));
+            }
+            if (delta.hasNew(field)) {
+                merged.setNew(field, delta.getNew(field));
+            } else if (delta.hasOld(field)) {
+                // Removed from the field, the value it had moved to is gone
+                merged.clearNew(field);
+            }
+        }
+        if (delta.hasVersion() && (!merged.hasVersion() || delta.getVersion() > merged.getVersion())) {
+            merged.setVersion(delta.getVersion());
+        }
+    }
+
+    /**
+     * @return one delta per user_id, in the order the users were first seen
+     */
+    Map<Integer, Delta> coalesced() {
+        for (Delta delta : byUser.values()) {
+            for (FieldType field : FieldType.values()) {
+                if (delta.hasOld(field) && delta.hasNew(field)
+                        && delta.getOld(field) != null && delta.getOld(field).equals(delta.getNew(field))) {
+                    delta.clearOld(field);
+                    delta.clearNew(field);
+                }
+            }
+        }
+        return byUser;
+    }
+
+    int size() {
+        return byUser.size();
+    }
+}
@@ -0,0 +1,310 @@
+package BatchUpdate;
+
+import Database.DatabaseMock;
+import Database.UserData;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import jdbm.PrimaryTreeMap;
+import jdbm.SerializerInput;
+import jdbm.SerializerOutput;
+
+/**
+ * Rebuilds the fields maps of a DB too large to aggregate in memory.
+ *
+ * The DB is scanned once and its (value, user_id) entries are aggregated in
+ * memory until maxEntries of them are held. The keys of every table are then
+ * sorted and spilled to a run file in a temporary directory. Once the scan is
+ * done the runs of each table are merged, at most MAX_FAN_IN at a time, and
+ * every key is written once, in key order, into a fresh table. The fresh
+ * tables then replace the old ones in a single commit.
+ *
+ * Memory holds at most maxEntries buffered user_ids and a read buffer per
+ * merged run however large the DB is, plus the whole posting list of the key
+ * being written: a key is written as a single fields map value, so the most
+ * common job_title or industry needs a few bytes per user that has it, twice
+ * while its parts from the runs are merged. Writing keys in order keeps the JDBM pages being filled in its
+ * cache instead of reading a random one back for every row.
+ *
+ * @author Rob Fusco
+ */
+class ExternalFieldsMapBuilder {
+
+    // 1M user_ids, a few tens of MB of postings
+    static final int DEFAULT_MAX_ENTRIES = 1 << 20;
+
+    // Runs merged at once, each holds a read buffer
+    private static final int MAX_FAN_IN = 64;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Collection<FieldIndex> indexes;
+    private final int maxEntries;
+    private final File dir;
+    private final Map<FieldIndex, Map<String, PostingList>> buffers = new HashMap<>();
+    private final Map<FieldIndex, List<File>> runs = new HashMap<>();
+    private long buffered = 0;
+    private int spills = 0;
+
+    private ExternalFieldsMapBuilder(Collection<FieldIndex> indexes, int maxEntries, File dir) {
+        this.indexes = indexes;
+        this.maxEntries = maxEntries;
+        this.dir = dir;
+        for (FieldIndex index : indexes) {
+            buffers.put(index, new HashMap<>());
+            runs.put(index, new ArrayList<>());
+        }
+    }
+
+    /**
+     * Sorted keys with their posting lists, written as a true flag and the
+     * entry each, then a false flag.
+     */
+    private static final class RunWriter implements Closeable {
+
+        private final SerializerOutput out;
+
+        RunWriter(File file) throws IOException {
+            out = new SerializerOutput(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+        }
+
+        void put(String key, PostingList user_ids) throws IOException {
+            out.writeBoolean(true);
+            out.writeUTF(key);
+            PostingListSerializer.INSTANCE.serialize(out, user_ids);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                out.writeBoolean(false);
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Reads a run back, an entry at a time.
+     */
+    private static final class RunReader implements Closeable {
+
+        private final SerializerInput in;
+        String key;
+        PostingList user_ids;
+
+        RunReader(File file) throws IOException {
+            in = new SerializerInput(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+        }
+
+        /**
+         * @return false at the end of the run
+         */
+        boolean next() throws IOException {
+            if (!in.readBoolean()) {
+                key = null;
+                user_ids = null;
+                return false;
+            }
+            key = in.readUTF();
+            try {
+                user_ids = PostingListSerializer.INSTANCE.deserialize(in);
+            } catch (ClassNotFoundException ex) {
+                throw new IOException(ex);
+            }
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    private interface Sink {
+
+        void put(String key, PostingList user_ids) throws IOException;
+    }
+
+    static RebuildStats build(DatabaseMock db, int maxEntries) throws IOException {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be positive");
+        }
+        long start = System.currentTimeMillis();
+        File dir = Files.createTempDirectory("fieldsmap-" + db.getName() + "-").toFile();
+        try {
+            ExternalFieldsMapBuilder builder = new ExternalFieldsMapBuilder(FieldIndex.all(), maxEntries, dir);
+            long rows = builder.scan(db);
+            long keys = 0;
+            try (FieldsMapStore store = FieldsMapStore.open(db)) {
+                List<String> tables = new ArrayList<>();
+                for (FieldIndex index : builder.indexes) {
+                    keys += builder.load(store, index);
+                    tables.add(index.getTable());
+                }
+                store.swap(tables);
+            }
+            return new RebuildStats(rows, keys, builder.spills, System.currentTimeMillis() - start);
+        } finally {
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            dir.delete();
+        }
+    }
+
+    private long scan(DatabaseMock db) throws IOException {
+        long rows = 0;
+        Iterator<Map.Entry<Integer, UserData>> iter = db.scanUserData(Integer.MIN_VALUE, null, DatabaseMock.DEFAULT_SCAN_PAGE_SIZE);
+        while (iter.hasNext()) {
+            Map.Entry<Integer, UserData> entry = iter.next();
+            UserData user_data = entry.getValue();
+            if (user_data == null) {
+                continue;
+            }
+            for (FieldIndex index : indexes) {
+                String value = index.extract(user_data);
+                if (value != null) {
+                    // The scan is in user_id order, so this appends
+                    buffers.get(index).computeIfAbsent(value, v -> new PostingList()).add(entry.getKey().intValue());
+                    buffered++;
+                }
+            }
+            rows++;
+            if (buffered >= maxEntries) {
+                spill();
+            }
+        }
+        if (buffered > 0) {
+            spill();
+        }
+        return rows;
+    }
+
+    /**
+     * Writes the buffered entries of every table to a run of its own.
+     */
+    private void spill() throws IOException {
+        for (FieldIndex index : indexes) {
+            Map<String, PostingList> buffer = buffers.get(index);
+            if (buffer.isEmpty()) {
+                continue;
+            }
+            List<String> keys = new ArrayList<>(buffer.keySet());
+            Collections.sort(keys);
+            File file = File.createTempFile(index.getTable() + "-", ".run", dir);
+            try (RunWriter run = new RunWriter(file)) {
+                for (String key : keys) {
+                    run.put(key, buffer.get(key));
+                }
+            }
+            runs.get(index).add(file);
+            buffer.clear();
+        }
+        buffered = 0;
+        spills++;
+    }
+
+    /**
+     * Merges the runs of index into a fresh table.
+     *
+     * @return number of keys written
+     */
+    private long load(FieldsMapStore store, FieldIndex index) throws IOException {
+        List<File> files = runs.get(index);
+        while (files.size() > MAX_FAN_IN) {
+            files = mergeRuns(index, files);
+        }
+        PrimaryTreeMap<String, PostingList> tree = store.fresh(index.getTable());
+        long[] uncommitted = {0};
+        return merge(files, (key, user_ids) -> {
+            tree.put(key, user_ids);
+            // The fresh table is not seen until swapped in, commit as often
+            // as needed to bound the transaction held in memory
+            uncommitted[0] += user_ids.size();
+            if (uncommitted[0] >= maxEntries) {
+                store.commit();
+                uncommitted[0] = 0;
+            }
+        });
+    }
+
+    /**
+     * One merge pass: merges the runs MAX_FAN_IN at a time into fewer, longer
+     * runs and deletes the merged ones.
+     */
+    private List<File> mergeRuns(FieldIndex index, List<File> files) throws IOException {
+        List<File> merged = new ArrayList<>();
+        for (int i = 0; i < files.size(); i += MAX_FAN_IN) {
+            List<File> group = files.subList(i, Math.min(i + MAX_FAN_IN, files.size()));
+            File file = File.createTempFile(index.getTable() + "-", ".run", dir);
+            try (RunWriter run = new RunWriter(file)) {
+                merge(group, run::put);
+            }
+            for (File done : group) {
+                done.delete();
+            }
+            merged.add(file);
+        }
+        return merged;
+    }
+
+    /**
+     * K-way merge of sorted runs. A key found in several runs is handed to
+     * sink once, with the union of its posting lists.
+     *
+     * @return number of keys handed to sink
+     */
+    private static long merge(List<File> files, Sink sink) throws IOException {
+        PriorityQueue<RunReader> heads = new PriorityQueue<>(Math.max(1, files.size()), (a, b) -> a.key.compareTo(b.key));
+        List<RunReader> open = new ArrayList<>();
+        try {
+            for (File file : files) {
+                RunReader run = new RunReader(file);
+                open.add(run);
+                if (run.next()) {
+                    heads.add(run);
+                }
+            }
+            long keys = 0;
+            while (!heads.isEmpty()) {
+                RunReader run = heads.poll();
+                String key = run.key;
+                List<PostingList> parts = new ArrayList<>();
+                parts.add(run.user_ids);
+                if (run.next()) {
+                    heads.add(run);
+                }
+                while (!heads.isEmpty() && heads.peek().key.equals(key)) {
+                    RunReader other = heads.poll();
+                    parts.add(other.user_ids);
+                    if (other.next()) {
+                        heads.add(other);
+                    }
+                }
+                sink.put(key, parts.size() == 1 ? parts.get(0) : PostingList.union(parts));
+                keys++;
+            }
+            return keys;
+        } finally {
+            for (RunReader run : open) {
+                run.close();
+            }
+        }
+    }
+}
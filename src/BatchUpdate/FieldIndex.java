@@ -0,0 +1,126 @@
+package BatchUpdate;
+
+import Database.UserData;
+import Database.UserData.FieldType;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.function.UnaryOperator;
+
+/**
+ * A fields map kept for one UserData field: which table of the fields map DB
+ * it is stored in and how a value of the field is turned into its key.
+ *
+ * Indexes are registered by FieldType. prePopulateFieldsMap, the queue
+ * consumer and change_job_title / change_industry all work from the
+ * registered indexes, so adding one here is enough to have it built in the
+ * same pass over the DB as the others and kept up to date. job_title and
+ * industry are registered out of the box. A newly registered index is empty
+ * until the fields map is populated again.
+ *
+ * @author Rob Fusco
+ */
+public final class FieldIndex {
+
+    public static final FieldIndex jobTitle = new FieldIndex(FieldType.job_title, BatchUpdate.jobTitleMap);
+    public static final FieldIndex industry = new FieldIndex(FieldType.industry, BatchUpdate.industryMap);
+
+    // Replaced rather than changed so readers need no lock
+    private static volatile Map<FieldType, FieldIndex> registry = Collections.emptyMap();
+
+    static {
+        register(jobTitle);
+        register(industry);
+    }
+
+    private final FieldType field;
+    private final String table;
+    private final UnaryOperator<String> keyOf;
+
+    /**
+     * An index keyed on the value of field as it is.
+     *
+     * @param field
+     * @param table name of the table in the fields map DB
+     */
+    public FieldIndex(FieldType field, String table) {
+        this(field, table, UnaryOperator.identity());
+    }
+
+    /**
+     * @param field the field whose changes update the index
+     * @param table name of the table in the fields map DB
+     * @param keyOf turns a value of field into its key, e.g. to lower case.
+     * Values it maps to null are left out of the index.
+     */
+    public FieldIndex(FieldType field, String table, UnaryOperator<String> keyOf) {
+        this.field = field;
+        this.table = table;
+        this.keyOf = keyOf;
+    }
+
+    /**
+     * Adds an index, replacing any index already registered for its field.
+     *
+     * @param index
+     */
+    public static synchronized void register(FieldIndex index) {
+        Map<FieldType, FieldIndex> copy = new EnumMap<>(FieldType.class);
+        copy.putAll(registry);
+        copy.put(index.getField(), index);
+        registry = Collections.unmodifiableMap(copy);
+    }
+
+    /**
+     * Stops maintaining the index of field. Its table is left as is.
+     *
+     * @param field
+     */
+    public static synchronized void unregister(FieldType field) {
+        Map<FieldType, FieldIndex> copy = new EnumMap<>(FieldType.class);
+        copy.putAll(registry);
+        copy.remove(field);
+        registry = Collections.unmodifiableMap(copy);
+    }
+
+    /**
+     * @param field
+     * @return the index registered for field, null if it is not indexed
+     */
+    public static FieldIndex forField(FieldType field) {
+        return registry.get(field);
+    }
+
+    /**
+     * @return every registered index, in FieldType order
+     */
+    public static Collection<FieldIndex> all() {
+        return registry.values();
+    }
+
+    /**
+     * @param user_data
+     * @return the key user_data is filed under, null for none
+     */
+    public String extract(UserData user_data) {
+        return key(user_data.getField(field));
+    }
+
+    /**
+     * @param value a value of the field, e.g. from a queue message or a
+     * lookup
+     * @return the key value is filed under, null for none
+     */
+    public String key(String value) {
+        return value == null ? null : keyOf.apply(value);
+    }
+
+    public FieldType getField() {
+        return field;
+    }
+
+    public String getTable() {
+        return table;
+    }
+}
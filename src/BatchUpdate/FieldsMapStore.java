@@ -0,0 +1,433 @@
+package BatchUpdate;
+
+import Database.DatabaseMock;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jdbm.PrimaryTreeMap;
+import jdbm.RecordManager;
+import jdbm.RecordManagerFactory;
+import jdbm.btree.BTree;
+
+/**
+ * Long-lived handle on the fields map DB of one database.
+ *
+ * Owns the JDBM RecordManager and the fields map tables, so they are opened
+ * once instead of on every queue message or lookup. Every open for the same
+ * database returns a handle of its own on the same store and bumps its
+ * reference count, close drops it once, and the underlying files are
+ * committed and closed when the last handle is closed, see StoreRegistry.
+ * Always close what you open, and only that.
+ *
+ * Safe to use from several threads. Writes to the same key are serialized by
+ * one of a fixed set of striped locks, writes to different keys mostly run in
+ * parallel.
+ *
+ * Lookups go through the PostingListCache of the fields map, which the writes
+ * here keep up to date while a handle is open.
+ *
+ * Every commit takes the write side of the commit lock, which a
+ * GroupCommitter holds shared while it applies a mutation, so no commit of
+ * the store lands in the middle of one.
+ *
+ * @author Rob Fusco
+ */
+public class FieldsMapStore implements Closeable {
+
+    private static final StoreRegistry<FieldsMapStore> stores = new StoreRegistry<>("Fields map");
+
+    // The handle registered for the store, whose state every handle on it
+    // shares
+    private final FieldsMapStore store;
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final String name;
+    private final RecordManager recMan;
+    private final Map<String, PrimaryTreeMap<String, PostingList>> tables;
+    private final Object[] stripes;
+    private final PostingListCache cache;
+    private final ReentrantReadWriteLock commitLock;
+
+    // Power of two, so a stripe can be picked with a mask
+    private static final int STRIPES = 64;
+
+    // Name of the table a bulk load fills before it is swapped in
+    private static final String BULK_SUFFIX = ".bulk";
+
+    // Tables written before values were PostingLists, by the name they were
+    // written under, and the tables they are migrated to
+    private static final String[][] LEGACY_TABLES = {
+        {"jobTitle", BatchUpdate.jobTitleMap},
+        {"industryTitle", BatchUpdate.industryMap}
+    };
+
+    private FieldsMapStore(String name) throws IOException {
+        this.store = this;
+        this.name = name;
+        this.recMan = RecordManagerFactory.createRecordManager(name);
+        this.tables = new ConcurrentHashMap<>();
+        this.stripes = new Object[STRIPES];
+        this.cache = PostingListCache.forFieldsMap(name);
+        this.commitLock = new ReentrantReadWriteLock();
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Object();
+        }
+        try {
+            for (String[] legacy : LEGACY_TABLES) {
+                migrate(legacy[0], legacy[1]);
+            }
+        } catch (IOException | RuntimeException ex) {
+            recMan.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Copies a table of Java serialized sets left by an older version into
+     * table, unless table was already built, and deletes it. Lookups would
+     * otherwise find nothing until prePopulateFieldsMap was run again.
+     */
+    private void migrate(String legacy, String table) throws IOException {
+        long recid = recMan.getNamedObject(legacy);
+        if (recid == 0) {
+            return;
+        }
+        if (recMan.getNamedObject(table) == 0) {
+            PrimaryTreeMap<String, Set<Integer>> old = recMan.treeMap(legacy);
+            PrimaryTreeMap<String, PostingList> tree = tree(table);
+            for (Map.Entry<String, Set<Integer>> entry : old.entrySet()) {
+                tree.put(entry.getKey(), new PostingList(entry.getValue()));
+            }
+            Logger.getLogger(FieldsMapStore.class.getName()).log(Level.INFO, "Migrated {0} keys of {1} in {2} to {3}",
+                    new Object[]{tree.size(), legacy, name, table});
+        }
+        // Its pages hold Java serialized values, as the tree header says
+        BTree.load(recMan, recid).delete();
+        recMan.setNamedObject(legacy, 0);
+        recMan.commit();
+    }
+
+    /**
+     * Opens the fields map DB of db, or shares it if it is already open.
+     *
+     * @param db
+     * @return a handle that must be closed when no longer needed
+     * @throws IOException
+     */
+    public static FieldsMapStore open(DatabaseMock db) throws IOException {
+        String name = BatchUpdate.getFieldsMapName(db);
+        return new FieldsMapStore(stores.open(name, FieldsMapStore::new));
+    }
+
+    // A handle of its own on store
+    private FieldsMapStore(FieldsMapStore store) {
+        this.store = store;
+        this.name = store.name;
+        this.recMan = store.recMan;
+        this.tables = store.tables;
+        this.stripes = store.stripes;
+        this.cache = store.cache;
+        this.commitLock = store.commitLock;
+    }
+
+    /**
+     * Releases this handle. The last handle to be closed commits and closes
+     * the fields map DB and clears its PostingListCache, the files can be
+     * rewritten or deleted once closed.
+     *
+     * @throws IOException
+     * @throws IllegalStateException if this handle was already closed
+     */
+    @Override
+    public void close() throws IOException {
+        if (!closed.compareAndSet(false, true)) {
+            throw new IllegalStateException("Fields map " + name + " handle is already closed");
+        }
+        stores.release(name, store, () -> {
+            cache.clear();
+            recMan.close();
+        });
+    }
+
+    /**
+     * Raw access to a table. Writes to it bypass the posting list cache, so
+     * the cached entries of the table are dropped.
+     *
+     * @param table jobTitleMap, industryMap or any other fields map table
+     * @return the table, created if it does not exist yet
+     */
+    public PrimaryTreeMap<String, PostingList> table(String table) {
+        cache.invalidateTable(table);
+        return tree(table);
+    }
+
+    private PrimaryTreeMap<String, PostingList> tree(String table) {
+        return tables.computeIfAbsent(table, t -> BatchUpdate.fieldsMapTree(recMan, t));
+    }
+
+    /**
+     * @param table
+     * @param value
+     * @return a copy of the user_ids that have value in table, null if none
+     */
+    public PostingList get(String table, String value) {
+        PostingList user_ids = lookup(table, value);
+        return user_ids == null ? null : user_ids.copy();
+    }
+
+    /**
+     * Like get, but without copying: returns the cached posting list, reading
+     * it into the cache first if needed.
+     *
+     * @param table
+     * @param value
+     * @return the user_ids that have value in table, not to be modified, null
+     * if none
+     */
+    public PostingList lookup(String table, String value) {
+        PostingList user_ids = cache.get(table, value);
+        return user_ids != null ? user_ids : load(table, value);
+    }
+
+    /**
+     * Reads a posting list that missed the cache into it.
+     */
+    PostingList load(String table, String value) {
+        // Under the write lock of the key, so a write can not land between
+        // reading the posting list and caching it
+        synchronized (stripe(table, value)) {
+            PostingList user_ids = tree(table).get(value);
+            // JDBM hands out the instance held in its page cache. The writers
+            // below never change it in place, so it can be shared as is.
+            if (user_ids != null) {
+                cache.put(table, value, user_ids);
+            }
+            return user_ids;
+        }
+    }
+
+    /**
+     * Reads a table a page at a time, so it can be walked while it is being
+     * written to.
+     *
+     * @param table
+     * @param from first key to return, does not need to exist
+     * @param max number of keys to return at most
+     * @return up to max keys from from on in key order, with their posting
+     * lists, which are not to be modified
+     */
+    List<Map.Entry<String, PostingList>> page(String table, String from, int max) {
+        List<Map.Entry<String, PostingList>> page = new ArrayList<>(max);
+        // Any stripe keeps swap from dropping the table under the iterator
+        synchronized (stripe(table, from)) {
+            for (Map.Entry<String, PostingList> entry : tree(table).tailMap(from).entrySet()) {
+                if (page.size() == max) {
+                    break;
+                }
+                page.add(new SimpleImmutableEntry<>(entry.getKey(), entry.getValue()));
+            }
+        }
+        return page;
+    }
+
+    /**
+     * An empty table for a bulk load of table to fill, which swap then puts
+     * in its place. Whatever a bulk load that did not get to swap left behind
+     * is dropped first.
+     *
+     * @param table
+     * @return the new table, not seen by any other method until swapped in
+     * @throws IOException
+     */
+    PrimaryTreeMap<String, PostingList> fresh(String table) throws IOException {
+        String name = table + BULK_SUFFIX;
+        drop(name);
+        return BatchUpdate.fieldsMapTree(recMan, name);
+    }
+
+    /**
+     * Replaces each of tables with the one filled through fresh(table), in a
+     * single commit. Writes and lookups wait for the swap, the old tables are
+     * deleted and their cached posting lists are dropped.
+     *
+     * @param tables
+     * @throws IOException
+     */
+    void swap(Collection<String> tables) throws IOException {
+        // Before the stripes, which mutations take under the read lock
+        commitLock.writeLock().lock();
+        try {
+            swap(tables, 0);
+        } finally {
+            commitLock.writeLock().unlock();
+        }
+    }
+
+    // Takes every stripe, in order, then swaps
+    private void swap(Collection<String> tables, int stripe) throws IOException {
+        if (stripe < STRIPES) {
+            synchronized (stripes[stripe]) {
+                swap(tables, stripe + 1);
+            }
+            return;
+        }
+        for (String table : tables) {
+            long fresh = recMan.getNamedObject(table + BULK_SUFFIX);
+            if (fresh == 0) {
+                throw new IllegalStateException("No bulk loaded table to swap in for " + table);
+            }
+        }
+        for (String table : tables) {
+            long old = recMan.getNamedObject(table);
+            recMan.setNamedObject(table, recMan.getNamedObject(table + BULK_SUFFIX));
+            recMan.setNamedObject(table + BULK_SUFFIX, 0);
+            if (old != 0) {
+                delete(old);
+            }
+            this.tables.remove(table);
+            cache.invalidateTable(table);
+        }
+        commit();
+    }
+
+    private void drop(String name) throws IOException {
+        long recid = recMan.getNamedObject(name);
+        if (recid != 0) {
+            delete(recid);
+            recMan.setNamedObject(name, 0);
+        }
+    }
+
+    // Frees every page of a table
+    private void delete(long recid) throws IOException {
+        BTree<String, PostingList> tree = BTree.load(recMan, recid);
+        // Like treeMap, the serializer kept in the tree header can not be
+        // relied on
+        tree.setValueSerializer(PostingListSerializer.INSTANCE);
+        tree.delete();
+    }
+
+    /**
+     * Write a single user_id to a table into the fields map for either a
+     * job_title or industry.
+     *
+     * If tables exist for name or other fields that have yet to be defined
+     * this method should still work as long as the right table name is
+     * provided.
+     *
+     * @param table
+     * @param value
+     * @param user_id
+     */
+    public void add(String table, String value, int user_id) {
+        // The read-modify-write of a posting list must not interleave with
+        // another one on the same key, nor with a swap of the table
+        synchronized (stripe(table, value)) {
+            PrimaryTreeMap<String, PostingList> tree = tree(table);
+            PostingList user_ids = tree.get(value);
+            if (user_ids == null) {
+                PostingList new_user_ids = new PostingList();
+                new_user_ids.add(user_id);
+                tree.put(value, new_user_ids);
+                cache.refresh(table, value, new_user_ids);
+            } else if (!user_ids.contains(user_id)) {
+                // Copy on write: the cached instance may share a JDBM page
+                // with keys other threads are writing, which serializes it
+                PostingList new_user_ids = user_ids.copy();
+                new_user_ids.add(user_id);
+                tree.put(value, new_user_ids);
+                cache.refresh(table, value, new_user_ids);
+            }
+        }
+    }
+
+    /**
+     * Adds several user_ids for one value with a single write.
+     *
+     * @param table
+     * @param value
+     * @param user_ids
+     */
+    public void addAll(String table, String value, PostingList user_ids) {
+        synchronized (stripe(table, value)) {
+            PrimaryTreeMap<String, PostingList> tree = tree(table);
+            PostingList existing = tree.get(value);
+            PostingList merged;
+            if (existing == null) {
+                merged = user_ids.copy();
+            } else {
+                merged = existing.copy();
+                merged.addAll(user_ids);
+            }
+            tree.put(value, merged);
+            cache.refresh(table, value, merged);
+        }
+    }
+
+    /**
+     * Removes a user_id for the value from the fields map table. Used when the
+     * user document has been updated and the fields map needs to be updated to
+     * reflect the document change.
+     *
+     * @param table
+     * @param value
+     * @param user_id
+     */
+    public void remove(String table, String value, int user_id) {
+        synchronized (stripe(table, value)) {
+            PrimaryTreeMap<String, PostingList> tree = tree(table);
+            PostingList user_ids = tree.get(value);
+            if (user_ids != null && user_ids.contains(user_id)) {
+                PostingList new_user_ids = user_ids.copy();
+                new_user_ids.remove(user_id);
+                tree.put(value, new_user_ids);
+                cache.refresh(table, value, new_user_ids);
+            }
+        }
+    }
+
+    /**
+     * Makes every write so far durable. Waits for the GroupCommitter
+     * mutations being applied to the store.
+     *
+     * @throws IOException
+     */
+    public void commit() throws IOException {
+        commitLock.writeLock().lock();
+        try {
+            recMan.commit();
+        } finally {
+            commitLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the lock commit takes the write side of, see GroupCommitter
+     */
+    ReadWriteLock getCommitLock() {
+        return commitLock;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public PostingListCache getCache() {
+        return cache;
+    }
+
+    private Object stripe(String table, String value) {
+        int h = table.hashCode() * 31 + value.hashCode();
+        return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+    }
+}
@@ -0,0 +1,456 @@
+package BatchUpdate;
+
+import Database.DatabaseMock;
+import Database.UserData;
+import Metrics.PipelineMetrics;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Checks that the fields map of a DB still matches its documents and repairs
+ * it where it does not, without stopping the queue consumer. The fields map
+ * drifts when messages are lost or applied out of order, commits are skipped
+ * or users are deleted, and rebuilding it from scratch takes it offline.
+ *
+ * A pass splits the user_ids into ranges of 2^rangeBits ids and sums a hash
+ * of every (table, key, user_id) entry per range twice: once from the
+ * documents, once from the fields map. Only ranges whose sums differ are
+ * looked at again, a batch of ranges holding about maxBatchEntries entries
+ * at a time. For those, each user whose entries do not match has its
+ * document read again and its entries fixed one key at a time, like the
+ * queue consumer does, so a user that changed during the pass ends up with
+ * the entries of its latest document. Drift left by a write racing the pass
+ * is picked up by the next one.
+ *
+ * A pass reads at most maxRowsPerSecond documents plus fields map entries,
+ * repairs included, so it does not compete with production traffic, and
+ * every batch reads the fields map once more. It runs on a single low
+ * priority thread when started in the background. Results go to
+ * PipelineMetrics.
+ *
+ * @author Rob Fusco
+ */
+public class FieldsMapVerifier implements Closeable {
+
+    // 4096 user_ids per range
+    public static final int DEFAULT_RANGE_BITS = 12;
+    public static final int DEFAULT_MAX_ROWS_PER_SECOND = 200000;
+    // Entries of drifted ranges compared per user at once, bounds the heap a
+    // pass needs when a lot drifted, like a fields map that was emptied
+    public static final int DEFAULT_MAX_BATCH_ENTRIES = 1 << 17;
+
+    private static final int PAGE_SIZE = DatabaseMock.DEFAULT_SCAN_PAGE_SIZE;
+
+    private final DatabaseMock db;
+    private volatile int rangeBits = DEFAULT_RANGE_BITS;
+    private volatile int maxRowsPerSecond = DEFAULT_MAX_ROWS_PER_SECOND;
+    private volatile int maxBatchEntries = DEFAULT_MAX_BATCH_ENTRIES;
+    private ScheduledExecutorService scheduler;
+
+    // Sum of the entry hashes of a range, and their number
+    private static final class Digest {
+
+        long sum;
+        long count;
+
+        void add(long hash) {
+            sum += hash;
+            count++;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Digest)) {
+                return false;
+            }
+            Digest other = (Digest) o;
+            return sum == other.sum && count == other.count;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(sum) * 31 + Long.hashCode(count);
+        }
+    }
+
+    // Keeps a pass under rowsPerSecond, and ends it once interrupted whether
+    // or not it sleeps
+    private static final class Throttle {
+
+        private final int rowsPerSecond;
+        private final long start = System.nanoTime();
+        private long rows = 0;
+
+        Throttle(int rowsPerSecond) {
+            this.rowsPerSecond = rowsPerSecond;
+        }
+
+        void pace(long n) throws InterruptedException {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            rows += n;
+            if (rowsPerSecond <= 0) {
+                return;
+            }
+            long ahead = start + rows * 1000000000L / rowsPerSecond - System.nanoTime();
+            if (ahead > 1000000) {
+                TimeUnit.NANOSECONDS.sleep(ahead);
+            }
+        }
+    }
+
+    public FieldsMapVerifier(DatabaseMock db) {
+        this.db = db;
+    }
+
+    /**
+     * Runs a pass every periodMillis on a background thread, the first one
+     * periodMillis from now. Failed passes are logged.
+     *
+     * @param periodMillis time between the end of a pass and the start of the
+     * next
+     */
+    public synchronized void start(long periodMillis) {
+        if (scheduler != null) {
+            throw new IllegalStateException("Verifier already started");
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "fields-map-verifier-" + db.getName());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                verify();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } catch (IOException | RuntimeException ex) {
+                Logger.getLogger(FieldsMapVerifier.class.getName()).log(Level.SEVERE, "Fields map verification failed", ex);
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the background passes, interrupting one in progress, and waits
+     * for it to finish.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        ScheduledExecutorService stopping;
+        synchronized (this) {
+            stopping = scheduler;
+            scheduler = null;
+        }
+        if (stopping == null) {
+            return;
+        }
+        stopping.shutdownNow();
+        try {
+            stopping.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Compares the fields map with the documents once and repairs what
+     * drifted, in the calling thread.
+     *
+     * @return what was compared and repaired
+     * @throws IOException
+     * @throws InterruptedException if interrupted, what was repaired so far
+     * goes in with the next fields map commit
+     */
+    public VerifyStats verify() throws IOException, InterruptedException {
+        long start = System.currentTimeMillis();
+        int bits = rangeBits;
+        Throttle throttle = new Throttle(maxRowsPerSecond);
+        Collection<FieldIndex> indexes = FieldIndex.all();
+        try (FieldsMapStore store = FieldsMapStore.open(db)) {
+            Map<Integer, Digest> documents = new HashMap<>();
+            long rows = hashDocuments(indexes, bits, documents, throttle);
+            Map<Integer, Digest> postings = new HashMap<>();
+            long entries = hashPostings(store, indexes, bits, postings, throttle);
+
+            Set<Integer> ranges = new TreeSet<>(documents.keySet());
+            ranges.addAll(postings.keySet());
+            Set<Integer> drifted = new TreeSet<>();
+            for (int range : ranges) {
+                if (!Objects.equals(documents.get(range), postings.get(range))) {
+                    drifted.add(range);
+                }
+            }
+
+            int users = 0;
+            long repaired = 0;
+            int budget = maxBatchEntries;
+            Iterator<Integer> left = drifted.iterator();
+            while (left.hasNext()) {
+                // At least one range, however many entries it has
+                Set<Integer> batch = new HashSet<>();
+                long size = 0;
+                do {
+                    int range = left.next();
+                    batch.add(range);
+                    size += Math.max(count(documents.get(range)), count(postings.get(range)));
+                } while (left.hasNext() && size < budget);
+
+                Map<Integer, Set<Map.Entry<String, String>>> expected = readDocuments(indexes, bits, batch, throttle);
+                Map<Integer, Set<Map.Entry<String, String>>> actual = readPostings(store, indexes, bits, batch, throttle);
+                Set<Integer> candidates = new TreeSet<>(expected.keySet());
+                candidates.addAll(actual.keySet());
+                for (int user_id : candidates) {
+                    if (!Objects.equals(expected.get(user_id), actual.get(user_id))) {
+                        int fixed = repair(store, indexes, user_id, actual.getOrDefault(user_id, Collections.emptySet()), throttle);
+                        if (fixed > 0) {
+                            users++;
+                            repaired += fixed;
+                        }
+                    }
+                }
+                store.commit();
+            }
+
+            VerifyStats stats = new VerifyStats(ranges.size(), drifted.size(), rows, entries, users, repaired,
+                    System.currentTimeMillis() - start);
+            PipelineMetrics.get().fieldsMapVerified(stats.getRanges(), stats.getDriftRanges(), stats.getPostingsRepaired());
+            Logger.getLogger(FieldsMapVerifier.class.getName()).log(drifted.isEmpty() ? Level.FINE : Level.INFO,
+                    "Verified fields map {0}: {1}", new Object[]{BatchUpdate.getFieldsMapName(db), stats});
+            return stats;
+        }
+    }
+
+    private long hashDocuments(Collection<FieldIndex> indexes, int bits, Map<Integer, Digest> digests, Throttle throttle)
+            throws InterruptedException {
+        long rows = 0;
+        Iterator<Map.Entry<Integer, UserData>> iter = db.scanUserData(Integer.MIN_VALUE, null, PAGE_SIZE);
+        while (iter.hasNext()) {
+            Map.Entry<Integer, UserData> entry = iter.next();
+            int user_id = entry.getKey();
+            Digest digest = null;
+            for (FieldIndex index : indexes) {
+                String key = index.extract(entry.getValue());
+                if (key != null) {
+                    if (digest == null) {
+                        digest = digests.computeIfAbsent(user_id >> bits, r -> new Digest());
+                    }
+                    digest.add(hash(index.getTable(), key, user_id));
+                }
+            }
+            rows++;
+            throttle.pace(1);
+        }
+        return rows;
+    }
+
+    private long hashPostings(FieldsMapStore store, Collection<FieldIndex> indexes, int bits, Map<Integer, Digest> digests, Throttle throttle)
+            throws InterruptedException {
+        long entries = 0;
+        for (FieldIndex index : indexes) {
+            String table = index.getTable();
+            String from = "";
+            while (from != null) {
+                List<Map.Entry<String, PostingList>> page = store.page(table, from, PAGE_SIZE);
+                for (Map.Entry<String, PostingList> entry : page) {
+                    PostingList user_ids = entry.getValue();
+                    for (int i = 0; i < user_ids.size(); i++) {
+                        int user_id = user_ids.get(i);
+                        digests.computeIfAbsent(user_id >> bits, r -> new Digest()).add(hash(table, entry.getKey(), user_id));
+                    }
+                    entries += user_ids.size();
+                    throttle.pace(1 + user_ids.size());
+                }
+                from = next(page);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * @return the entries each user of the ranges should have by user_id
+     */
+    private Map<Integer, Set<Map.Entry<String, String>>> readDocuments(Collection<FieldIndex> indexes, int bits,
+            Set<Integer> ranges, Throttle throttle) throws InterruptedException {
+        Map<Integer, Set<Map.Entry<String, String>>> users = new HashMap<>();
+        for (int range : ranges) {
+            long end = ((long) range << bits) + (1L << bits);
+            Iterator<Map.Entry<Integer, UserData>> iter = db.scanUserData(range << bits,
+                    end > Integer.MAX_VALUE ? null : (int) end, PAGE_SIZE);
+            while (iter.hasNext()) {
+                Map.Entry<Integer, UserData> entry = iter.next();
+                Set<Map.Entry<String, String>> keys = keys(indexes, entry.getValue());
+                if (!keys.isEmpty()) {
+                    users.put(entry.getKey(), keys);
+                }
+                throttle.pace(1);
+            }
+        }
+        return users;
+    }
+
+    /**
+     * @return the entries the fields map has for each user of the ranges by
+     * user_id
+     */
+    private Map<Integer, Set<Map.Entry<String, String>>> readPostings(FieldsMapStore store, Collection<FieldIndex> indexes, int bits,
+            Set<Integer> ranges, Throttle throttle) throws InterruptedException {
+        Map<Integer, Set<Map.Entry<String, String>>> users = new HashMap<>();
+        for (FieldIndex index : indexes) {
+            String table = index.getTable();
+            String from = "";
+            while (from != null) {
+                List<Map.Entry<String, PostingList>> page = store.page(table, from, PAGE_SIZE);
+                for (Map.Entry<String, PostingList> entry : page) {
+                    PostingList user_ids = entry.getValue();
+                    for (int i = 0; i < user_ids.size(); i++) {
+                        int user_id = user_ids.get(i);
+                        if (ranges.contains(user_id >> bits)) {
+                            users.computeIfAbsent(user_id, u -> new HashSet<>())
+                                    .add(new SimpleImmutableEntry<>(table, entry.getKey()));
+                        }
+                    }
+                    throttle.pace(1 + user_ids.size());
+                }
+                from = next(page);
+            }
+        }
+        return users;
+    }
+
+    /**
+     * Gives a user the entries of its current document: adds the missing
+     * ones, removes those in found that it should not have.
+     *
+     * @param found entries the fields map was seen to have for the user
+     * @return number of entries added or removed
+     */
+    private int repair(FieldsMapStore store, Collection<FieldIndex> indexes, int user_id, Set<Map.Entry<String, String>> found,
+            Throttle throttle) throws InterruptedException {
+        UserData user_data = db.readUserData(user_id);
+        throttle.pace(1);
+        Set<Map.Entry<String, String>> wanted = user_data == null
+                ? Collections.emptySet()
+                : keys(indexes, user_data);
+        Set<Map.Entry<String, String>> keys = new HashSet<>(found);
+        keys.addAll(wanted);
+        int fixed = 0;
+        for (Map.Entry<String, String> key : keys) {
+            PostingList user_ids = store.lookup(key.getKey(), key.getValue());
+            throttle.pace(1);
+            boolean has = user_ids != null && user_ids.contains(user_id);
+            if (has && !wanted.contains(key)) {
+                store.remove(key.getKey(), key.getValue(), user_id);
+                fixed++;
+            } else if (!has && wanted.contains(key)) {
+                store.add(key.getKey(), key.getValue(), user_id);
+                fixed++;
+            }
+        }
+        return fixed;
+    }
+
+    private static long count(Digest digest) {
+        return digest == null ? 0 : digest.count;
+    }
+
+    private static Set<Map.Entry<String, String>> keys(Collection<FieldIndex> indexes, UserData user_data) {
+        Set<Map.Entry<String, String>> keys = new HashSet<>();
+        for (FieldIndex index : indexes) {
+            String key = index.extract(user_data);
+            if (key != null) {
+                keys.add(new SimpleImmutableEntry<>(index.getTable(), key));
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * @return the key the page after page starts at, null if page was the
+     * last
+     */
+    private static String next(List<Map.Entry<String, PostingList>> page) {
+        return page.size() < PAGE_SIZE ? null : page.get(page.size() - 1).getKey() + '\0';
+    }
+
+    /**
+     * 64 bit FNV-1a of table and key, mixed with user_id. Sums of these are
+     * compared, so it must not cancel out across entries.
+     */
+    static long hash(String table, String key, int user_id) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < table.length(); i++) {
+            h = (h ^ table.charAt(i)) * 0x100000001b3L;
+        }
+        h = (h ^ 0xffff) * 0x100000001b3L;
+        for (int i = 0; i < key.length(); i++) {
+            h = (h ^ key.charAt(i)) * 0x100000001b3L;
+        }
+        h ^= user_id * 0x9e3779b97f4a7c15L;
+        // splitmix64 finalizer
+        h = (h ^ (h >>> 30)) * 0xbf58476d1ce4e5b9L;
+        h = (h ^ (h >>> 27)) * 0x94d049bb133111ebL;
+        return h ^ (h >>> 31);
+    }
+
+    /**
+     * @param bits compare ranges of 2^bits user_ids, fewer bits means smaller
+     * ranges to rescan but more to keep sums for
+     */
+    public void setRangeBits(int bits) {
+        if (bits < 0 || bits > 31) {
+            throw new IllegalArgumentException("bits must be between 0 and 31");
+        }
+        this.rangeBits = bits;
+    }
+
+    public int getRangeBits() {
+        return rangeBits;
+    }
+
+    /**
+     * @param rows documents plus fields map entries read per second at most,
+     * 0 for no limit
+     */
+    public void setMaxRowsPerSecond(int rows) {
+        this.maxRowsPerSecond = rows;
+    }
+
+    public int getMaxRowsPerSecond() {
+        return maxRowsPerSecond;
+    }
+
+    /**
+     * @param entries entries of drifted ranges to compare at once, more means
+     * fewer reads of the fields map but more heap
+     */
+    public void setMaxBatchEntries(int entries) {
+        if (entries < 1) {
+            throw new IllegalArgumentException("entries must be positive");
+        }
+        this.maxBatchEntries = entries;
+    }
+
+    public int getMaxBatchEntries() {
+        return maxBatchEntries;
+    }
+}
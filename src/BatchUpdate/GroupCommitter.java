@@ -0,0 +1,215 @@
+package BatchUpdate;
+
+import Metrics.PipelineMetrics;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Groups fields map mutations into as few JDBM commits as a CommitPolicy
+ * allows, instead of one synchronous commit per mutation.
+ *
+ * Durability: a mutation is visible to readers of the same RecordManager as
+ * soon as mutate returns, but it is only on disk after the next commit. If the
+ * process dies, at most the mutations of one group (maxMutations, or
+ * maxDelayMillis worth) are lost and the fields map is left as of the last
+ * commit. Since rebuilding is idempotent, rerunning prePopulateFieldsMap
+ * repairs it. Call flush (or close) before shutting down, or register
+ * addShutdownHook, to commit whatever is pending.
+ *
+ * Commits never run in the middle of a mutation, so they never contain half
+ * of a read-modify-write. Mutations hold a lock shared and commits take it
+ * exclusively. A committer for a FieldsMapStore uses the commit lock of the
+ * store, which every commit of the store takes, so this also holds for the
+ * commits of its other handles, the FieldsMapVerifier and bulk loads.
+ *
+ * @author Rob Fusco
+ */
+public class GroupCommitter implements Closeable {
+
+    /**
+     * Makes pending mutations durable.
+     */
+    public interface Commit {
+
+        void commit() throws IOException;
+    }
+
+    /**
+     * One or more fields map writes that must be committed together.
+     */
+    public interface Mutation {
+
+        /**
+         * @return number of fields map entries written
+         * @throws IOException
+         */
+        int apply() throws IOException;
+    }
+
+    private final CommitPolicy policy;
+    private final Commit commit;
+    // Mutations share the read lock, commits take the write lock, which must
+    // be reentrant since flush holds it around commit
+    private final ReadWriteLock lock;
+    private final ScheduledExecutorService timer;
+
+    private long pending = 0;
+    private long firstPendingAt = 0;
+    private long commits = 0;
+    private boolean closed = false;
+
+    public GroupCommitter(CommitPolicy policy, Commit commit) {
+        this(policy, commit, new ReentrantReadWriteLock());
+    }
+
+    /**
+     * Group commits the writes to store, in step with every other commit of
+     * it.
+     *
+     * @param policy
+     * @param store
+     */
+    public GroupCommitter(CommitPolicy policy, FieldsMapStore store) {
+        this(policy, store::commit, store.getCommitLock());
+    }
+
+    private GroupCommitter(CommitPolicy policy, Commit commit, ReadWriteLock lock) {
+        this.policy = policy;
+        this.commit = commit;
+        this.lock = lock;
+        if (policy.getMaxDelayMillis() > 0) {
+            timer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "group-commit");
+                t.setDaemon(true);
+                return t;
+            });
+            long period = Math.max(1, policy.getMaxDelayMillis() / 2);
+            timer.scheduleWithFixedDelay(this::commitIfDue, period, period, TimeUnit.MILLISECONDS);
+        } else {
+            timer = null;
+        }
+    }
+
+    /**
+     * Applies a mutation and commits if the policy says the group is full.
+     *
+     * @param mutation
+     * @throws IOException
+     */
+    public void mutate(Mutation mutation) throws IOException {
+        int count;
+        lock.readLock().lock();
+        try {
+            if (closed) {
+                throw new IllegalStateException("GroupCommitter is closed");
+            }
+            count = mutation.apply();
+            if (count > 0) {
+                PipelineMetrics.get().fieldsMapMutated(count);
+                synchronized (this) {
+                    if (pending == 0) {
+                        firstPendingAt = System.currentTimeMillis();
+                    }
+                    pending += count;
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (policy.getMaxMutations() > 0 && getPending() >= policy.getMaxMutations()) {
+            flush();
+        }
+    }
+
+    /**
+     * Commits all pending mutations now.
+     *
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (pending > 0) {
+                long start = System.nanoTime();
+                commit.commit();
+                PipelineMetrics.get().fieldsMapCommitted(System.nanoTime() - start);
+                synchronized (this) {
+                    pending = 0;
+                    commits++;
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void commitIfDue() {
+        boolean due;
+        synchronized (this) {
+            due = pending > 0 && System.currentTimeMillis() - firstPendingAt >= policy.getMaxDelayMillis();
+        }
+        if (due) {
+            try {
+                flush();
+            } catch (IOException | RuntimeException ex) {
+                Logger.getLogger(GroupCommitter.class.getName()).log(Level.SEVERE, "Error committing Fields Map", ex);
+            }
+        }
+    }
+
+    /**
+     * Registers a JVM shutdown hook that commits whatever is pending.
+     *
+     * @return the hook, to pass to Runtime.removeShutdownHook
+     */
+    public Thread addShutdownHook() {
+        Thread hook = new Thread(() -> {
+            try {
+                flush();
+            } catch (IOException | RuntimeException ex) {
+                Logger.getLogger(GroupCommitter.class.getName()).log(Level.SEVERE, "Error committing Fields Map on shutdown", ex);
+            }
+        }, "group-commit-shutdown");
+        Runtime.getRuntime().addShutdownHook(hook);
+        return hook;
+    }
+
+    /**
+     * Commits what is pending and stops the commit timer. Mutations are
+     * rejected afterwards.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        if (timer != null) {
+            timer.shutdownNow();
+        }
+        lock.writeLock().lock();
+        try {
+            flush();
+            closed = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public synchronized long getPending() {
+        return pending;
+    }
+
+    public synchronized long getCommits() {
+        return commits;
+    }
+
+    public CommitPolicy getPolicy() {
+        return policy;
+    }
+}
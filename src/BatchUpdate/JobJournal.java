@@ -0,0 +1,290 @@
+package BatchUpdate;
+
+import Database.DatabaseMock;
+import Database.UserData.FieldType;
+import com.google.gson.Gson;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import jdbm.PrimaryTreeMap;
+import jdbm.RecordManager;
+import jdbm.RecordManagerFactory;
+
+/**
+ * Persisted record of the batch field changes of a database, so one cut short
+ * by a restart can be resumed instead of run again from scratch.
+ *
+ * A job is recorded with the user_ids it was started with, cut into the
+ * chunks it is written in. Each chunk is dropped from the journal and
+ * committed as soon as it is written or dead-lettered, which is the
+ * checkpoint: resuming a job only runs the chunks still in the journal. A
+ * chunk that was being written when the process stopped is written again,
+ * which change_chunk makes harmless.
+ *
+ * Finished jobs are kept for their status, up to maxFinishedJobs of them.
+ *
+ * Handles are shared like FieldsMapStore handles, open returns the open
+ * journal of a database if there is one. Always close what you open. Safe to
+ * use from several threads.
+ *
+ * @author Rob Fusco
+ */
+public class JobJournal implements Closeable {
+
+    public static final int DEFAULT_MAX_FINISHED_JOBS = 1000;
+
+    private static final String jobsTable = "jobs";
+    private static final String chunksTable = "jobChunks";
+    private static final Gson gson = new Gson();
+
+    private static final StoreRegistry<JobJournal> journals = new StoreRegistry<>("Job journal");
+
+    private final String name;
+    private final RecordManager recMan;
+    private final PrimaryTreeMap<Long, String> jobs;
+    // Chunks left by job id and first user_id, see chunkKey
+    private final PrimaryTreeMap<Long, PostingList> chunks;
+    private final int maxFinishedJobs;
+    // Jobs with a run in this process
+    private final Set<Long> running = new HashSet<>();
+    private long nextId;
+
+    private JobJournal(String name, int maxFinishedJobs) throws IOException {
+        this.name = name;
+        this.maxFinishedJobs = maxFinishedJobs;
+        this.recMan = RecordManagerFactory.createRecordManager(name);
+        this.jobs = recMan.treeMap(jobsTable);
+        this.chunks = recMan.treeMap(chunksTable, PostingListSerializer.INSTANCE);
+        this.nextId = jobs.isEmpty() ? 0 : jobs.lastKey() + 1;
+    }
+
+    /**
+     * Opens the job journal of db, or shares it if it is already open.
+     *
+     * @param db
+     * @return a handle that must be closed when no longer needed
+     * @throws IOException
+     */
+    public static JobJournal open(DatabaseMock db) throws IOException {
+        String name = getJobsName(db);
+        return journals.open(name, n -> new JobJournal(n, DEFAULT_MAX_FINISHED_JOBS));
+    }
+
+    /**
+     * Releases this handle, the last one to be closed closes the DB.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        journals.release(name, this, recMan::close);
+    }
+
+    /**
+     * Records and commits a new job, not running yet.
+     *
+     * @param field
+     * @param oldValue
+     * @param newValue
+     * @param userChunks the user_ids to change, in the chunks they are written
+     * in, none of them empty
+     * @return the job
+     * @throws IOException
+     */
+    public synchronized BatchJob create(FieldType field, String oldValue, String newValue, List<List<Integer>> userChunks) throws IOException {
+        int users = 0;
+        for (List<Integer> chunk : userChunks) {
+            users += chunk.size();
+        }
+        BatchJob job = new BatchJob(nextId++, field, oldValue, newValue, users, System.currentTimeMillis());
+        for (List<Integer> chunk : userChunks) {
+            chunks.put(chunkKey(job.getId(), chunk.get(0)), new PostingList(chunk));
+        }
+        jobs.put(job.getId(), gson.toJson(job));
+        trimFinished();
+        recMan.commit();
+        return job;
+    }
+
+    /**
+     * Marks a run of a job as started in this process.
+     *
+     * @param id
+     * @return the job, null if there is no such job or it is already running
+     * in this process
+     * @throws IOException
+     */
+    public synchronized BatchJob start(long id) throws IOException {
+        BatchJob job = get(id);
+        if (job == null || running.contains(id)) {
+            return null;
+        }
+        job.started(System.currentTimeMillis());
+        update(job);
+        running.add(id);
+        return job;
+    }
+
+    /**
+     * @param id
+     * @return the chunks of users the job has left to write, in user_id order
+     */
+    public synchronized List<List<Integer>> remaining(long id) {
+        List<List<Integer>> left = new ArrayList<>();
+        for (PostingList chunk : chunks.subMap(id << 32, (id + 1) << 32).values()) {
+            List<Integer> user_ids = new ArrayList<>(chunk.size());
+            for (int i = 0; i < chunk.size(); i++) {
+                user_ids.add(chunk.get(i));
+            }
+            left.add(user_ids);
+        }
+        return left;
+    }
+
+    /**
+     * Checkpoints a chunk that was written.
+     *
+     * @param id
+     * @param user_ids the chunk
+     * @throws IOException
+     */
+    public synchronized void chunkDone(long id, List<Integer> user_ids) throws IOException {
+        BatchJob job = get(id);
+        if (job != null && chunks.remove(chunkKey(id, user_ids.get(0))) != null) {
+            job.chunkDone(user_ids.size(), System.currentTimeMillis());
+            update(job);
+        }
+    }
+
+    /**
+     * Checkpoints a chunk whose users went to the DeadLetterStore, they are
+     * not part of the job any more.
+     *
+     * @param id
+     * @param user_ids the chunk
+     * @throws IOException
+     */
+    public synchronized void chunkDeadLettered(long id, List<Integer> user_ids) throws IOException {
+        BatchJob job = get(id);
+        if (job != null && chunks.remove(chunkKey(id, user_ids.get(0))) != null) {
+            job.chunkDeadLettered(user_ids.size(), System.currentTimeMillis());
+            update(job);
+        }
+    }
+
+    /**
+     * Counts a chunk that failed, it stays in the journal for the next run.
+     *
+     * @param id
+     * @param user_ids the chunk
+     * @throws IOException
+     */
+    public synchronized void chunkFailed(long id, List<Integer> user_ids) throws IOException {
+        BatchJob job = get(id);
+        if (job != null) {
+            job.chunkFailed(user_ids.size(), System.currentTimeMillis());
+            update(job);
+        }
+    }
+
+    /**
+     * Ends the run of a job in this process: DONE if it has no chunks left,
+     * FAILED otherwise.
+     *
+     * @param id
+     * @return the job
+     * @throws IOException
+     */
+    public synchronized BatchJob finish(long id) throws IOException {
+        running.remove(id);
+        BatchJob job = get(id);
+        if (job != null) {
+            job.finished(remaining(id).isEmpty(), System.currentTimeMillis());
+            update(job);
+        }
+        return job;
+    }
+
+    /**
+     * @param id
+     * @return the job as of its last checkpoint, null if there is none
+     */
+    public synchronized BatchJob get(long id) {
+        String json = jobs.get(id);
+        return json == null ? null : gson.fromJson(json, BatchJob.class);
+    }
+
+    /**
+     * @return every job by id, oldest first
+     */
+    public synchronized Map<Long, BatchJob> list() {
+        Map<Long, BatchJob> all = new LinkedHashMap<>();
+        for (Map.Entry<Long, String> entry : jobs.entrySet()) {
+            all.put(entry.getKey(), gson.fromJson(entry.getValue(), BatchJob.class));
+        }
+        return all;
+    }
+
+    /**
+     * @return ids of the jobs that are not DONE and have no run in this
+     * process, e.g. those cut short by a restart, oldest first
+     */
+    public synchronized List<Long> resumable() {
+        List<Long> ids = new ArrayList<>();
+        for (Map.Entry<Long, BatchJob> entry : list().entrySet()) {
+            if (entry.getValue().getStatus() != BatchJob.Status.DONE && !running.contains(entry.getKey())) {
+                ids.add(entry.getKey());
+            }
+        }
+        return ids;
+    }
+
+    private void update(BatchJob job) throws IOException {
+        jobs.put(job.getId(), gson.toJson(job));
+        recMan.commit();
+    }
+
+    // Drops the oldest DONE jobs over maxFinishedJobs
+    private void trimFinished() {
+        List<Long> done = new ArrayList<>();
+        for (Map.Entry<Long, BatchJob> entry : list().entrySet()) {
+            if (entry.getValue().getStatus() == BatchJob.Status.DONE) {
+                done.add(entry.getKey());
+            }
+        }
+        Iterator<Long> iter = done.iterator();
+        for (int excess = done.size() - maxFinishedJobs; excess > 0; excess--) {
+            jobs.remove(iter.next());
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Job id in the high half, first user_id of the chunk with its sign bit
+     * flipped in the low half, so the chunks of a job are a key range in
+     * user_id order, negative user_ids first.
+     */
+    private static long chunkKey(long id, int first_user_id) {
+        return (id << 32) | ((first_user_id ^ 0x80000000) & 0xffffffffL);
+    }
+
+    /**
+     * Convenience method, consistently name the job journal DB based on the DB
+     * it is for
+     *
+     * @param db
+     * @return a job journal DB name with the DB name appended to the end
+     */
+    public static String getJobsName(DatabaseMock db) {
+        return "Jobs4" + db.getName();
+    }
+}
@@ -0,0 +1,177 @@
+package BatchUpdate;
+
+import Database.DatabaseMock;
+import Database.UserData;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Rebuilds the fields maps of a DB using several cores.
+ *
+ * The user_id key space is split into ranges. Each range is scanned, parsed
+ * and aggregated into in-memory postings on its own thread, without touching
+ * the fields map DB. The partial postings are then merged and every fields map
+ * key is written exactly once, followed by a single commit.
+ *
+ * @author Rob Fusco
+ */
+class ParallelFieldsMapBuilder {
+
+    // More ranges than threads so a range with a dense run of user_ids does
+    // not leave the other threads idle at the end
+    private static final int PARTITIONS_PER_THREAD = 4;
+
+    private ParallelFieldsMapBuilder() {
+    }
+
+    /**
+     * Postings aggregated from one range of user_ids, per index.
+     */
+    private static class Partial {
+
+        long rows = 0;
+        final Map<FieldIndex, Map<String, PostingList>> postings = new HashMap<>();
+
+        Partial(Collection<FieldIndex> indexes) {
+            for (FieldIndex index : indexes) {
+                postings.put(index, new HashMap<>());
+            }
+        }
+
+        void merge(Partial other) {
+            rows += other.rows;
+            for (Map.Entry<FieldIndex, Map<String, PostingList>> entry : postings.entrySet()) {
+                mergeInto(entry.getValue(), other.postings.get(entry.getKey()));
+            }
+        }
+
+        private static void mergeInto(Map<String, PostingList> into, Map<String, PostingList> from) {
+            for (Map.Entry<String, PostingList> entry : from.entrySet()) {
+                PostingList user_ids = into.get(entry.getKey());
+                if (user_ids == null) {
+                    into.put(entry.getKey(), entry.getValue());
+                } else {
+                    user_ids.addAll(entry.getValue());
+                }
+            }
+        }
+    }
+
+    static RebuildStats build(DatabaseMock db, int threads) throws IOException {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be positive");
+        }
+        long start = System.currentTimeMillis();
+        Integer first = db.firstUserId();
+        Integer last = db.lastUserId();
+        if (first == null) {
+            return new RebuildStats(0, 0, 0, System.currentTimeMillis() - start);
+        }
+
+        // Every partition must build the same indexes
+        Collection<FieldIndex> indexes = FieldIndex.all();
+        List<Integer> bounds = split(first, last, threads * PARTITIONS_PER_THREAD);
+        int partitions = bounds.size() - 1;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        Partial merged = new Partial(indexes);
+        try {
+            List<Future<Partial>> futures = new ArrayList<>();
+            for (int i = 0; i < partitions; i++) {
+                int from = bounds.get(i);
+                Integer to = bounds.get(i + 1);
+                futures.add(pool.submit(() -> aggregate(db, indexes, from, to)));
+            }
+            for (Future<Partial> future : futures) {
+                merged.merge(future.get());
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted rebuilding fields map for " + db.getName());
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw new IOException("Error rebuilding fields map for " + db.getName(), ex.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+
+        long keys = 0;
+        try (FieldsMapStore store = FieldsMapStore.open(db)) {
+            for (Map.Entry<FieldIndex, Map<String, PostingList>> entry : merged.postings.entrySet()) {
+                keys += write(store, entry.getKey().getTable(), entry.getValue());
+            }
+            store.commit();
+        }
+        return new RebuildStats(merged.rows, keys, partitions, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Splits [first, last] into at most count ranges of equal key width.
+     *
+     * @return range bounds, range i is [bounds[i], bounds[i + 1]). The last
+     * bound is null meaning the end of the table.
+     */
+    private static List<Integer> split(int first, int last, int count) {
+        long span = (long) last - first + 1;
+        long width = Math.max(1, (span + count - 1) / count);
+        List<Integer> bounds = new ArrayList<>();
+        for (long from = first; from <= last; from += width) {
+            bounds.add((int) from);
+        }
+        bounds.add(null);
+        return bounds;
+    }
+
+    private static Partial aggregate(DatabaseMock db, Collection<FieldIndex> indexes, int from, Integer to) {
+        Partial partial = new Partial(indexes);
+        Iterator<Map.Entry<Integer, UserData>> iter = db.scanUserData(from, to, DatabaseMock.DEFAULT_SCAN_PAGE_SIZE);
+        while (iter.hasNext()) {
+            Map.Entry<Integer, UserData> entry = iter.next();
+            UserData user_data = entry.getValue();
+            if (user_data != null) {
+                for (FieldIndex index : indexes) {
+                    add(partial.postings.get(index), index.extract(user_data), entry.getKey());
+                }
+                partial.rows++;
+            }
+        }
+        return partial;
+    }
+
+    private static void add(Map<String, PostingList> postings, String value, int user_id) {
+        if (value == null) {
+            return;
+        }
+        PostingList user_ids = postings.get(value);
+        if (user_ids == null) {
+            user_ids = new PostingList();
+            postings.put(value, user_ids);
+        }
+        user_ids.add(user_id);
+    }
+
+    /**
+     * Writes every key once. Like prePopulateFieldsMap, user_ids already in
+     * the fields map are kept.
+     */
+    private static long write(FieldsMapStore store, String table, Map<String, PostingList> postings) {
+        for (Map.Entry<String, PostingList> entry : postings.entrySet()) {
+            store.addAll(table, entry.getKey(), entry.getValue());
+        }
+        return postings.size();
+    }
+}
@@ -0,0 +1,298 @@
+package BatchUpdate;
+
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * The value of a fields map entry: the unique set of user_ids that have a
+ * given job_title or industry.
+ *
+ * The user_ids are kept as a sorted primitive int array rather than a
+ * HashSet of boxed Integers, which makes a posting list a few bytes per user
+ * in memory and, through PostingListSerializer, on disk. It is still a
+ * Set&lt;Integer&gt; so callers can treat it like any other set, the int
+ * methods just avoid boxing.
+ *
+ * Not thread safe.
+ *
+ * @author Rob Fusco
+ */
+public class PostingList extends AbstractSet<Integer> {
+
+    private static final int[] EMPTY = new int[0];
+
+    private int[] ids;
+    private int size;
+    private int modCount = 0;
+
+    public PostingList() {
+        this.ids = EMPTY;
+        this.size = 0;
+    }
+
+    public PostingList(Collection<Integer> user_ids) {
+        this();
+        int[] sorted = new int[user_ids.size()];
+        int i = 0;
+        for (Integer user_id : user_ids) {
+            sorted[i++] = user_id;
+        }
+        Arrays.sort(sorted);
+        for (int user_id : sorted) {
+            add(user_id);
+        }
+    }
+
+    /**
+     * Wraps an array that is already sorted and free of duplicates, without
+     * copying it.
+     */
+    PostingList(int[] sortedIds, int size) {
+        this.ids = sortedIds;
+        this.size = size;
+    }
+
+    /**
+     * @param user_id
+     * @return true if user_id was not in the list yet
+     */
+    public boolean add(int user_id) {
+        // Fast path for user_ids that arrive in order, e.g. during a scan
+        if (size == 0 || user_id > ids[size - 1]) {
+            ensureCapacity(size + 1);
+            ids[size++] = user_id;
+            modCount++;
+            return true;
+        }
+        int pos = Arrays.binarySearch(ids, 0, size, user_id);
+        if (pos >= 0) {
+            return false;
+        }
+        int insert = -(pos + 1);
+        ensureCapacity(size + 1);
+        System.arraycopy(ids, insert, ids, insert + 1, size - insert);
+        ids[insert] = user_id;
+        size++;
+        modCount++;
+        return true;
+    }
+
+    /**
+     * @param user_id
+     * @return true if user_id was in the list
+     */
+    public boolean remove(int user_id) {
+        int pos = Arrays.binarySearch(ids, 0, size, user_id);
+        if (pos < 0) {
+            return false;
+        }
+        removeAt(pos);
+        return true;
+    }
+
+    public boolean contains(int user_id) {
+        return Arrays.binarySearch(ids, 0, size, user_id) >= 0;
+    }
+
+    /**
+     * Adds every user_id of other with a single linear merge.
+     *
+     * @param other
+     */
+    public void addAll(PostingList other) {
+        if (other.size == 0) {
+            return;
+        }
+        int[] merged = new int[size + other.size];
+        int i = 0, j = 0, n = 0;
+        while (i < size && j < other.size) {
+            int a = ids[i];
+            int b = other.ids[j];
+            if (a < b) {
+                merged[n++] = a;
+                i++;
+            } else if (b < a) {
+                merged[n++] = b;
+                j++;
+            } else {
+                merged[n++] = a;
+                i++;
+                j++;
+            }
+        }
+        while (i < size) {
+            merged[n++] = ids[i++];
+        }
+        while (j < other.size) {
+            merged[n++] = other.ids[j++];
+        }
+        ids = merged;
+        size = n;
+        modCount++;
+    }
+
+    /**
+     * Union of several lists in a single pass into one array, instead of
+     * copying the growing result once per list like repeated addAll. Lists
+     * whose user_ids follow one another, like those of a scan's runs, are
+     * just concatenated.
+     *
+     * @param lists left unchanged
+     * @return a new list
+     */
+    static PostingList union(List<PostingList> lists) {
+        List<PostingList> parts = new ArrayList<>();
+        long total = 0;
+        for (PostingList list : lists) {
+            if (list.size > 0) {
+                parts.add(list);
+                total += list.size;
+            }
+        }
+        int[] merged = new int[Math.toIntExact(total)];
+        parts.sort(Comparator.comparingInt(list -> list.ids[0]));
+        boolean disjoint = true;
+        for (int p = 1; p < parts.size() && disjoint; p++) {
+            PostingList before = parts.get(p - 1);
+            disjoint = parts.get(p).ids[0] > before.ids[before.size - 1];
+        }
+        int n = 0;
+        if (disjoint) {
+            for (PostingList part : parts) {
+                System.arraycopy(part.ids, 0, merged, n, part.size);
+                n += part.size;
+            }
+        } else {
+            // Heads are {part, position}, smallest user_id first
+            PriorityQueue<int[]> heads = new PriorityQueue<>(parts.size(),
+                    Comparator.comparingInt(head -> parts.get(head[0]).ids[head[1]]));
+            for (int p = 0; p < parts.size(); p++) {
+                heads.add(new int[]{p, 0});
+            }
+            while (!heads.isEmpty()) {
+                int[] head = heads.poll();
+                PostingList part = parts.get(head[0]);
+                int user_id = part.ids[head[1]];
+                if (n == 0 || merged[n - 1] != user_id) {
+                    merged[n++] = user_id;
+                }
+                if (++head[1] < part.size) {
+                    heads.add(head);
+                }
+            }
+        }
+        return new PostingList(merged, n);
+    }
+
+    /**
+     * @param index
+     * @return the index-th smallest user_id
+     */
+    public int get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + size);
+        }
+        return ids[index];
+    }
+
+    /**
+     * @return an independent copy of this list
+     */
+    public PostingList copy() {
+        return new PostingList(toIntArray(), size);
+    }
+
+    /**
+     * @return a sorted copy of the user_ids
+     */
+    public int[] toIntArray() {
+        return Arrays.copyOf(ids, size);
+    }
+
+    @Override
+    public boolean add(Integer user_id) {
+        return add(user_id.intValue());
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        return o instanceof Integer && remove(((Integer) o).intValue());
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return o instanceof Integer && contains(((Integer) o).intValue());
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void clear() {
+        ids = EMPTY;
+        size = 0;
+        modCount++;
+    }
+
+    @Override
+    public Iterator<Integer> iterator() {
+        return new Iterator<Integer>() {
+            private int next = 0;
+            private int last = -1;
+            private int expectedModCount = modCount;
+
+            @Override
+            public boolean hasNext() {
+                return next < size;
+            }
+
+            @Override
+            public Integer next() {
+                if (expectedModCount != modCount) {
+                    throw new ConcurrentModificationException();
+                }
+                if (next >= size) {
+                    throw new NoSuchElementException();
+                }
+                last = next;
+                return ids[next++];
+            }
+
+            @Override
+            public void remove() {
+                if (last < 0) {
+                    throw new IllegalStateException();
+                }
+                if (expectedModCount != modCount) {
+                    throw new ConcurrentModificationException();
+                }
+                removeAt(last);
+                next = last;
+                last = -1;
+                expectedModCount = modCount;
+            }
+        };
+    }
+
+    private void removeAt(int pos) {
+        System.arraycopy(ids, pos + 1, ids, pos, size - pos - 1);
+        size--;
+        modCount++;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > ids.length) {
+            ids = Arrays.copyOf(ids, Math.max(capacity, Math.max(4, ids.length + (ids.length >> 1))));
+        }
+    }
+}
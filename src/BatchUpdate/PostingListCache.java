@@ -0,0 +1,267 @@
+package BatchUpdate;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Posting lists of recently looked up fields map keys, kept in memory so hot
+ * job titles and industries are not read and deserialized from disk on every
+ * lookup.
+ *
+ * The cache is bounded by weight, the number of user_ids it holds plus a
+ * fixed overhead per entry, and evicts the least recently used entries once
+ * it is over maxWeight. A posting list heavier than that on its own is not
+ * cached.
+ *
+ * There is one cache per fields map, shared by every FieldsMapStore handle on
+ * it, see forFieldsMap. FieldsMapStore keeps it up to date: its writes replace
+ * the cached posting list of the key they change, handing out a raw table
+ * drops the cached entries of that table, and closing the last handle clears
+ * it, since the files may be changed once closed. This assumes this JVM is
+ * the only writer while a handle is open, which JDBM's file lock ensures.
+ *
+ * Cached posting lists are shared and must never be modified. Registered as
+ * BatchJobsDB:type=PostingListCache,name=[fields map] with JMX.
+ *
+ * @author Rob Fusco
+ */
+public class PostingListCache implements PostingListCacheMBean {
+
+    /**
+     * 4M user_ids, about 16MB of posting lists.
+     */
+    public static final long DEFAULT_MAX_WEIGHT = 4L << 20;
+
+    // Weight of an entry on top of its user_ids: key, map entry, list header
+    private static final int ENTRY_WEIGHT = 32;
+
+    // Caches by fields map name
+    private static final Map<String, PostingListCache> caches = new HashMap<>();
+    private static long defaultMaxWeight = DEFAULT_MAX_WEIGHT;
+
+    private final String name;
+    private final LinkedHashMap<Key, PostingList> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long maxWeight;
+    private long weight = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    private static final class Key {
+
+        final String table;
+        final String value;
+
+        Key(String table, String value) {
+            this.table = table;
+            this.value = value;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return table.equals(other.table) && value.equals(other.value);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(table, value);
+        }
+    }
+
+    PostingListCache(String name, long maxWeight) {
+        this.name = name;
+        this.maxWeight = maxWeight;
+    }
+
+    /**
+     * @param name fields map name, see BatchUpdate.getFieldsMapName
+     * @return the cache of that fields map, created and registered with JMX
+     * on first use
+     */
+    public static PostingListCache forFieldsMap(String name) {
+        synchronized (caches) {
+            PostingListCache cache = caches.get(name);
+            if (cache == null) {
+                cache = new PostingListCache(name, defaultMaxWeight);
+                caches.put(name, cache);
+                register(cache);
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * Sets the weight limit of caches created from now on.
+     *
+     * @param maxWeight 0 to not cache at all
+     */
+    public static void setDefaultMaxWeight(long maxWeight) {
+        synchronized (caches) {
+            defaultMaxWeight = maxWeight;
+        }
+    }
+
+    /**
+     * @param table
+     * @param value
+     * @return the cached posting list, not to be modified, or null
+     */
+    public synchronized PostingList get(String table, String value) {
+        PostingList user_ids = entries.get(new Key(table, value));
+        if (user_ids == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return user_ids;
+    }
+
+    /**
+     * Caches a posting list that was read from the fields map.
+     *
+     * @param table
+     * @param value
+     * @param user_ids not to be modified once cached
+     */
+    synchronized void put(String table, String value, PostingList user_ids) {
+        Key key = new Key(table, value);
+        drop(entries.remove(key));
+        if (weigh(user_ids) <= maxWeight) {
+            entries.put(key, user_ids);
+            weight += weigh(user_ids);
+            evict();
+        }
+    }
+
+    /**
+     * Replaces the posting list of a key that was written, if it is cached.
+     *
+     * @param table
+     * @param value
+     * @param user_ids the posting list that was written, not to be modified
+     * once cached
+     */
+    synchronized void refresh(String table, String value, PostingList user_ids) {
+        Key key = new Key(table, value);
+        PostingList cached = entries.get(key);
+        if (cached != null) {
+            weight += weigh(user_ids) - weigh(cached);
+            entries.put(key, user_ids);
+            evict();
+        }
+    }
+
+    /**
+     * Drops every cached posting list of table.
+     *
+     * @param table
+     */
+    synchronized void invalidateTable(String table) {
+        Iterator<Map.Entry<Key, PostingList>> iter = entries.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<Key, PostingList> entry = iter.next();
+            if (entry.getKey().table.equals(table)) {
+                drop(entry.getValue());
+                iter.remove();
+            }
+        }
+    }
+
+    @Override
+    public synchronized void clear() {
+        entries.clear();
+        weight = 0;
+    }
+
+    /**
+     * @param maxWeight 0 to not cache at all
+     */
+    public synchronized void setMaxWeight(long maxWeight) {
+        this.maxWeight = maxWeight;
+        evict();
+    }
+
+    @Override
+    public synchronized long getMaxWeight() {
+        return maxWeight;
+    }
+
+    @Override
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    @Override
+    public synchronized int getEntries() {
+        return entries.size();
+    }
+
+    @Override
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    @Override
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    @Override
+    public synchronized double getHitRatio() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    @Override
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    private void evict() {
+        Iterator<PostingList> iter = entries.values().iterator();
+        while (weight > maxWeight && iter.hasNext()) {
+            drop(iter.next());
+            iter.remove();
+            evictions++;
+        }
+    }
+
+    private void drop(PostingList user_ids) {
+        if (user_ids != null) {
+            weight -= weigh(user_ids);
+        }
+    }
+
+    private static long weigh(PostingList user_ids) {
+        return user_ids.size() + ENTRY_WEIGHT;
+    }
+
+    private static void register(PostingListCache cache) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("BatchJobsDB:type=PostingListCache,name=" + ObjectName.quote(cache.name));
+            if (!server.isRegistered(name)) {
+                server.registerMBean(cache, name);
+            }
+        } catch (JMException | RuntimeException ex) {
+            Logger.getLogger(PostingListCache.class.getName()).log(Level.WARNING, "Could not register cache " + cache.name, ex);
+        }
+    }
+}
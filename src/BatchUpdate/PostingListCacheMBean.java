@@ -0,0 +1,31 @@
+package BatchUpdate;
+
+/**
+ * JMX view of a PostingListCache.
+ *
+ * @author Rob Fusco
+ */
+public interface PostingListCacheMBean {
+
+    long getMaxWeight();
+
+    /**
+     * @return user_ids cached plus the overhead of each entry
+     */
+    long getWeight();
+
+    int getEntries();
+
+    long getHits();
+
+    long getMisses();
+
+    double getHitRatio();
+
+    long getEvictions();
+
+    /**
+     * Drops every cached posting list.
+     */
+    void clear();
+}
@@ -0,0 +1,71 @@
+package BatchUpdate;
+
+import java.io.IOException;
+import java.io.Serializable;
+import jdbm.Serializer;
+import jdbm.SerializerInput;
+import jdbm.SerializerOutput;
+
+/**
+ * JDBM serializer for fields map values.
+ *
+ * A posting list is written as a format byte, the number of user_ids and then
+ * the sorted user_ids as packed varints: the first one zig-zag encoded (it may
+ * be negative), every following one as the gap from the previous one. Dense
+ * runs of user_ids take a byte each.
+ *
+ * @author Rob Fusco
+ */
+public class PostingListSerializer implements Serializer<PostingList>, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final PostingListSerializer INSTANCE = new PostingListSerializer();
+
+    // Leaves room for other encodings (e.g. bitmaps for very dense lists)
+    private static final int FORMAT_DELTA_VARINT = 1;
+
+    @Override
+    public void serialize(SerializerOutput out, PostingList list) throws IOException {
+        out.write(FORMAT_DELTA_VARINT);
+        int size = list.size();
+        out.writePackedInt(size);
+        if (size == 0) {
+            return;
+        }
+        int previous = list.get(0);
+        out.writePackedLong(zigZag(previous));
+        for (int i = 1; i < size; i++) {
+            int user_id = list.get(i);
+            out.writePackedLong((long) user_id - previous);
+            previous = user_id;
+        }
+    }
+
+    @Override
+    public PostingList deserialize(SerializerInput in) throws IOException, ClassNotFoundException {
+        int format = in.read();
+        if (format != FORMAT_DELTA_VARINT) {
+            throw new IOException("Unknown posting list format " + format);
+        }
+        int size = in.readPackedInt();
+        int[] ids = new int[size];
+        if (size > 0) {
+            long previous = unZigZag(in.readPackedLong());
+            ids[0] = (int) previous;
+            for (int i = 1; i < size; i++) {
+                previous += in.readPackedLong();
+                ids[i] = (int) previous;
+            }
+        }
+        return new PostingList(ids, size);
+    }
+
+    private static long zigZag(int value) {
+        return ((long) value << 1) ^ ((long) value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
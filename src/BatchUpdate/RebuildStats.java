@@ -0,0 +1,57 @@
+package BatchUpdate;
+
+/**
+ * Outcome of a fields map rebuild: how many rows were read and how fast.
+ *
+ * @author Rob Fusco
+ */
+public class RebuildStats {
+
+    private final long rows;
+    private final long keysWritten;
+    private final int partitions;
+    private final long elapsedMillis;
+
+    RebuildStats(long rows, long keysWritten, int partitions, long elapsedMillis) {
+        this.rows = rows;
+        this.keysWritten = keysWritten;
+        this.partitions = partitions;
+        this.elapsedMillis = elapsedMillis;
+    }
+
+    /**
+     * @return number of user documents read from the DB
+     */
+    public long getRows() {
+        return rows;
+    }
+
+    /**
+     * @return number of fields map keys written, across all fields maps
+     */
+    public long getKeysWritten() {
+        return keysWritten;
+    }
+
+    /**
+     * @return ranges of user_ids scanned in parallel, or sorted runs spilled
+     * to disk by a bulk load
+     */
+    public int getPartitions() {
+        return partitions;
+    }
+
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    public double getRowsPerSecond() {
+        return elapsedMillis == 0 ? rows * 1000.0 : rows * 1000.0 / elapsedMillis;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d rows in %d ms (%.0f rows/s) over %d partitions, %d keys written",
+                rows, elapsedMillis, getRowsPerSecond(), partitions, keysWritten);
+    }
+}
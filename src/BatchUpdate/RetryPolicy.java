@@ -0,0 +1,139 @@
+package BatchUpdate;
+
+import Metrics.PipelineMetrics;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * How DB writes that time out are retried: up to maxAttempts attempts,
+ * sleeping an exponentially growing, randomly jittered backoff in between,
+ * and never past a total deadline. The jitter keeps writer threads that timed
+ * out together from retrying together, so an overloaded DB gets room to
+ * recover instead of a retry storm. A limit of 0 switches that limit off.
+ *
+ * @author Rob Fusco
+ */
+public class RetryPolicy {
+
+    /**
+     * Up to 8 attempts, backing off from 50ms up to 5s, for at most a minute.
+     */
+    public static final RetryPolicy DEFAULT = new RetryPolicy(8, 50, 5000, 60000);
+
+    /**
+     * A single attempt, for callers that handle timeouts themselves.
+     */
+    public static final RetryPolicy NONE = new RetryPolicy(1, 0, 0, 0);
+
+    /**
+     * Something that may time out and is safe to try again.
+     *
+     * @param <T>
+     */
+    public interface Attempt<T> {
+
+        T call() throws TimeoutException, IOException;
+    }
+
+    private final int maxAttempts;
+    private final long initialBackoffMillis;
+    private final long maxBackoffMillis;
+    private final long deadlineMillis;
+
+    /**
+     * @param maxAttempts attempts in total, 0 for no limit
+     * @param initialBackoffMillis upper bound of the first backoff, doubled
+     * after every attempt
+     * @param maxBackoffMillis upper bound of any backoff
+     * @param deadlineMillis give up once this long has passed since the first
+     * attempt, 0 for no limit
+     */
+    public RetryPolicy(int maxAttempts, long initialBackoffMillis, long maxBackoffMillis, long deadlineMillis) {
+        if (maxAttempts < 0 || initialBackoffMillis < 0 || maxBackoffMillis < initialBackoffMillis || deadlineMillis < 0) {
+            throw new IllegalArgumentException("Invalid retry limits");
+        }
+        if (maxAttempts == 0 && deadlineMillis == 0) {
+            throw new IllegalArgumentException("At least one retry limit is needed");
+        }
+        this.maxAttempts = maxAttempts;
+        this.initialBackoffMillis = initialBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        this.deadlineMillis = deadlineMillis;
+    }
+
+    /**
+     * Calls attempt until it does not time out or the policy gives up.
+     *
+     * @param <T>
+     * @param attempt
+     * @return what the successful attempt returned
+     * @throws TimeoutException the last timeout once the policy gives up
+     * @throws InterruptedIOException if interrupted while backing off
+     * @throws IOException if an attempt fails other than by timing out
+     */
+    public <T> T run(Attempt<T> attempt) throws TimeoutException, IOException {
+        long start = System.currentTimeMillis();
+        for (int attempts = 1;; attempts++) {
+            TimeoutException timeout;
+            try {
+                return attempt.call();
+            } catch (TimeoutException ex) {
+                timeout = ex;
+            }
+            long backoff = backoffMillis(attempts);
+            boolean giveUp = (maxAttempts > 0 && attempts >= maxAttempts)
+                    || (deadlineMillis > 0 && System.currentTimeMillis() + backoff - start >= deadlineMillis);
+            PipelineMetrics.get().dbWriteTimedOut(!giveUp);
+            if (giveUp) {
+                throw timeout;
+            }
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                InterruptedIOException interrupted = new InterruptedIOException("Interrupted retrying after a timeout");
+                interrupted.initCause(timeout);
+                throw interrupted;
+            }
+        }
+    }
+
+    /**
+     * "Full jitter": a random backoff between 0 and the exponential bound.
+     *
+     * @param attempts attempts made so far
+     * @return milliseconds to wait before the next attempt
+     */
+    long backoffMillis(int attempts) {
+        long bound = initialBackoffMillis;
+        for (int i = 1; i < attempts && bound > 0 && bound < maxBackoffMillis; i++) {
+            bound *= 2;
+        }
+        bound = Math.min(bound, maxBackoffMillis);
+        return bound == 0 ? 0 : ThreadLocalRandom.current().nextLong(bound + 1);
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public long getInitialBackoffMillis() {
+        return initialBackoffMillis;
+    }
+
+    public long getMaxBackoffMillis() {
+        return maxBackoffMillis;
+    }
+
+    public long getDeadlineMillis() {
+        return deadlineMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "RetryPolicy{maxAttempts=" + maxAttempts + ", initialBackoffMillis=" + initialBackoffMillis
+                + ", maxBackoffMillis=" + maxBackoffMillis + ", deadlineMillis=" + deadlineMillis + "}";
+    }
+}
@@ -0,0 +1,70 @@
+package BatchUpdate;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The open stores of one kind (fields maps, dead letters, job journals) by
+ * JDBM file name, so every open of the same files shares one store.
+ *
+ * Each open counts a handle and each release drops one. Releasing the last
+ * handle closes the store under the registry lock, so an open of the same
+ * name waits until the files are closed and their JDBM lock is released
+ * instead of failing to lock them.
+ *
+ * @author Rob Fusco
+ */
+final class StoreRegistry<S> {
+
+    interface Opener<S> {
+
+        S open(String name) throws IOException;
+    }
+
+    interface Closer {
+
+        void close() throws IOException;
+    }
+
+    private final String kind;
+    private final Map<String, S> stores = new HashMap<>();
+    private final Map<String, Integer> refs = new HashMap<>();
+
+    /**
+     * @param kind what the stores are, for error messages
+     */
+    StoreRegistry(String kind) {
+        this.kind = kind;
+    }
+
+    /**
+     * @return the open store of name, opened with opener if there is none
+     */
+    synchronized S open(String name, Opener<S> opener) throws IOException {
+        S store = stores.get(name);
+        if (store == null) {
+            store = opener.open(name);
+            stores.put(name, store);
+        }
+        refs.merge(name, 1, Integer::sum);
+        return store;
+    }
+
+    /**
+     * Releases a handle on store, running closer if it was the last one.
+     */
+    synchronized void release(String name, S store, Closer closer) throws IOException {
+        Integer count = refs.get(name);
+        if (count == null || stores.get(name) != store) {
+            throw new IllegalStateException(kind + " " + name + " is already closed");
+        }
+        if (count > 1) {
+            refs.put(name, count - 1);
+            return;
+        }
+        refs.remove(name);
+        stores.remove(name);
+        closer.close();
+    }
+}
@@ -0,0 +1,79 @@
+package BatchUpdate;
+
+/**
+ * Outcome of a fields map verifier pass: how much was compared, how much of
+ * it had drifted and what it took to repair.
+ *
+ * @author Rob Fusco
+ */
+public class VerifyStats {
+
+    private final int ranges;
+    private final int driftRanges;
+    private final long rows;
+    private final long postings;
+    private final int usersRepaired;
+    private final long postingsRepaired;
+    private final long elapsedMillis;
+
+    VerifyStats(int ranges, int driftRanges, long rows, long postings, int usersRepaired, long postingsRepaired, long elapsedMillis) {
+        this.ranges = ranges;
+        this.driftRanges = driftRanges;
+        this.rows = rows;
+        this.postings = postings;
+        this.usersRepaired = usersRepaired;
+        this.postingsRepaired = postingsRepaired;
+        this.elapsedMillis = elapsedMillis;
+    }
+
+    /**
+     * @return user_id ranges compared, those with documents or fields map
+     * entries
+     */
+    public int getRanges() {
+        return ranges;
+    }
+
+    /**
+     * @return ranges whose fields map entries did not match their documents
+     */
+    public int getDriftRanges() {
+        return driftRanges;
+    }
+
+    /**
+     * @return user documents read to hash them, not counting the rescans of
+     * drift ranges
+     */
+    public long getRows() {
+        return rows;
+    }
+
+    /**
+     * @return fields map entries (a user_id under a key) hashed
+     */
+    public long getPostings() {
+        return postings;
+    }
+
+    public int getUsersRepaired() {
+        return usersRepaired;
+    }
+
+    /**
+     * @return fields map entries added or removed
+     */
+    public long getPostingsRepaired() {
+        return postingsRepaired;
+    }
+
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d of %d ranges drifted, %d users repaired (%d entries), %d rows and %d entries hashed in %d ms",
+                driftRanges, ranges, usersRepaired, postingsRepaired, rows, postings, elapsedMillis);
+    }
+}
@@ -0,0 +1,285 @@
+package BatchUpdate;
+
+import Metrics.PipelineMetrics;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the per-user DB writes of a batch change (e.g. renaming a job_title for
+ * every user that has it).
+ *
+ * Writes run either on a bounded pool of platform threads or on virtual
+ * threads (when the JVM supports them). Either way, no more than maxInFlight
+ * writes are outstanding at once: submitting blocks the caller until a slot
+ * frees up, so a rename that hits hundreds of thousands of users can not flood
+ * the DB or the JVM.
+ *
+ * @author Rob Fusco
+ */
+public class WriteEngine {
+
+    public enum ThreadMode {
+        PLATFORM,
+        VIRTUAL
+    }
+
+    /**
+     * A single write for one user, run by the engine.
+     */
+    public interface UserWrite {
+
+        void write(int user_id) throws Exception;
+    }
+
+    /**
+     * A single write for a chunk of users, run by the engine. The chunk
+     * succeeds or fails as a whole.
+     */
+    public interface ChunkWrite {
+
+        void write(List<Integer> user_ids) throws Exception;
+    }
+
+    public static final int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors() * 4;
+    public static final int DEFAULT_MAX_IN_FLIGHT = 1024;
+
+    // Idle pool threads die off after this long so a finished batch does not
+    // keep the JVM alive
+    private static final long KEEP_ALIVE_SECONDS = 5;
+
+    private final ThreadMode mode;
+    private final ExecutorService executor;
+    private final Semaphore inFlight;
+    private final int maxInFlight;
+
+    /**
+     * @param mode PLATFORM for a bounded pool, VIRTUAL for one virtual thread
+     * per write. VIRTUAL falls back to PLATFORM if the JVM has no virtual
+     * threads.
+     * @param threads size of the platform pool, ignored for virtual threads
+     * @param maxInFlight maximum number of writes running or queued at once
+     */
+    public WriteEngine(ThreadMode mode, int threads, int maxInFlight) {
+        if (threads < 1 || maxInFlight < 1) {
+            throw new IllegalArgumentException("threads and maxInFlight must be positive");
+        }
+        ExecutorService virtual = mode == ThreadMode.VIRTUAL ? newVirtualThreadExecutor() : null;
+        if (virtual != null) {
+            this.mode = ThreadMode.VIRTUAL;
+            this.executor = virtual;
+        } else {
+            this.mode = ThreadMode.PLATFORM;
+            this.executor = newPlatformExecutor(threads);
+        }
+        this.maxInFlight = maxInFlight;
+        this.inFlight = new Semaphore(maxInFlight);
+    }
+
+    public static WriteEngine platform(int threads, int maxInFlight) {
+        return new WriteEngine(ThreadMode.PLATFORM, threads, maxInFlight);
+    }
+
+    public static WriteEngine virtual(int maxInFlight) {
+        return new WriteEngine(ThreadMode.VIRTUAL, DEFAULT_THREADS, maxInFlight);
+    }
+
+    /**
+     * Runs write for every user_id. Blocks while maxInFlight writes are
+     * outstanding, returns once the last write has been handed off.
+     *
+     * If the calling thread is interrupted while waiting for a slot, the writes
+     * that were not handed off yet are counted as failed and the interrupt
+     * flag is restored. So are they once the engine is shut down.
+     *
+     * @param user_ids
+     * @param write
+     * @return a handle to wait on the writes and read their outcome
+     */
+    public BatchWrite submit(Collection<Integer> user_ids, UserWrite write) {
+        BatchWrite batch = new BatchWrite(user_ids.size());
+        Iterator<Integer> iter = user_ids.iterator();
+        while (iter.hasNext()) {
+            int user_id = iter.next();
+            if (!execute(batch, 1, () -> write.write(user_id), "user_id " + user_id)) {
+                while (iter.hasNext()) {
+                    iter.next();
+                    batch.failed(1);
+                }
+                break;
+            }
+        }
+        return batch;
+    }
+
+    /**
+     * Same as submit, but hands the user_ids to write chunkSize at a time so
+     * each chunk can be read and written in one DB transaction. Each chunk
+     * takes one in-flight slot, the returned batch still counts users.
+     *
+     * @param user_ids
+     * @param chunkSize
+     * @param write
+     * @return a handle to wait on the writes and read their outcome
+     */
+    public BatchWrite submitChunks(Collection<Integer> user_ids, int chunkSize, ChunkWrite write) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("chunkSize must be positive");
+        }
+        BatchWrite batch = new BatchWrite(user_ids.size());
+        Iterator<Integer> iter = user_ids.iterator();
+        while (iter.hasNext()) {
+            List<Integer> chunk = new ArrayList<>(Math.min(chunkSize, user_ids.size()));
+            while (iter.hasNext() && chunk.size() < chunkSize) {
+                chunk.add(iter.next());
+            }
+            String what = "user_ids " + chunk.get(0) + " to " + chunk.get(chunk.size() - 1);
+            if (!execute(batch, chunk.size(), () -> write.write(chunk), what)) {
+                while (iter.hasNext()) {
+                    iter.next();
+                    batch.failed(1);
+                }
+                break;
+            }
+        }
+        return batch;
+    }
+
+    /**
+     * Same as submitChunks, for user_ids already cut into chunks, e.g. the
+     * chunks a journaled job has left.
+     *
+     * @param chunks
+     * @param write
+     * @return a handle to wait on the writes and read their outcome
+     */
+    public BatchWrite submitChunks(List<List<Integer>> chunks, ChunkWrite write) {
+        int users = 0;
+        for (List<Integer> chunk : chunks) {
+            users += chunk.size();
+        }
+        BatchWrite batch = new BatchWrite(users);
+        Iterator<List<Integer>> iter = chunks.iterator();
+        while (iter.hasNext()) {
+            List<Integer> chunk = iter.next();
+            String what = "user_ids " + chunk.get(0) + " to " + chunk.get(chunk.size() - 1);
+            if (!execute(batch, chunk.size(), () -> write.write(chunk), what)) {
+                while (iter.hasNext()) {
+                    batch.failed(iter.next().size());
+                }
+                break;
+            }
+        }
+        return batch;
+    }
+
+    private interface Task {
+
+        void run() throws Exception;
+    }
+
+    /**
+     * Waits for a slot and runs task for users users of batch.
+     *
+     * @return false, having counted the users as failed, if the calling
+     * thread was interrupted while waiting or the engine is shut down
+     */
+    private boolean execute(BatchWrite batch, int users, Task task, String what) {
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            batch.failed(users);
+            return false;
+        }
+        PipelineMetrics.get().batchWriteStarted();
+        try {
+            executor.execute(() -> {
+                boolean ok = false;
+                try {
+                    task.run();
+                    ok = true;
+                } catch (Exception ex) {
+                    Logger.getLogger(WriteEngine.class.getName()).log(Level.WARNING, "Write failed for " + what, ex);
+                } finally {
+                    // Free the slot before reporting so anyone woken by the
+                    // batch finishing sees an idle engine
+                    inFlight.release();
+                    PipelineMetrics.get().batchWriteFinished(ok);
+                    if (ok) {
+                        batch.succeeded(users);
+                    } else {
+                        batch.failed(users);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            Logger.getLogger(WriteEngine.class.getName()).log(Level.WARNING, "Write rejected for " + what, ex);
+            inFlight.release();
+            PipelineMetrics.get().batchWriteFinished(false);
+            batch.failed(users);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return number of writes currently running or waiting for a thread
+     */
+    public int getInFlight() {
+        return maxInFlight - inFlight.availablePermits();
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    public ThreadMode getMode() {
+        return mode;
+    }
+
+    /**
+     * Stops accepting writes, already submitted writes still finish.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return executor.awaitTermination(timeout, unit);
+    }
+
+    private static ExecutorService newPlatformExecutor(int threads) {
+        AtomicInteger count = new AtomicInteger();
+        ThreadFactory factory = r -> new Thread(r, "batch-write-" + count.incrementAndGet());
+        // The queue is unbounded but never holds more than maxInFlight tasks
+        // because of the semaphore in submit
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), factory);
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    // Source level is 1.8 so virtual threads can only be reached reflectively
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException ex) {
+            Logger.getLogger(WriteEngine.class.getName()).log(Level.WARNING,
+                    "Virtual threads are not available on this JVM, using a platform thread pool");
+            return null;
+        }
+    }
+}
@@ -1,13 +1,14 @@
 package Database;
 
-import com.google.gson.Gson;
+import Database.UserData.FieldType;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Iterator;
-import java.util.List;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.Set;
+import java.util.SortedMap;
 import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
 import jdbm.PrimaryTreeMap;
 import jdbm.RecordManager;
 import jdbm.RecordManagerFactory;
@@ -17,19 +18,156 @@ import jdbm.RecordManagerFactory;
  * following fields: name (string) job_title (string) industry (string) version
  * (long integer)
  *
+ * Rows are stored either as the JSON they were written as or in a compact
+ * binary form, see StorageFormat. Either way the methods taking and returning
+ * strings speak JSON, readUserData and scanUserData skip JSON entirely for
+ * BINARY rows.
+ *
  * Since mock, for unit testing assume all functions are perfect
  * @author Rob Fusco
  */
 public class DatabaseMock {
 
+    // Rows fetched per page by scan
+    public static final int DEFAULT_SCAN_PAGE_SIZE = 1000;
+
+    /**
+     * How a DB stores its rows, fixed when it is created.
+     */
+    public enum StorageFormat {
+        /**
+         * The JSON documents as written.
+         */
+        JSON,
+        /**
+         * The documents decoded into UserData and written with length
+         * prefixed UTF-8 fields and a varint version, job_title and industry
+         * as ids of a FieldDictionary. Smaller on disk and read without
+         * parsing, but fields UserData does not know are dropped.
+         */
+        BINARY
+    }
+
     private final String name;
+    private final StorageFormat format;
     private final RecordManager recMan;
+    // JSON rows, unused by BINARY DBs
     private final PrimaryTreeMap<Integer, String> db;
+    // BINARY rows, null for JSON DBs
+    private final PrimaryTreeMap<Integer, UserData> records;
+    // Categorical fields of BINARY rows, null for JSON DBs
+    private final FieldDictionary jobTitles;
+    private final FieldDictionary industries;
+    // user_id to the version of its document, kept next to the documents so
+    // a version can be checked without reading or parsing the document
+    private final PrimaryTreeMap<Integer, Long> versions;
+    // Decoded documents, null when not caching. Writes hold the versions lock
+    // while invalidating it.
+    private volatile UserDataCache cache;
 
     public DatabaseMock(String name) throws IOException {
+        this(name, StorageFormat.JSON);
+    }
+
+    /**
+     * @param name
+     * @param format how rows are stored, must be what the DB was created with
+     * @throws IOException if the DB holds rows in the other format
+     */
+    public DatabaseMock(String name, StorageFormat format) throws IOException {
         this.name = name;
+        this.format = format;
         recMan = RecordManagerFactory.createRecordManager(name);
         db = recMan.treeMap("user_id");
+        if (format == StorageFormat.BINARY) {
+            jobTitles = new FieldDictionary(recMan, FieldType.job_title);
+            industries = new FieldDictionary(recMan, FieldType.industry);
+            records = recMan.treeMap("user_data", new UserDataSerializer(jobTitles, industries));
+            if (!db.isEmpty()) {
+                recMan.close();
+                throw new IOException(name + " holds JSON rows");
+            }
+        } else {
+            records = null;
+            jobTitles = null;
+            industries = null;
+            if (recMan.getNamedObject("user_data") != 0) {
+                recMan.close();
+                throw new IOException(name + " holds BINARY rows");
+            }
+        }
+        versions = recMan.treeMap("version", VersionSerializer.INSTANCE);
+        if (versions.isEmpty() && !db.isEmpty()) {
+            backfillVersions();
+        }
+    }
+
+    // A document about to be written: its JSON, decoded for BINARY DBs, and
+    // its version, worked out before taking the write lock
+    private static final class Row {
+
+        final String json;
+        final UserData record;
+        final long version;
+
+        Row(String json, UserData record, long version) {
+            this.json = json;
+            this.record = record;
+            this.version = version;
+        }
+    }
+
+    private Row row(String json) {
+        if (records == null) {
+            return new Row(json, null, UserDataCodec.readVersion(json));
+        }
+        UserData record = UserDataCodec.decode(json);
+        return new Row(json, record, record.getVersion());
+    }
+
+    // Call holding the versions lock
+    private void put(int user_id, Row row) {
+        if (records == null) {
+            db.put(user_id, row.json);
+        } else {
+            // Ids first, the row is serialized whenever JDBM gets to it
+            if (row.record.getJobTitle() != null) {
+                jobTitles.encode(row.record.getJobTitle());
+            }
+            if (row.record.getIndustry() != null) {
+                industries.encode(row.record.getIndustry());
+            }
+            records.put(user_id, row.record);
+        }
+        versions.put(user_id, row.version);
+        invalidate(user_id);
+    }
+
+    private SortedMap<Integer, ?> rows() {
+        return records == null ? db : records;
+    }
+
+    /**
+     * @return a UserData of the row the caller may change, null if there is
+     * none for user_id
+     */
+    private UserData fetch(int user_id) {
+        if (records == null) {
+            return UserDataCodec.decode(db.get(user_id));
+        }
+        // JDBM hands out the instance held in its page cache
+        UserData record = records.get(user_id);
+        return record == null ? null : record.copy();
+    }
+
+    // DBs written before the version index existed only have documents
+    private void backfillVersions() throws IOException {
+        Iterator<Map.Entry<Integer, String>> iter = scan(Integer.MIN_VALUE, null, DEFAULT_SCAN_PAGE_SIZE);
+        while (iter.hasNext()) {
+            Map.Entry<Integer, String> entry = iter.next();
+            versions.put(entry.getKey(), UserDataCodec.readVersion(entry.getValue()));
+        }
+        recMan.commit();
     }
 
     /**
@@ -39,7 +177,57 @@ public class DatabaseMock {
      * @return
      */
     public String read(int user_id) {
-        return db.get(user_id);
+        if (records == null) {
+            return db.get(user_id);
+        }
+        UserData record = records.get(user_id);
+        return record == null ? null : UserDataCodec.encode(record);
+    }
+
+    /**
+     * Returns the document of a user decoded, from the UserDataCache if one
+     * is set and holds it.
+     *
+     * @param user_id
+     * @return the document, null if there is none for user_id
+     */
+    public UserData readUserData(int user_id) {
+        UserDataCache cache = this.cache;
+        if (cache == null) {
+            return fetch(user_id);
+        }
+        UserData user_data = cache.get(user_id);
+        return user_data != null ? user_data : load(cache, user_id);
+    }
+
+    /**
+     * readUserData for several users at once.
+     *
+     * @param user_ids
+     * @return documents by user_id in the order of user_ids, users that do
+     * not exist are left out
+     */
+    public Map<Integer, UserData> readUserDataBatch(Collection<Integer> user_ids) {
+        Map<Integer, UserData> documents = new LinkedHashMap<>();
+        for (int user_id : user_ids) {
+            UserData user_data = readUserData(user_id);
+            if (user_data != null) {
+                documents.put(user_id, user_data);
+            }
+        }
+        return documents;
+    }
+
+    // Under the lock writes take, so a write can not land between reading
+    // the document and caching it
+    private UserData load(UserDataCache cache, int user_id) {
+        synchronized (versions) {
+            UserData user_data = fetch(user_id);
+            if (user_data != null) {
+                cache.put(user_id, user_data);
+            }
+            return user_data;
+        }
     }
 
     /**
@@ -52,9 +240,105 @@ public class DatabaseMock {
      * @throws java.util.concurrent.TimeoutException
      */
     public long update(int user_id, String user_data) throws TimeoutException {
-        db.put(user_id, user_data);
-        Gson gson = new Gson();
-        return gson.fromJson(user_data, UserData.class).getVersion();
+        Row row = row(user_data);
+        synchronized (versions) {
+            put(user_id, row);
+        }
+        return row.version;
+    }
+
+    /**
+     * Returns the JSON documents of several users at once.
+     *
+     * @param user_ids
+     * @return documents by user_id in the order of user_ids, users that do
+     * not exist are left out
+     */
+    public Map<Integer, String> readBatch(Collection<Integer> user_ids) {
+        Map<Integer, String> documents = new LinkedHashMap<>();
+        for (int user_id : user_ids) {
+            String user_data = read(user_id);
+            if (user_data != null) {
+                documents.put(user_id, user_data);
+            }
+        }
+        return documents;
+    }
+
+    /**
+     * Replaces/creates the documents of several users in one transaction,
+     * which is committed before returning. Much cheaper than calling update
+     * for each of them when there are many.
+     *
+     * @param documents JSON documents by user_id
+     * @return the updated version ID of each document by user_id
+     * @throws java.util.concurrent.TimeoutException
+     * @throws IOException if the transaction could not be committed
+     */
+    public Map<Integer, Long> updateBatch(Map<Integer, String> documents) throws TimeoutException, IOException {
+        Map<Integer, Row> rows = rows(documents);
+        Map<Integer, Long> updated = new LinkedHashMap<>();
+        synchronized (versions) {
+            for (Map.Entry<Integer, Row> entry : rows.entrySet()) {
+                put(entry.getKey(), entry.getValue());
+                updated.put(entry.getKey(), entry.getValue().version);
+            }
+            recMan.commit();
+        }
+        return updated;
+    }
+
+    /**
+     * Like update, but only if the document is still at expectedVersion. Use
+     * it to write back a document that was read, changed and re-encoded
+     * without losing a write that landed in between.
+     *
+     * @param user_id
+     * @param expectedVersion version of the document the change was based on
+     * @param user_data
+     * @return the updated version ID of the document
+     * @throws VersionConflictException if the document is at another version
+     * or no longer exists, nothing is written
+     * @throws java.util.concurrent.TimeoutException
+     */
+    public long compareAndUpdate(int user_id, long expectedVersion, String user_data) throws VersionConflictException, TimeoutException {
+        Row row = row(user_data);
+        synchronized (versions) {
+            Long current = versions.get(user_id);
+            if (current == null || current != expectedVersion) {
+                throw new VersionConflictException(user_id, expectedVersion, current);
+            }
+            put(user_id, row);
+        }
+        return row.version;
+    }
+
+    /**
+     * compareAndUpdate for several users in one transaction, committed
+     * before returning. Documents whose version does not match are skipped,
+     * the rest are still written.
+     *
+     * @param documents JSON documents by user_id
+     * @param expectedVersions version each change was based on by user_id
+     * @return the updated version ID of each document that was written by
+     * user_id, the user_ids missing from it had a conflict
+     * @throws java.util.concurrent.TimeoutException
+     * @throws IOException if the transaction could not be committed
+     */
+    public Map<Integer, Long> compareAndUpdateBatch(Map<Integer, String> documents, Map<Integer, Long> expectedVersions) throws TimeoutException, IOException {
+        Map<Integer, Row> rows = rows(documents);
+        Map<Integer, Long> updated = new LinkedHashMap<>();
+        synchronized (versions) {
+            for (Map.Entry<Integer, Row> entry : rows.entrySet()) {
+                Long current = versions.get(entry.getKey());
+                if (current != null && current.equals(expectedVersions.get(entry.getKey()))) {
+                    put(entry.getKey(), entry.getValue());
+                    updated.put(entry.getKey(), entry.getValue().version);
+                }
+            }
+            recMan.commit();
+        }
+        return updated;
     }
 
     /**
@@ -63,50 +347,167 @@ public class DatabaseMock {
      * @param user_id
      */
     public void delete(int user_id) {
-        db.remove(user_id);
+        synchronized (versions) {
+            rows().remove(user_id);
+            versions.remove(user_id);
+            invalidate(user_id);
+        }
+    }
+
+    private Map<Integer, Row> rows(Map<Integer, String> documents) {
+        Map<Integer, Row> rows = new LinkedHashMap<>();
+        for (Map.Entry<Integer, String> entry : documents.entrySet()) {
+            rows.put(entry.getKey(), row(entry.getValue()));
+        }
+        return rows;
+    }
+
+    private void invalidate(int user_id) {
+        UserDataCache cache = this.cache;
+        if (cache != null) {
+            cache.invalidate(user_id);
+        }
+    }
+
+    /**
+     * Caches decoded documents for readUserData in cache, registered with JMX
+     * as BatchJobsDB:type=UserDataCache,name=[database].
+     *
+     * @param cache null to stop caching
+     */
+    public void setUserDataCache(UserDataCache cache) {
+        synchronized (versions) {
+            if (this.cache != null) {
+                this.cache.unregister();
+            }
+            this.cache = cache;
+            if (cache != null) {
+                cache.clear();
+                cache.register(name);
+            }
+        }
+    }
+
+    public UserDataCache getUserDataCache() {
+        return cache;
+    }
+
+    /**
+     * Returns the version of the document of a user without reading the
+     * document itself.
+     *
+     * @param user_id
+     * @return the version, null if there is no document for user_id
+     */
+    public Long readVersion(int user_id) {
+        synchronized (versions) {
+            return versions.get(user_id);
+        }
     }
 
     /**
      * Iterate through all the rows of the database, starting at the given user
      * ID (buffered). The user ID does not need to exist (the database will
-     * start at the next higher existing user ID)
+     * start at the next higher existing user ID). Once the highest user ID has
+     * been returned the scan wraps around to the lowest one and stops just
+     * before the given user ID.
      *
      * @param user_id
      * @return
      */
     public Iterator<Map.Entry<Integer, String>> scan(int user_id) {
-        //Switch entrySet to List so it is ordered
-        Set<Map.Entry<Integer, String>> set = db.entrySet();
-        List<Map.Entry<Integer, String>> list = new ArrayList<>();
-        list.addAll(set);
-
-        //Find index of list that is equivalent to user_id entered
-        Iterator<Map.Entry<Integer, String>> iter = list.iterator();
-        boolean found = false;
-        int i = 0;
-        while (iter.hasNext() && !found) {
-            Map.Entry<Integer, String> next = iter.next();
-            if (next.getKey() < user_id) {
-                i++;
-            } else {
-                found = true;
+        Iterator<Map.Entry<Integer, String>> head = scan(user_id, null, DEFAULT_SCAN_PAGE_SIZE);
+        Iterator<Map.Entry<Integer, String>> wrapped = scan(Integer.MIN_VALUE, user_id, DEFAULT_SCAN_PAGE_SIZE);
+        return new Iterator<Map.Entry<Integer, String>>() {
+            @Override
+            public boolean hasNext() {
+                return head.hasNext() || wrapped.hasNext();
+            }
+
+            @Override
+            public Map.Entry<Integer, String> next() {
+                return head.hasNext() ? head.next() : wrapped.next();
             }
+        };
+    }
+
+    /**
+     * Iterate through the rows with start &lt;= user ID &lt; end in user ID
+     * order, fetching pageSize rows at a time. Does not wrap around.
+     *
+     * @param start first user ID to return, does not need to exist
+     * @param end user ID to stop before, null to scan to the end of the table
+     * @param pageSize number of rows buffered per fetch
+     * @return
+     */
+    public Iterator<Map.Entry<Integer, String>> scan(int start, Integer end, int pageSize) {
+        if (records == null) {
+            return new ScanCursor<>(db, Function.identity(), start, end, pageSize);
         }
+        return new ScanCursor<>(records, UserDataCodec::encode, start, end, pageSize);
+    }
 
-        //Rebuild list in new order with entry represented by user_id first
-        List<Map.Entry<Integer, String>> reordered = new ArrayList<>();
-        reordered.addAll(list.subList(i, list.size()));
-        reordered.addAll(list.subList(0, i));
+    /**
+     * Like scan(start, end, pageSize), with the documents decoded. Rows of
+     * BINARY DBs are handed out without going through JSON at all.
+     *
+     * @param start first user ID to return, does not need to exist
+     * @param end user ID to stop before, null to scan to the end of the table
+     * @param pageSize number of rows buffered per fetch
+     * @return documents the caller may change
+     */
+    public Iterator<Map.Entry<Integer, UserData>> scanUserData(int start, Integer end, int pageSize) {
+        if (records == null) {
+            return new ScanCursor<>(db, UserDataCodec::decode, start, end, pageSize);
+        }
+        return new ScanCursor<>(records, UserData::copy, start, end, pageSize);
+    }
 
-        //Return an iterator of newly order list
-        return reordered.iterator();
+    /**
+     * @return the lowest user ID in the database, null if it is empty
+     */
+    public Integer firstUserId() {
+        SortedMap<Integer, ?> rows = rows();
+        return rows.isEmpty() ? null : rows.firstKey();
+    }
+
+    /**
+     * @return the highest user ID in the database, null if it is empty
+     */
+    public Integer lastUserId() {
+        SortedMap<Integer, ?> rows = rows();
+        return rows.isEmpty() ? null : rows.lastKey();
     }
 
     public void close() throws IOException {
+        UserDataCache cache = this.cache;
+        if (cache != null) {
+            cache.unregister();
+        }
         recMan.close();
     }
 
     public String getName() {
         return name;
     }
+
+    public StorageFormat getStorageFormat() {
+        return format;
+    }
+
+    /**
+     * @param field
+     * @return the dictionary the values of a categorical field are stored as
+     * ids of, null for JSON DBs and fields that are not categorical
+     */
+    public FieldDictionary getDictionary(FieldType field) {
+        switch (field) {
+            case job_title:
+                return jobTitles;
+            case industry:
+                return industries;
+            default:
+                return null;
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,96 @@
+package Database;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import jdbm.PrimaryTreeMap;
+import jdbm.RecordManager;
+
+/**
+ * Persistent two way mapping between the values of a categorical field, like
+ * job_title, and small ints, so BINARY DBs store each distinct value once
+ * instead of in every document.
+ *
+ * Ids are handed out from 1 up in the order values are first seen and never
+ * change or get reused. The mapping is stored in a table of the DB and loaded
+ * into memory when the DB is opened, after which both directions are answered
+ * from memory. Decoding hands out the same String instance for every
+ * document with that value.
+ *
+ * Safe to use from several threads.
+ *
+ * @author Rob Fusco
+ */
+public class FieldDictionary {
+
+    private final PrimaryTreeMap<String, Integer> stored;
+    // values.get(id - 1) is the value of id
+    private final List<String> values = new ArrayList<>();
+    private final Map<String, Integer> ids = new HashMap<>();
+
+    /**
+     * Opens the dictionary of a field stored in recMan, loading it into
+     * memory.
+     *
+     * @param recMan the DB
+     * @param field
+     */
+    FieldDictionary(RecordManager recMan, UserData.FieldType field) {
+        this.stored = recMan.treeMap("dictionary." + field.name());
+        String[] byId = new String[stored.size()];
+        for (Map.Entry<String, Integer> entry : stored.entrySet()) {
+            byId[entry.getValue() - 1] = entry.getKey();
+        }
+        for (String value : byId) {
+            values.add(value);
+            ids.put(value, values.size());
+        }
+    }
+
+    /**
+     * Returns the id of value, giving it the next id if it has none yet. A
+     * new id is written to the DB and committed with the DB's next commit.
+     *
+     * @param value not null
+     * @return
+     */
+    public synchronized int encode(String value) {
+        Integer id = ids.get(value);
+        if (id == null) {
+            values.add(value);
+            id = values.size();
+            ids.put(value, id);
+            stored.put(value, id);
+        }
+        return id;
+    }
+
+    /**
+     * @param value
+     * @return the id of value, 0 if it has none
+     */
+    public synchronized int lookup(String value) {
+        Integer id = ids.get(value);
+        return id == null ? 0 : id;
+    }
+
+    /**
+     * @param id
+     * @return the value with that id
+     * @throws IllegalArgumentException if no value has that id
+     */
+    public synchronized String decode(int id) {
+        if (id < 1 || id > values.size()) {
+            throw new IllegalArgumentException("No value with id " + id);
+        }
+        return values.get(id - 1);
+    }
+
+    /**
+     * @return number of distinct values
+     */
+    public synchronized int size() {
+        return values.size();
+    }
+}
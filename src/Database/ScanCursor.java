@@ -0,0 +1,91 @@
+package Database;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.SortedMap;
+import java.util.function.Function;
+
+/**
+ * Lazy iterator over a key range of the user_id tree.
+ *
+ * Rows are fetched a page at a time: each page seeks straight to the next
+ * key in the B-tree, copies at most pageSize rows and lets go of the tree
+ * again. Memory use is bounded by the page size no matter how big the table
+ * is, and rows can be updated or deleted while a scan is in progress without
+ * breaking the cursor.
+ *
+ * Rows are converted as they are copied, from how the tree stores them (R) to
+ * what the caller wants (V).
+ *
+ * @author Rob Fusco
+ */
+class ScanCursor<R, V> implements Iterator<Map.Entry<Integer, V>> {
+
+    private final SortedMap<Integer, R> rows;
+    private final Function<? super R, ? extends V> convert;
+    // Exclusive upper bound, null to run to the end of the table
+    private final Integer end;
+    private final int pageSize;
+
+    private final List<Map.Entry<Integer, V>> page;
+    private int pos = 0;
+    // Key the next page starts at, null once the range is exhausted
+    private Integer next;
+
+    ScanCursor(SortedMap<Integer, R> rows, Function<? super R, ? extends V> convert, int start, Integer end, int pageSize) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("pageSize must be positive");
+        }
+        this.rows = rows;
+        this.convert = convert;
+        this.end = end;
+        this.pageSize = pageSize;
+        this.page = new ArrayList<>(pageSize);
+        this.next = start;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (pos < page.size()) {
+            return true;
+        }
+        fetchPage();
+        return pos < page.size();
+    }
+
+    @Override
+    public Map.Entry<Integer, V> next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return page.get(pos++);
+    }
+
+    private void fetchPage() {
+        page.clear();
+        pos = 0;
+        if (next == null || (end != null && next >= end)) {
+            next = null;
+            return;
+        }
+
+        SortedMap<Integer, R> range = end == null ? rows.tailMap(next) : rows.subMap(next, end);
+        Iterator<Map.Entry<Integer, R>> iter = range.entrySet().iterator();
+        while (iter.hasNext() && page.size() < pageSize) {
+            Map.Entry<Integer, R> entry = iter.next();
+            page.add(new SimpleImmutableEntry<>(entry.getKey(), convert.apply(entry.getValue())));
+        }
+
+        if (page.size() < pageSize) {
+            // Ran off the end of the range
+            next = null;
+        } else {
+            int last = page.get(page.size() - 1).getKey();
+            next = last == Integer.MAX_VALUE ? null : last + 1;
+        }
+    }
+}
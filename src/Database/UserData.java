@@ -11,20 +11,30 @@ public class UserData {
     long version;
     
     public enum FieldType {
-        name(String.class),
-        job_title(String.class),
-        industry(String.class),
-        version(long.class);
+        name(String.class, false),
+        job_title(String.class, true),
+        industry(String.class, true),
+        version(long.class, false);
 
         private final Class clazz;
+        private final boolean categorical;
 
-        private FieldType(Class clazz) {
+        private FieldType(Class clazz, boolean categorical) {
             this.clazz = clazz;
+            this.categorical = categorical;
         }
 
         public Class getFieldClass() {
             return clazz;
         }
+
+        /**
+         * @return whether the field takes one of relatively few values shared
+         * by many users, which BINARY DBs store as ids of a FieldDictionary
+         */
+        public boolean isCategorical() {
+            return categorical;
+        }
     };
     
     public UserData(String name, String job_title, String industry) {
@@ -34,6 +44,15 @@ public class UserData {
         this.version = 1;
     }
 
+    /**
+     * @return a copy with the same fields and version
+     */
+    UserData copy() {
+        UserData copy = new UserData(name, job_title, industry);
+        copy.version = version;
+        return copy;
+    }
+
     public String getName() {
         return name;
     }
@@ -64,4 +83,45 @@ public class UserData {
     public long getVersion() {
         return version;
     }
+
+    /**
+     * @param field
+     * @return the value of field, version as a string
+     */
+    public String getField(FieldType field) {
+        switch (field) {
+            case name:
+                return getName();
+            case job_title:
+                return getJobTitle();
+            case industry:
+                return getIndustry();
+            case version:
+                return Long.toString(getVersion());
+            default:
+                throw new IllegalArgumentException("Unknown field " + field);
+        }
+    }
+
+    /**
+     * Sets one of the string fields, bumping the version like the setters do.
+     *
+     * @param field name, job_title or industry
+     * @param value
+     */
+    public void setField(FieldType field, String value) {
+        switch (field) {
+            case name:
+                setName(value);
+                break;
+            case job_title:
+                setJobTitle(value);
+                break;
+            case industry:
+                setIndustry(value);
+                break;
+            default:
+                throw new IllegalArgumentException("Can not set " + field);
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,232 @@
+package Database;
+
+import java.lang.management.ManagementFactory;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Decoded documents of recently read users, so a user read several times in
+ * a row, like a bulk change re-reading the users whose write conflicted, is
+ * not read and parsed from JSON again each time.
+ *
+ * Entries are keyed by user_id and hold the version of the document they
+ * were decoded from. The cache is bounded by the estimated heap the decoded
+ * documents take and evicts the least recently used ones once it is over
+ * maxBytes.
+ *
+ * DatabaseMock keeps the cache current: every write or delete of a user drops
+ * the user's entry, and documents are read into it under the same lock as
+ * writes, so a read racing a write can not cache what the write replaced.
+ * Documents are copied going in and out, callers are free to change what
+ * they get.
+ *
+ * Optional, see DatabaseMock.setUserDataCache.
+ *
+ * @author Rob Fusco
+ */
+public class UserDataCache implements UserDataCacheMBean {
+
+    public static final long DEFAULT_MAX_BYTES = 64L << 20;
+
+    // Estimated heap of an entry on top of its strings: key, map entry,
+    // UserData and three String headers
+    private static final int ENTRY_BYTES = 160;
+
+    private final LinkedHashMap<Integer, UserData> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long maxBytes;
+    private long bytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long invalidations = 0;
+    private ObjectName registeredAs;
+
+    public UserDataCache() {
+        this(DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param maxBytes 0 to not cache at all
+     */
+    public UserDataCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @param user_id
+     * @return a copy of the cached document, null if not cached
+     */
+    public synchronized UserData get(int user_id) {
+        UserData user_data = entries.get(user_id);
+        if (user_data == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return user_data.copy();
+    }
+
+    /**
+     * @param user_id
+     * @param version
+     * @return a copy of the cached document if it is at version, null
+     * otherwise
+     */
+    public synchronized UserData get(int user_id, long version) {
+        UserData user_data = entries.get(user_id);
+        if (user_data == null || user_data.getVersion() != version) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return user_data.copy();
+    }
+
+    /**
+     * Caches a copy of a document that was read from the database, while
+     * still holding the lock writes take.
+     *
+     * @param user_id
+     * @param user_data
+     */
+    synchronized void put(int user_id, UserData user_data) {
+        long size = weigh(user_data);
+        if (size > maxBytes) {
+            return;
+        }
+        drop(entries.put(user_id, user_data.copy()));
+        bytes += size;
+        evict();
+    }
+
+    /**
+     * Drops the entry of a user that is being written or deleted.
+     *
+     * @param user_id
+     */
+    synchronized void invalidate(int user_id) {
+        UserData user_data = entries.remove(user_id);
+        if (user_data != null) {
+            drop(user_data);
+            invalidations++;
+        }
+    }
+
+    @Override
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    /**
+     * @param maxBytes 0 to not cache at all
+     */
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        evict();
+    }
+
+    @Override
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    @Override
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    @Override
+    public synchronized int getEntries() {
+        return entries.size();
+    }
+
+    @Override
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    @Override
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    @Override
+    public synchronized double getHitRatio() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    @Override
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized long getInvalidations() {
+        return invalidations;
+    }
+
+    /**
+     * Registers the cache with JMX as BatchJobsDB:type=UserDataCache,name=
+     * [database], replacing the cache registered for that database before.
+     *
+     * @param database
+     */
+    synchronized void register(String database) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("BatchJobsDB:type=UserDataCache,name=" + ObjectName.quote(database));
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+            registeredAs = name;
+        } catch (JMException | RuntimeException ex) {
+            Logger.getLogger(UserDataCache.class.getName()).log(Level.WARNING, "Could not register cache of " + database, ex);
+        }
+    }
+
+    /**
+     * Undoes register.
+     */
+    synchronized void unregister() {
+        if (registeredAs == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredAs);
+        } catch (JMException ex) {
+            // Already replaced by the cache of another handle on the database
+        }
+        registeredAs = null;
+    }
+
+    private void evict() {
+        Iterator<UserData> iter = entries.values().iterator();
+        while (bytes > maxBytes && iter.hasNext()) {
+            drop(iter.next());
+            iter.remove();
+            evictions++;
+        }
+    }
+
+    private void drop(UserData user_data) {
+        if (user_data != null) {
+            bytes -= weigh(user_data);
+        }
+    }
+
+    private static long weigh(UserData user_data) {
+        return ENTRY_BYTES + 2L * (length(user_data.getName()) + length(user_data.getJobTitle()) + length(user_data.getIndustry()));
+    }
+
+    private static int length(String value) {
+        return value == null ? 0 : value.length();
+    }
+}
@@ -0,0 +1,36 @@
+package Database;
+
+/**
+ * JMX view of a UserDataCache.
+ *
+ * @author Rob Fusco
+ */
+public interface UserDataCacheMBean {
+
+    long getMaxBytes();
+
+    /**
+     * @return estimated heap held by the cached documents
+     */
+    long getBytes();
+
+    int getEntries();
+
+    long getHits();
+
+    long getMisses();
+
+    double getHitRatio();
+
+    long getEvictions();
+
+    /**
+     * @return entries dropped because their user was written or deleted
+     */
+    long getInvalidations();
+
+    /**
+     * Drops every cached document.
+     */
+    void clear();
+}
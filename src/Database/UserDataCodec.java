@@ -0,0 +1,71 @@
+package Database;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import java.io.IOException;
+import java.io.StringReader;
+
+/**
+ * Converts user documents between UserData and the JSON stored in the
+ * database.
+ *
+ * Uses one shared Gson instance rather than building a new one per document,
+ * Gson is thread safe once built. When only the version of a document is
+ * needed, readVersion streams through the JSON and stops at the version field
+ * without building a UserData.
+ *
+ * Safe to use from several threads.
+ *
+ * @author Rob Fusco
+ */
+public final class UserDataCodec {
+
+    private static final Gson gson = new Gson();
+
+    private UserDataCodec() {
+    }
+
+    /**
+     * @param json
+     * @return the document as a UserData, null if json is null
+     */
+    public static UserData decode(String json) {
+        return gson.fromJson(json, UserData.class);
+    }
+
+    /**
+     * @param user_data
+     * @return the JSON document of user_data
+     */
+    public static String encode(UserData user_data) {
+        return gson.toJson(user_data);
+    }
+
+    /**
+     * Reads the version of a document without decoding the rest of it. The
+     * version may be a JSON number or a string holding one.
+     *
+     * @param json
+     * @return the version, 0 if the document has none like decode would
+     * @throws JsonParseException if json is not a JSON object
+     */
+    public static long readVersion(String json) {
+        try (JsonReader reader = new JsonReader(new StringReader(json))) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (reader.nextName().equals("version")) {
+                    if (reader.peek() == JsonToken.NULL) {
+                        return 0;
+                    }
+                    return reader.nextLong();
+                }
+                reader.skipValue();
+            }
+            return 0;
+        } catch (IOException | IllegalStateException | NumberFormatException ex) {
+            throw new JsonParseException("Bad user document: " + json, ex);
+        }
+    }
+}
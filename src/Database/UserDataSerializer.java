@@ -0,0 +1,169 @@
+package Database;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import jdbm.Serializer;
+import jdbm.SerializerInput;
+import jdbm.SerializerOutput;
+
+/**
+ * JDBM serializer for the rows of a DatabaseMock using the BINARY storage
+ * format.
+ *
+ * A document is written as a format byte, the version as a zig-zag encoded
+ * varint, then name, job_title and industry as UTF-8, each prefixed with its
+ * length in bytes plus one as a varint, 0 meaning null. Varints hold 7 bits a
+ * byte, low bits first. A typical document takes about a third of its JSON
+ * and is read back without parsing anything.
+ *
+ * Given the FieldDictionary of job_title and industry, those are written as
+ * their ids instead (format 2): a varint that is 0 for null, 1 for a value
+ * written out in full as above because it has no id, or else the id plus
+ * one. The DB gives values their ids before writing a document, the
+ * fallback only keeps a document that slipped through readable. Documents
+ * in either format can be read.
+ *
+ * @author Rob Fusco
+ */
+class UserDataSerializer implements Serializer<UserData>, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    static final UserDataSerializer INSTANCE = new UserDataSerializer();
+
+    // Leaves room for documents with more fields
+    private static final int FORMAT_V1 = 1;
+    private static final int FORMAT_DICTIONARY = 2;
+
+    private static final int NULL = 0;
+    private static final int INLINE = 1;
+
+    // JDBM stores the serializer with the table, the dictionaries are handed
+    // in again every time the DB is opened
+    private final transient FieldDictionary jobTitles;
+    private final transient FieldDictionary industries;
+
+    private UserDataSerializer() {
+        this(null, null);
+    }
+
+    /**
+     * @param jobTitles dictionary of job_title, null to write job titles out
+     * @param industries dictionary of industry, null to write industries out
+     */
+    UserDataSerializer(FieldDictionary jobTitles, FieldDictionary industries) {
+        this.jobTitles = jobTitles;
+        this.industries = industries;
+    }
+
+    @Override
+    public void serialize(SerializerOutput out, UserData user_data) throws IOException {
+        boolean dictionary = jobTitles != null && industries != null;
+        out.write(dictionary ? FORMAT_DICTIONARY : FORMAT_V1);
+        long version = user_data.getVersion();
+        writeVarLong(out, (version << 1) ^ (version >> 63));
+        writeString(out, user_data.getName());
+        if (dictionary) {
+            writeCategory(out, jobTitles, user_data.getJobTitle());
+            writeCategory(out, industries, user_data.getIndustry());
+        } else {
+            writeString(out, user_data.getJobTitle());
+            writeString(out, user_data.getIndustry());
+        }
+    }
+
+    @Override
+    public UserData deserialize(SerializerInput in) throws IOException, ClassNotFoundException {
+        int format = in.read();
+        if (format != FORMAT_V1 && format != FORMAT_DICTIONARY) {
+            throw new IOException("Unknown user document format " + format);
+        }
+        long value = readVarLong(in);
+        String name = readString(in);
+        UserData user_data;
+        if (format == FORMAT_V1) {
+            user_data = new UserData(name, readString(in), readString(in));
+        } else if (jobTitles == null || industries == null) {
+            throw new IOException("No dictionaries to read the document with");
+        } else {
+            user_data = new UserData(name, readCategory(in, jobTitles), readCategory(in, industries));
+        }
+        user_data.version = (value >>> 1) ^ -(value & 1);
+        return user_data;
+    }
+
+    private static void writeCategory(SerializerOutput out, FieldDictionary dictionary, String value) throws IOException {
+        if (value == null) {
+            out.write(NULL);
+            return;
+        }
+        int id = dictionary.lookup(value);
+        if (id == 0) {
+            out.write(INLINE);
+            writeString(out, value);
+        } else {
+            writeVarLong(out, id + 1L);
+        }
+    }
+
+    private static String readCategory(SerializerInput in, FieldDictionary dictionary) throws IOException {
+        long tag = readVarLong(in);
+        if (tag == NULL) {
+            return null;
+        }
+        if (tag == INLINE) {
+            return readString(in);
+        }
+        try {
+            return dictionary.decode((int) (tag - 1));
+        } catch (IllegalArgumentException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    // Not SerializerOutput.writePackedLong, which refuses the upper half of
+    // the range and takes two bytes from 16 on
+    private static void writeVarLong(SerializerOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarLong(SerializerInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static void writeString(SerializerOutput out, String value) throws IOException {
+        if (value == null) {
+            out.write(0);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(out, bytes.length + 1);
+        out.write(bytes);
+    }
+
+    private static String readString(SerializerInput in) throws IOException {
+        long length = readVarLong(in) - 1;
+        if (length < 0) {
+            return null;
+        }
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Malformed string length " + length);
+        }
+        byte[] bytes = new byte[(int) length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
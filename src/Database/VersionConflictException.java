@@ -0,0 +1,39 @@
+package Database;
+
+/**
+ * Thrown by DatabaseMock.compareAndUpdate when the document of a user is not
+ * at the version the caller based its change on, i.e. someone else wrote it
+ * in between. Read the document again and redo the change.
+ *
+ * @author Rob Fusco
+ */
+public class VersionConflictException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int user_id;
+    private final long expectedVersion;
+    private final Long actualVersion;
+
+    public VersionConflictException(int user_id, long expectedVersion, Long actualVersion) {
+        super("user_id " + user_id + " is at version " + actualVersion + ", expected " + expectedVersion);
+        this.user_id = user_id;
+        this.expectedVersion = expectedVersion;
+        this.actualVersion = actualVersion;
+    }
+
+    public int getUserId() {
+        return user_id;
+    }
+
+    public long getExpectedVersion() {
+        return expectedVersion;
+    }
+
+    /**
+     * @return the version the document is at, null if it no longer exists
+     */
+    public Long getActualVersion() {
+        return actualVersion;
+    }
+}
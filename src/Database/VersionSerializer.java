@@ -0,0 +1,32 @@
+package Database;
+
+import java.io.IOException;
+import java.io.Serializable;
+import jdbm.Serializer;
+import jdbm.SerializerInput;
+import jdbm.SerializerOutput;
+
+/**
+ * JDBM serializer for the values of the version index, a version is written
+ * as a single zig-zag encoded packed varint, a byte or two for most
+ * documents.
+ *
+ * @author Rob Fusco
+ */
+class VersionSerializer implements Serializer<Long>, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    static final VersionSerializer INSTANCE = new VersionSerializer();
+
+    @Override
+    public void serialize(SerializerOutput out, Long version) throws IOException {
+        out.writePackedLong((version << 1) ^ (version >> 63));
+    }
+
+    @Override
+    public Long deserialize(SerializerInput in) throws IOException, ClassNotFoundException {
+        long value = in.readPackedLong();
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
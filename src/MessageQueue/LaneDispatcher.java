@@ -0,0 +1,145 @@
+package MessageQueue;
+
+import MessageQueue.MessageQueueMock.CallBack;
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Fans messages out to a fixed number of worker lanes, each with its own
+ * thread, picking the lane from the user_id. All messages of a user go
+ * through the same lane, so they are handled in the order they were
+ * dispatched, while messages of different users are handled in parallel.
+ *
+ * Every lane buffers at most laneCapacity messages, dispatch blocks once the
+ * lane of a message is full so a slow callback slows the consumer down
+ * instead of piling up messages in memory.
+ *
+ * The callback is called from several threads at once and must be thread
+ * safe.
+ *
+ * @author Rob Fusco
+ */
+public class LaneDispatcher implements Closeable {
+
+    public static final int DEFAULT_LANE_CAPACITY = 1024;
+
+    // Tells a lane thread to stop once it has handled everything before it
+    private static final MessageQueueMock.Update STOP = new MessageQueueMock.Update(0, null);
+
+    private final CallBack callback;
+    private final List<BlockingQueue<MessageQueueMock.Update>> lanes;
+    private final Thread[] threads;
+    private volatile boolean closed = false;
+
+    /**
+     * Starts the lane threads.
+     *
+     * @param callback
+     * @param lanes number of lanes, usually about the number of cores
+     * @param laneCapacity messages buffered per lane
+     */
+    public LaneDispatcher(CallBack callback, int lanes, int laneCapacity) {
+        if (lanes < 1 || laneCapacity < 1) {
+            throw new IllegalArgumentException("lanes and laneCapacity must be positive");
+        }
+        this.callback = callback;
+        this.lanes = new ArrayList<>(lanes);
+        this.threads = new Thread[lanes];
+        for (int i = 0; i < lanes; i++) {
+            BlockingQueue<MessageQueueMock.Update> lane = new ArrayBlockingQueue<>(laneCapacity);
+            this.lanes.add(lane);
+            threads[i] = new Thread(() -> run(lane), "update-lane-" + i);
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+    }
+
+    /**
+     * @param user_id
+     * @param lanes
+     * @return the lane that handles user_id
+     */
+    public static int lane(int user_id, int lanes) {
+        // Spread neighbouring user_ids, which often arrive together
+        int h = user_id * 0x9E3779B9;
+        return Math.floorMod(h ^ (h >>> 16), lanes);
+    }
+
+    /**
+     * Queues a message on the lane of its user, waiting for room if the lane
+     * is full.
+     *
+     * @param user_id
+     * @param delta
+     * @throws InterruptedException
+     */
+    public void dispatch(int user_id, String delta) throws InterruptedException {
+        if (closed) {
+            throw new IllegalStateException("Dispatcher is closed");
+        }
+        lanes.get(lane(user_id, lanes.size())).put(new MessageQueueMock.Update(user_id, delta));
+    }
+
+    /**
+     * Lets every lane finish what it has queued and stops the lane threads.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        // Finish closing even if interrupted, then pass the interrupt on
+        boolean interrupted = false;
+        for (BlockingQueue<MessageQueueMock.Update> lane : lanes) {
+            while (true) {
+                try {
+                    lane.put(STOP);
+                    break;
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+        }
+        for (Thread thread : threads) {
+            while (true) {
+                try {
+                    thread.join();
+                    break;
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public int getLanes() {
+        return lanes.size();
+    }
+
+    private void run(BlockingQueue<MessageQueueMock.Update> lane) {
+        while (true) {
+            MessageQueueMock.Update update;
+            try {
+                update = lane.take();
+            } catch (InterruptedException ex) {
+                return;
+            }
+            if (update == STOP) {
+                return;
+            }
+            try {
+                callback.callback_function(update.getUserId(), update.getDelta());
+            } catch (RuntimeException ex) {
+                // One bad message must not take the lane down
+                Logger.getLogger(LaneDispatcher.class.getName()).log(Level.SEVERE,
+                        "Update failed for user_id " + update.getUserId(), ex);
+            }
+        }
+    }
+}
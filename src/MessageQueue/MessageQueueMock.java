@@ -1,48 +1,211 @@
 package MessageQueue;
 
 /**
- * Mock MessageQueue that can be subscribed to, uses RabbitMQ
+ * Mock MessageQueue that can be subscribed to, uses RabbitMQ unless given
+ * another Transport, see setDefaultTransport
  * Since mock, for unit testing assume all functions are perfect
  * @author Rob Fusco
  */
-import com.rabbitmq.client.ConnectionFactory;
-import com.rabbitmq.client.Connection;
-import com.rabbitmq.client.Channel;
-import com.rabbitmq.client.QueueingConsumer;
+import MessageQueue.Transport.Receiver;
+import Metrics.PipelineMetrics;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 public class MessageQueueMock {
     private final static String QUEUE_NAME = "MQ";
 
+    // Used by SendMock and by queues created without a transport
+    private static volatile Transport defaultTransport = new RabbitTransport("localhost", QUEUE_NAME);
+
+    private final Transport transport;
+
     public interface CallBack {
 
         void callback_function(int user_id, String delta);
     }
 
+    /**
+     * Receives messages a batch at a time. The batch is acknowledged once
+     * callback_batch returns, so it must only return after the batch has been
+     * applied durably. If it throws, the whole batch is put back on the queue.
+     */
+    public interface BatchCallBack {
+
+        void callback_batch(List<Update> updates) throws Exception;
+    }
+
+    /**
+     * One message off the queue: a delta for a single user.
+     */
+    public static class Update {
+
+        private final int user_id;
+        private final String delta;
+        private final long timestamp;
+
+        public Update(int user_id, String delta) {
+            this(user_id, delta, 0);
+        }
+
+        /**
+         * @param user_id
+         * @param delta
+         * @param timestamp when the message was sent in milliseconds since
+         * the epoch, 0 if unknown
+         */
+        public Update(int user_id, String delta, long timestamp) {
+            this.user_id = user_id;
+            this.delta = delta;
+            this.timestamp = timestamp;
+        }
+
+        public int getUserId() {
+            return user_id;
+        }
+
+        public String getDelta() {
+            return delta;
+        }
+
+        /**
+         * @return when the message was sent in milliseconds since the epoch,
+         * 0 if unknown
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+    }
+
+    /**
+     * Subscribes through the default transport.
+     */
+    public MessageQueueMock() {
+        this(defaultTransport);
+    }
+
+    public MessageQueueMock(Transport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * @return the transport SendMock sends through and new queues subscribe
+     * through, RabbitMQ queue "MQ" on localhost unless set otherwise
+     */
+    public static Transport getDefaultTransport() {
+        return defaultTransport;
+    }
+
+    /**
+     * Switches SendMock and queues created from now on to transport, e.g. a
+     * RingBufferTransport when sender and subscriber share a JVM.
+     *
+     * @param transport
+     */
+    public static void setDefaultTransport(Transport transport) {
+        defaultTransport = transport;
+    }
+
+    public Transport getTransport() {
+        return transport;
+    }
+
     public void register(CallBack callback, int user_id, String delta) {
         callback.callback_function(user_id, delta);
     }
     /**
-     * Waits until running thread is explicitly killed for any message posted to queue
+     * Waits until running thread is explicitly killed, or the transport is
+     * closed, for any message posted to queue
      * @param callback
      * @throws Exception 
      */
     public void subscribe_to_updates(CallBack callback) throws Exception {
-        ConnectionFactory factory = new ConnectionFactory();
-        factory.setHost("localhost");
-        Connection connection = factory.newConnection();
-        Channel channel = connection.createChannel();
+        try (Receiver receiver = transport.receiver(true, 0)) {
+            System.out.println("Subribed to " + transport + ". Waiting for updates.");
+
+            Update update;
+            while ((update = receiver.next(-1)) != null) {
+                PipelineMetrics.get().messageConsumed(update.getTimestamp());
+                register(callback, update.getUserId(), update.getDelta());
+            }
+        }
+    }
 
-        channel.queueDeclare(QUEUE_NAME, false, false, false, null);
-        System.out.println("Subribed to Queue " + QUEUE_NAME + ". Waiting for updates.");
+    /**
+     * Waits until running thread is explicitly killed, or the transport is
+     * closed, for any message posted to queue, handing them to callback on
+     * lanes threads at once. Messages of one user are always handled by the
+     * same lane, in the order they arrived, see LaneDispatcher. callback must
+     * be thread safe.
+     *
+     * @param callback
+     * @param lanes
+     * @throws Exception
+     */
+    public void subscribe_to_updates(CallBack callback, int lanes) throws Exception {
+        try (Receiver receiver = transport.receiver(true, 0);
+                LaneDispatcher dispatcher = new LaneDispatcher(callback, lanes, LaneDispatcher.DEFAULT_LANE_CAPACITY)) {
+            System.out.println("Subribed to " + transport + " on " + lanes + " lanes. Waiting for updates.");
+
+            Update update;
+            while ((update = receiver.next(-1)) != null) {
+                PipelineMetrics.get().messageConsumed(update.getTimestamp());
+                dispatcher.dispatch(update.getUserId(), update.getDelta());
+            }
+        }
+    }
+
+    /**
+     * Waits until running thread is explicitly killed, or the transport is
+     * closed, for any message posted to queue, handing them to callback in
+     * batches of up to maxBatch messages. A batch is closed when it is full
+     * or maxWaitMillis after its first message arrived, whichever comes
+     * first. Messages stay in arrival order.
+     *
+     * Messages are acknowledged manually, after callback returns, so a batch
+     * that was not applied is redelivered instead of lost.
+     *
+     * @param callback
+     * @param maxBatch
+     * @param maxWaitMillis
+     * @throws Exception
+     */
+    public void subscribe_to_updates(BatchCallBack callback, int maxBatch, long maxWaitMillis) throws Exception {
+        if (maxBatch < 1) {
+            throw new IllegalArgumentException("maxBatch must be positive");
+        }
+        // Unacknowledged messages the transport will hand out before we ack,
+        // enough to fill the next batch while this one is being applied
+        try (Receiver receiver = transport.receiver(false, maxBatch * 2)) {
+            System.out.println("Subribed to " + transport + " in batches of " + maxBatch + ". Waiting for updates.");
 
-        QueueingConsumer consumer = new QueueingConsumer(channel);
-        channel.basicConsume(QUEUE_NAME, true, consumer);
+            List<Update> updates = new ArrayList<>(maxBatch);
+            while (true) {
+                updates.clear();
+                Update update = receiver.next(-1);
+                if (update == null) {
+                    return;
+                }
+                long deadline = System.currentTimeMillis() + maxWaitMillis;
+                do {
+                    PipelineMetrics.get().messageConsumed(update.getTimestamp());
+                    updates.add(update);
+                    if (updates.size() >= maxBatch) {
+                        break;
+                    }
+                    // Once the wait is up, only take what has already arrived
+                    update = receiver.next(Math.max(0, deadline - System.currentTimeMillis()));
+                } while (update != null);
 
-        while (true) {
-            QueueingConsumer.Delivery delivery = consumer.nextDelivery();
-            String message = new String(delivery.getBody());
-            MessageQueueMock caller = new MessageQueueMock();
-            caller.register(callback, Integer.parseInt(delivery.getProperties().getMessageId()), message);
+                try {
+                    callback.callback_batch(updates);
+                    receiver.ack();
+                } catch (Exception ex) {
+                    Logger.getLogger(MessageQueueMock.class.getName()).log(Level.SEVERE, "Batch of " + updates.size() + " updates failed, requeueing", ex);
+                    receiver.requeue();
+                }
+            }
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,272 @@
+package MessageQueue;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Long-lived publisher of user deltas to the update queue.
+ *
+ * Opens one connection and a fixed pool of channels up front and reuses them
+ * for every message, instead of a connection, channel and queue declaration
+ * per message. Each send borrows a channel from the pool, so up to
+ * channels threads can publish at once.
+ *
+ * With confirms on, the broker acknowledges every message, but the publisher
+ * only waits for those acknowledgements every confirmBatch messages per
+ * channel, once per sendBatch, and on flush and close, rather than after
+ * every message. A message is only known to be on the broker after one of
+ * those waits.
+ *
+ * A channel the broker closed, e.g. after a nack or a confirm timeout, is
+ * replaced by a new one the next time it is borrowed, so one failure only
+ * fails the sends that were waiting on that channel.
+ *
+ * Safe to use from several threads.
+ *
+ * @author Rob Fusco
+ */
+public class Publisher implements Closeable {
+
+    public static final int DEFAULT_CHANNELS = 4;
+    public static final int DEFAULT_CONFIRM_BATCH = 1000;
+    public static final long CONFIRM_TIMEOUT_MILLIS = 30000;
+
+    private final String queue;
+    private final Connection connection;
+    private final BlockingQueue<PooledChannel> pool;
+    private final List<PooledChannel> channels = new ArrayList<>();
+    private final boolean confirms;
+    private final int confirmBatch;
+    private volatile boolean closed = false;
+
+    private static class PooledChannel {
+
+        final Channel channel;
+        // Messages published on channel since the last wait for confirms
+        int unconfirmed = 0;
+
+        PooledChannel(Channel channel) {
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * Connects to the broker and opens the channel pool.
+     *
+     * @param host broker host
+     * @param queue queue to publish to, declared once here
+     * @param channels size of the channel pool
+     * @param confirms true to have the broker confirm every message
+     * @param confirmBatch messages per channel between waits for confirms
+     * @throws IOException
+     */
+    public Publisher(String host, String queue, int channels, boolean confirms, int confirmBatch) throws IOException {
+        this(connect(host, channels, confirmBatch), queue, channels, confirms, confirmBatch);
+    }
+
+    /**
+     * Opens the channel pool on connection, which the publisher owns from now
+     * on.
+     */
+    Publisher(Connection connection, String queue, int channels, boolean confirms, int confirmBatch) throws IOException {
+        this.connection = connection;
+        this.queue = queue;
+        this.confirms = confirms;
+        this.confirmBatch = confirmBatch;
+        this.pool = new ArrayBlockingQueue<>(channels);
+        try {
+            for (int i = 0; i < channels; i++) {
+                PooledChannel pooled = openChannel();
+                if (i == 0) {
+                    pooled.channel.queueDeclare(queue, false, false, false, null);
+                }
+                this.channels.add(pooled);
+                pool.add(pooled);
+            }
+        } catch (IOException ex) {
+            connection.abort();
+            throw ex;
+        }
+    }
+
+    private static Connection connect(String host, int channels, int confirmBatch) throws IOException {
+        if (channels < 1 || confirmBatch < 1) {
+            throw new IllegalArgumentException("channels and confirmBatch must be positive");
+        }
+        ConnectionFactory factory = new ConnectionFactory();
+        factory.setHost(host);
+        // A publisher left open must not keep the JVM alive
+        AtomicInteger count = new AtomicInteger();
+        factory.setThreadFactory(r -> {
+            Thread t = new Thread(r, "publisher-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        return factory.newConnection();
+    }
+
+    private PooledChannel openChannel() throws IOException {
+        Channel channel = connection.createChannel();
+        if (confirms) {
+            channel.confirmSelect();
+        }
+        return new PooledChannel(channel);
+    }
+
+    /**
+     * Publishes the delta of one user.
+     *
+     * @param user_id
+     * @param delta
+     * @throws IOException
+     */
+    public void send(int user_id, String delta) throws IOException {
+        PooledChannel pooled = borrow();
+        try {
+            publish(pooled, user_id, delta, new Date());
+            if (confirms && pooled.unconfirmed >= confirmBatch) {
+                awaitConfirms(pooled);
+            }
+        } finally {
+            pool.add(pooled);
+        }
+    }
+
+    /**
+     * Publishes several deltas on one channel and, with confirms on, waits
+     * once for all of them to be confirmed.
+     *
+     * @param updates
+     * @throws IOException
+     */
+    public void sendBatch(List<MessageQueueMock.Update> updates) throws IOException {
+        PooledChannel pooled = borrow();
+        try {
+            Date now = new Date();
+            for (MessageQueueMock.Update update : updates) {
+                publish(pooled, update.getUserId(), update.getDelta(), now);
+            }
+            if (confirms) {
+                awaitConfirms(pooled);
+            }
+        } finally {
+            pool.add(pooled);
+        }
+    }
+
+    /**
+     * With confirms on, waits until every message published so far has been
+     * confirmed. Does nothing otherwise.
+     *
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        if (!confirms) {
+            return;
+        }
+        // Borrow every channel so none is being published on meanwhile
+        List<PooledChannel> borrowed = new ArrayList<>();
+        try {
+            for (int i = 0; i < channels.size(); i++) {
+                borrowed.add(borrow());
+            }
+            for (PooledChannel pooled : borrowed) {
+                if (pooled.unconfirmed > 0) {
+                    awaitConfirms(pooled);
+                }
+            }
+        } finally {
+            pool.addAll(borrowed);
+        }
+    }
+
+    /**
+     * Flushes and closes the connection.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            flush();
+        } finally {
+            closed = true;
+            connection.close();
+        }
+    }
+
+    public boolean isConfirms() {
+        return confirms;
+    }
+
+    private PooledChannel borrow() throws IOException {
+        if (closed) {
+            throw new IOException("Publisher is closed");
+        }
+        PooledChannel pooled;
+        try {
+            pooled = pool.take();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a channel");
+        }
+        if (pooled.channel.isOpen()) {
+            return pooled;
+        }
+        // Closed by the broker, e.g. waitForConfirmsOrDie after a nack or a
+        // timeout: the unconfirmed messages on it were already reported
+        PooledChannel fresh;
+        try {
+            fresh = openChannel();
+        } catch (IOException | RuntimeException ex) {
+            // Left for the next borrow to try again
+            pool.add(pooled);
+            throw ex;
+        }
+        synchronized (channels) {
+            channels.set(channels.indexOf(pooled), fresh);
+        }
+        return fresh;
+    }
+
+    private void publish(PooledChannel pooled, int user_id, String delta, Date timestamp) throws IOException {
+        BasicProperties properties = new BasicProperties.Builder()
+                //use message id to pass user_id
+                .messageId(Integer.toString(user_id))
+                .timestamp(timestamp)
+                .contentType("application/json")
+                .build();
+        pooled.channel.basicPublish("", queue, properties, delta.getBytes());
+        pooled.unconfirmed++;
+        Logger.getLogger(Publisher.class.getName()).log(Level.FINEST, "Sent {0}", delta);
+    }
+
+    private void awaitConfirms(PooledChannel pooled) throws IOException {
+        try {
+            pooled.channel.waitForConfirmsOrDie(CONFIRM_TIMEOUT_MILLIS);
+            pooled.unconfirmed = 0;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for confirms");
+        } catch (TimeoutException ex) {
+            throw new IOException("Broker did not confirm " + pooled.unconfirmed + " messages in time", ex);
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package MessageQueue;
+
+import MessageQueue.MessageQueueMock.Update;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.QueueingConsumer;
+import java.io.IOException;
+import java.util.Date;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Transport over a RabbitMQ queue.
+ *
+ * Sends go through a Publisher that is opened on the first send and shared by
+ * every sender, see Publisher. It is flushed and closed on JVM exit, or by
+ * close, after which the next send opens a new one. Every receiver has its
+ * own connection, closed with the receiver.
+ *
+ * @author Rob Fusco
+ */
+public class RabbitTransport implements Transport {
+
+    private final String host;
+    private final String queue;
+    private final int channels;
+    private final boolean confirms;
+    private final int confirmBatch;
+    private Publisher publisher;
+    private boolean closeOnExit = false;
+
+    /**
+     * Publishes with confirms on a pool of Publisher.DEFAULT_CHANNELS
+     * channels.
+     *
+     * @param host broker host
+     * @param queue
+     */
+    public RabbitTransport(String host, String queue) {
+        this(host, queue, Publisher.DEFAULT_CHANNELS, true, Publisher.DEFAULT_CONFIRM_BATCH);
+    }
+
+    /**
+     * @param host broker host
+     * @param queue
+     * @param channels see Publisher
+     * @param confirms see Publisher
+     * @param confirmBatch see Publisher
+     */
+    public RabbitTransport(String host, String queue, int channels, boolean confirms, int confirmBatch) {
+        this.host = host;
+        this.queue = queue;
+        this.channels = channels;
+        this.confirms = confirms;
+        this.confirmBatch = confirmBatch;
+    }
+
+    @Override
+    public void send(int user_id, String delta) throws IOException {
+        publisher().send(user_id, delta);
+    }
+
+    @Override
+    public void sendBatch(List<Update> updates) throws IOException {
+        publisher().sendBatch(updates);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        Publisher open;
+        synchronized (this) {
+            open = publisher;
+        }
+        if (open != null) {
+            open.flush();
+        }
+    }
+
+    @Override
+    public Receiver receiver(boolean autoAck, int prefetch) throws IOException {
+        return new RabbitReceiver(autoAck, prefetch);
+    }
+
+    /**
+     * Flushes and closes the publisher. Receivers are closed on their own.
+     *
+     * @throws IOException
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (publisher == null) {
+            return;
+        }
+        try {
+            publisher.close();
+        } finally {
+            publisher = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Queue " + queue + " on " + host;
+    }
+
+    private synchronized Publisher publisher() throws IOException {
+        if (publisher == null) {
+            publisher = new Publisher(host, queue, channels, confirms, confirmBatch);
+            if (!closeOnExit) {
+                Runtime.getRuntime().addShutdownHook(new Thread(this::closeQuietly, "rabbit-transport-close"));
+                closeOnExit = true;
+            }
+        }
+        return publisher;
+    }
+
+    private void closeQuietly() {
+        try {
+            close();
+        } catch (IOException ex) {
+            Logger.getLogger(RabbitTransport.class.getName()).log(Level.WARNING, "Closing publisher failed", ex);
+        }
+    }
+
+    private class RabbitReceiver implements Receiver {
+
+        private final boolean autoAck;
+        private final Connection connection;
+        private final Channel channel;
+        private final QueueingConsumer consumer;
+        // Delivery tag of the last message handed out, -1 if none since the last ack
+        private long lastTag = -1;
+
+        RabbitReceiver(boolean autoAck, int prefetch) throws IOException {
+            this.autoAck = autoAck;
+            ConnectionFactory factory = new ConnectionFactory();
+            factory.setHost(host);
+            connection = factory.newConnection();
+            try {
+                channel = connection.createChannel();
+                channel.queueDeclare(queue, false, false, false, null);
+                if (!autoAck && prefetch > 0) {
+                    channel.basicQos(prefetch);
+                }
+                consumer = new QueueingConsumer(channel);
+                channel.basicConsume(queue, autoAck, consumer);
+            } catch (IOException ex) {
+                connection.abort();
+                throw ex;
+            }
+        }
+
+        @Override
+        public Update next(long timeoutMillis) throws InterruptedException {
+            QueueingConsumer.Delivery delivery = timeoutMillis < 0
+                    ? consumer.nextDelivery()
+                    : consumer.nextDelivery(timeoutMillis);
+            if (delivery == null) {
+                return null;
+            }
+            lastTag = delivery.getEnvelope().getDeliveryTag();
+            // AMQP timestamps only have second precision
+            Date sentAt = delivery.getProperties().getTimestamp();
+            //message id carries the user_id
+            return new Update(Integer.parseInt(delivery.getProperties().getMessageId()), new String(delivery.getBody()),
+                    sentAt == null ? 0 : sentAt.getTime());
+        }
+
+        @Override
+        public void ack() throws IOException {
+            if (!autoAck && lastTag >= 0) {
+                channel.basicAck(lastTag, true);
+                lastTag = -1;
+            }
+        }
+
+        @Override
+        public void requeue() throws IOException {
+            if (!autoAck && lastTag >= 0) {
+                channel.basicNack(lastTag, true, true);
+                lastTag = -1;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            connection.close();
+        }
+    }
+}
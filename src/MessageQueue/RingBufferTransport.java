@@ -0,0 +1,426 @@
+package MessageQueue;
+
+import MessageQueue.MessageQueueMock.Update;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Transport inside the JVM, for senders and a subscriber running in the same
+ * process and for load tests that need no broker.
+ *
+ * Messages go through a ring of capacity slots allocated up front. Every
+ * message gets the next sequence number and is stored in slot sequence mod
+ * capacity. Senders claim sequence numbers without locking, a single sender
+ * with a plain counter, several senders with an atomic one. A slot is
+ * reused only once the receiver has acknowledged the message in it, so
+ * senders wait for room when the receiver is capacity messages behind, and
+ * requeue can hand unacknowledged messages out again straight from the ring.
+ *
+ * Waiting, for room or for messages, either blocks on a lock that is only
+ * touched when someone is actually waiting, or busy spins, which keeps a
+ * core busy but reacts fastest.
+ *
+ * Only one receiver can be open at a time. Closing the transport stops
+ * sends, and the receiver gets null once it has taken everything sent before,
+ * including sends that claimed their sequence just before close.
+ *
+ * @author Rob Fusco
+ */
+public class RingBufferTransport implements Transport {
+
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    private static final long CLOSED = Long.MAX_VALUE;
+
+    /**
+     * Who may send.
+     */
+    public enum ProducerType {
+        /**
+         * One thread at a time sends, the cheapest sequencing.
+         */
+        SINGLE,
+        /**
+         * Any number of threads send at once.
+         */
+        MULTI
+    }
+
+    /**
+     * How threads wait for room or for messages.
+     */
+    public enum WaitStrategy {
+        /**
+         * Park on a lock until woken.
+         */
+        BLOCKING,
+        /**
+         * Spin on the sequence numbers, a core per waiting thread.
+         */
+        BUSY_SPIN
+    }
+
+    private final int capacity;
+    private final int mask;
+    private final int shift;
+    private final ProducerType producerType;
+    private final WaitStrategy waitStrategy;
+    private final int[] userIds;
+    private final String[] deltas;
+    private final long[] timestamps;
+
+    // SINGLE: last published sequence, MULTI: last claimed sequence, CLOSED
+    // once closed
+    private final AtomicLong cursor = new AtomicLong(-1);
+    // Last claimed sequence, CLOSED once closed. The cursor itself in MULTI
+    private final AtomicLong claimed;
+    // Last sequence claimed before close
+    private volatile long end = Long.MAX_VALUE;
+    // Sequences claimed before close whose sender gave up waiting for room,
+    // they are never published
+    private final Set<Long> abandoned = ConcurrentHashMap.newKeySet();
+    // MULTI: the lap (sequence / capacity) each slot was last published in
+    private final AtomicIntegerArray published;
+    // Last sequence acknowledged by the receiver, slots up to it can be reused
+    private final AtomicLong acked = new AtomicLong(-1);
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    // Threads waiting on changed, only changed while holding lock
+    private volatile int waiting = 0;
+
+    private volatile boolean closed = false;
+    private boolean receiving = false;
+
+    /**
+     * A ring of DEFAULT_CAPACITY slots for several senders, blocking.
+     */
+    public RingBufferTransport() {
+        this(DEFAULT_CAPACITY, ProducerType.MULTI, WaitStrategy.BLOCKING);
+    }
+
+    /**
+     * @param capacity slots in the ring, a power of two
+     * @param producerType
+     * @param waitStrategy
+     */
+    public RingBufferTransport(int capacity, ProducerType producerType, WaitStrategy waitStrategy) {
+        if (capacity < 1 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("capacity must be a power of two");
+        }
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.shift = Integer.numberOfTrailingZeros(capacity);
+        this.producerType = producerType;
+        this.waitStrategy = waitStrategy;
+        this.userIds = new int[capacity];
+        this.deltas = new String[capacity];
+        this.timestamps = new long[capacity];
+        if (producerType == ProducerType.MULTI) {
+            int[] laps = new int[capacity];
+            Arrays.fill(laps, -1);
+            this.published = new AtomicIntegerArray(laps);
+            this.claimed = cursor;
+        } else {
+            this.published = null;
+            this.claimed = new AtomicLong(-1);
+        }
+    }
+
+    @Override
+    public void send(int user_id, String delta) throws IOException {
+        long seq = claim(1);
+        int index = (int) seq & mask;
+        userIds[index] = user_id;
+        deltas[index] = delta;
+        timestamps[index] = System.currentTimeMillis();
+        publish(seq, seq);
+    }
+
+    /**
+     * Sends the updates under consecutive sequence numbers, capacity at a
+     * time, so no other sender's messages end up in between within a chunk.
+     *
+     * @param updates
+     * @throws IOException
+     */
+    @Override
+    public void sendBatch(List<Update> updates) throws IOException {
+        int from = 0;
+        while (from < updates.size()) {
+            int n = Math.min(capacity, updates.size() - from);
+            long hi = claim(n);
+            long lo = hi - n + 1;
+            long now = System.currentTimeMillis();
+            for (long seq = lo; seq <= hi; seq++) {
+                Update update = updates.get(from++);
+                int index = (int) seq & mask;
+                userIds[index] = update.getUserId();
+                deltas[index] = update.getDelta();
+                timestamps[index] = update.getTimestamp() > 0 ? update.getTimestamp() : now;
+            }
+            publish(lo, hi);
+        }
+    }
+
+    /**
+     * Sends are handed over as soon as they return, nothing to do.
+     */
+    @Override
+    public void flush() {
+    }
+
+    /**
+     * @param autoAck
+     * @param prefetch ignored, the ring capacity bounds what is handed out
+     * @return
+     */
+    @Override
+    public synchronized Receiver receiver(boolean autoAck, int prefetch) {
+        if (receiving) {
+            throw new IllegalStateException("A receiver is already open");
+        }
+        receiving = true;
+        return new RingReceiver(autoAck);
+    }
+
+    /**
+     * Stops sends, wakes every waiting thread and lets the receiver drain
+     * what was sent before.
+     */
+    @Override
+    public void close() {
+        // Ends claiming at once, so every claimed sequence is either up to end
+        // or failed
+        long last = claimed.getAndSet(CLOSED);
+        if (last != CLOSED) {
+            end = last;
+        }
+        closed = true;
+        if (waitStrategy == WaitStrategy.BLOCKING) {
+            lock.lock();
+            try {
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    @Override
+    public String toString() {
+        return "Ring buffer of " + capacity + " (" + producerType + ", " + waitStrategy + ")";
+    }
+
+    /**
+     * Claims the next n sequence numbers and waits until their slots are
+     * free.
+     *
+     * @return the last claimed sequence
+     */
+    private long claim(int n) throws IOException {
+        if (closed) {
+            throw new IOException("Transport is closed");
+        }
+        // Uncontended in SINGLE, but close may swap in CLOSED between the
+        // check above and the claim
+        long last;
+        do {
+            last = claimed.get();
+            if (last == CLOSED) {
+                throw new IOException("Transport is closed");
+            }
+        } while (!claimed.compareAndSet(last, last + n));
+        long hi = last + n;
+        long wrap = hi - capacity;
+        if (wrap > acked.get()) {
+            // A claimed sequence must be published, or the receiver stalls
+            // on it, so this wait can not be interrupted, only closed
+            awaitUninterruptibly(() -> wrap <= acked.get() || closed);
+            if (wrap > acked.get()) {
+                for (long seq = hi - n + 1; seq <= hi; seq++) {
+                    abandoned.add(seq);
+                }
+                signal();
+                throw new IOException("Transport is closed");
+            }
+        }
+        return hi;
+    }
+
+    private void publish(long lo, long hi) {
+        if (producerType == ProducerType.SINGLE) {
+            cursor.set(hi);
+        } else {
+            for (long seq = lo; seq <= hi; seq++) {
+                published.set((int) seq & mask, (int) (seq >>> shift));
+            }
+        }
+        signal();
+    }
+
+    private boolean available(long seq) {
+        if (producerType == ProducerType.SINGLE) {
+            return seq <= cursor.get();
+        }
+        return published.get((int) seq & mask) == (int) (seq >>> shift);
+    }
+
+    /**
+     * After close: whether a sender may still publish seq. A sender can claim
+     * a sequence just before close and publish it just after.
+     */
+    private boolean pending(long seq) {
+        return seq <= end && !abandoned.contains(seq);
+    }
+
+    private void signal() {
+        // Publishing is a volatile write before reading waiting, and a waiter
+        // writes waiting before checking again, so one of them sees the other
+        if (waiting > 0) {
+            lock.lock();
+            try {
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Waits until ready or the deadline.
+     *
+     * @param deadlineNanos System.nanoTime to give up at, Long.MAX_VALUE for
+     * never
+     * @return whether ready
+     */
+    private boolean await(BooleanSupplier ready, long deadlineNanos) throws InterruptedException {
+        if (waitStrategy == WaitStrategy.BUSY_SPIN) {
+            while (!ready.getAsBoolean()) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                if (deadlineNanos != Long.MAX_VALUE && System.nanoTime() - deadlineNanos >= 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        lock.lock();
+        try {
+            waiting++;
+            try {
+                while (!ready.getAsBoolean()) {
+                    if (deadlineNanos == Long.MAX_VALUE) {
+                        changed.await();
+                    } else {
+                        long left = deadlineNanos - System.nanoTime();
+                        if (left <= 0) {
+                            return false;
+                        }
+                        changed.awaitNanos(left);
+                    }
+                }
+                return true;
+            } finally {
+                waiting--;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void awaitUninterruptibly(BooleanSupplier ready) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                await(ready, Long.MAX_VALUE);
+                break;
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private class RingReceiver implements Receiver {
+
+        private final boolean autoAck;
+        // Next sequence to hand out
+        private long next = acked.get() + 1;
+        private boolean open = true;
+
+        RingReceiver(boolean autoAck) {
+            this.autoAck = autoAck;
+        }
+
+        @Override
+        public Update next(long timeoutMillis) throws InterruptedException {
+            long deadline = timeoutMillis < 0
+                    ? Long.MAX_VALUE
+                    : System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            long seq = next;
+            while (!available(seq)) {
+                long wanted = seq;
+                if (!await(() -> available(wanted) || closed && !pending(wanted), deadline)) {
+                    return null;
+                }
+                if (available(seq)) {
+                    break;
+                }
+                if (!abandoned.contains(seq)) {
+                    return null;
+                }
+                // Never published, hand out what was sent after it
+                next = ++seq;
+            }
+            int index = (int) seq & mask;
+            Update update = new Update(userIds[index], deltas[index], timestamps[index]);
+            next = seq + 1;
+            if (autoAck) {
+                ack();
+            }
+            return update;
+        }
+
+        @Override
+        public void ack() {
+            if (acked.get() != next - 1) {
+                acked.set(next - 1);
+                signal();
+            }
+        }
+
+        @Override
+        public void requeue() {
+            if (!autoAck) {
+                next = acked.get() + 1;
+            }
+        }
+
+        @Override
+        public void close() {
+            synchronized (RingBufferTransport.this) {
+                if (open) {
+                    open = false;
+                    receiving = false;
+                }
+            }
+        }
+    }
+}
@@ -3,36 +3,38 @@ package MessageQueue;
 /**
  * Mock send method that uses RabbitMQ to send a message
  * Since mock, for unit testing assume all functions are perfect
+ *
+ * Sends go through MessageQueueMock.getDefaultTransport(), by default a
+ * RabbitTransport whose pooled Publisher is shared by all sends, see
+ * RabbitTransport.
  * @author Rob Fusco
  */
-import com.rabbitmq.client.AMQP.BasicProperties;
-import com.rabbitmq.client.Channel;
-import com.rabbitmq.client.Connection;
-import com.rabbitmq.client.ConnectionFactory;
-import java.util.Date;
+import java.util.List;
 
 public class SendMock {
-    private final static String QUEUE_NAME = "MQ";
-    
+
     public static void send(int user_id, String delta) throws Exception {
-        ConnectionFactory factory = new ConnectionFactory();
-        factory.setHost("localhost");
-        Connection connection = factory.newConnection();
-        Channel channel = connection.createChannel();
+        MessageQueueMock.getDefaultTransport().send(user_id, delta);
+    }
 
-        channel.queueDeclare(QUEUE_NAME, false, false, false, null);
-       
-        BasicProperties.Builder propsBuilder = new BasicProperties.Builder();
-        propsBuilder
-                //use message id to pass user_id
-                .messageId(""+user_id)
-                .timestamp(new Date())
-                .contentType("application/json");
+    /**
+     * Sends several deltas in one go, with RabbitMQ on one channel, waiting
+     * for the broker to confirm all of them.
+     *
+     * @param updates
+     * @throws Exception
+     */
+    public static void sendBatch(List<MessageQueueMock.Update> updates) throws Exception {
+        MessageQueueMock.getDefaultTransport().sendBatch(updates);
+    }
 
-        channel.basicPublish("", QUEUE_NAME, propsBuilder.build(), delta.getBytes());
-        System.out.println(" [x] Sent " + delta);
-        
-        channel.close();
-        connection.close();
+    /**
+     * Waits for everything sent so far to be handed over, with RabbitMQ until
+     * the broker confirmed it.
+     *
+     * @throws Exception
+     */
+    public static void flush() throws Exception {
+        MessageQueueMock.getDefaultTransport().flush();
     }
-}
\ No newline at end of file
+}
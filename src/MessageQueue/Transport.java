@@ -0,0 +1,87 @@
+package MessageQueue;
+
+import MessageQueue.MessageQueueMock.Update;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Carries user deltas from senders to the subscriber of the update queue.
+ * MessageQueueMock receives through one and SendMock sends through one, so
+ * the update pipeline can run on RabbitMQ (RabbitTransport) or inside the
+ * JVM (RingBufferTransport) without changing either side.
+ *
+ * @author Rob Fusco
+ */
+public interface Transport extends Closeable {
+
+    /**
+     * Sends the delta of one user.
+     *
+     * @param user_id
+     * @param delta
+     * @throws IOException
+     */
+    void send(int user_id, String delta) throws IOException;
+
+    /**
+     * Sends several deltas, in order.
+     *
+     * @param updates
+     * @throws IOException
+     */
+    void sendBatch(List<Update> updates) throws IOException;
+
+    /**
+     * Waits until everything sent so far has been handed over, for
+     * transports that do not do so on send.
+     *
+     * @throws IOException
+     */
+    void flush() throws IOException;
+
+    /**
+     * Starts receiving.
+     *
+     * @param autoAck true to acknowledge every message as it is received,
+     * false to acknowledge with Receiver.ack
+     * @param prefetch most messages handed out but not acknowledged yet, 0 for
+     * no limit. Ignored with autoAck.
+     * @return a receiver that must be closed when no longer needed
+     * @throws IOException
+     */
+    Receiver receiver(boolean autoAck, int prefetch) throws IOException;
+
+    /**
+     * Takes messages off a transport, one thread at a time.
+     */
+    interface Receiver extends Closeable {
+
+        /**
+         * Waits for the next message.
+         *
+         * @param timeoutMillis how long to wait, negative to wait for ever
+         * @return the next message, or null if none came in time or the
+         * transport was closed and everything sent before has been received
+         * @throws IOException
+         * @throws InterruptedException
+         */
+        Update next(long timeoutMillis) throws IOException, InterruptedException;
+
+        /**
+         * Acknowledges every message received so far. Does nothing with
+         * autoAck.
+         *
+         * @throws IOException
+         */
+        void ack() throws IOException;
+
+        /**
+         * Hands every message received since the last ack out again, in the
+         * same order. Does nothing with autoAck.
+         *
+         * @throws IOException
+         */
+        void requeue() throws IOException;
+    }
+}
@@ -0,0 +1,78 @@
+package Metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts events and how fast they happen: a total, the mean rate since the
+ * meter was created and a one minute exponentially weighted moving average,
+ * the same average Unix load averages use. Marking is cheap enough for every
+ * message and safe from any number of threads.
+ *
+ * @author Rob Fusco
+ */
+public class Meter {
+
+    private static final long TICK_SECONDS = 5;
+    private static final long TICK_NANOS = TimeUnit.SECONDS.toNanos(TICK_SECONDS);
+    // Weight of one tick in a one minute average
+    private static final double ALPHA = 1 - Math.exp(-TICK_SECONDS / 60.0);
+
+    private final LongAdder count = new LongAdder();
+    // Events since the last tick
+    private final LongAdder uncounted = new LongAdder();
+    private final long start = System.nanoTime();
+    private final AtomicLong lastTick = new AtomicLong(start);
+    private volatile double rate = 0;
+    private volatile boolean ticked = false;
+
+    public void mark() {
+        mark(1);
+    }
+
+    public void mark(long n) {
+        tickIfDue();
+        count.add(n);
+        uncounted.add(n);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * @return events per second since the meter was created
+     */
+    public double getMeanRate() {
+        long nanos = System.nanoTime() - start;
+        return nanos <= 0 ? 0 : count.sum() * 1e9 / nanos;
+    }
+
+    /**
+     * @return events per second, averaged over about the last minute
+     */
+    public double getOneMinuteRate() {
+        tickIfDue();
+        return rate;
+    }
+
+    private void tickIfDue() {
+        long last = lastTick.get();
+        long now = System.nanoTime();
+        long age = now - last;
+        if (age > TICK_NANOS && lastTick.compareAndSet(last, now - age % TICK_NANOS)) {
+            // Only the thread that moved lastTick gets here
+            long ticks = age / TICK_NANOS;
+            for (long i = 0; i < ticks; i++) {
+                double instant = (double) uncounted.sumThenReset() / TICK_SECONDS;
+                if (ticked) {
+                    rate += ALPHA * (instant - rate);
+                } else {
+                    rate = instant;
+                    ticked = true;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package Metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Metrics of the update pipeline, from a message coming off the queue to its
+ * fields map commit, and of the DB writes of batch changes. One instance per
+ * JVM, see get, exposed through JMX as BatchJobsDB:type=UpdatePipeline so
+ * existing monitoring can scrape it.
+ *
+ * The pipeline records into it as it goes, everything is thread safe and
+ * cheap enough for the per message path.
+ *
+ * @author Rob Fusco
+ */
+public final class PipelineMetrics implements PipelineMetricsMBean {
+
+    public static final String OBJECT_NAME = "BatchJobsDB:type=UpdatePipeline";
+
+    private static final PipelineMetrics instance = new PipelineMetrics();
+
+    static {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(instance, name);
+            }
+        } catch (JMException | RuntimeException ex) {
+            Logger.getLogger(PipelineMetrics.class.getName()).log(Level.WARNING, "Could not register " + OBJECT_NAME, ex);
+        }
+    }
+
+    private final Meter consumed = new Meter();
+    private final Meter stale = new Meter();
+    private final Meter bad = new Meter();
+    private final Meter mutations = new Meter();
+    private final Meter commits = new Meter();
+    private final Histogram commitNanos = new Histogram();
+    private final Meter timeouts = new Meter();
+    private final Meter retries = new Meter();
+    private final Meter givenUp = new Meter();
+    private final Meter deadLettered = new Meter();
+    private final AtomicLong inFlight = new AtomicLong();
+    private final Meter writesSucceeded = new Meter();
+    private final Meter writesFailed = new Meter();
+    private final Histogram lagMillis = new Histogram();
+    private final Meter verifiedRanges = new Meter();
+    private final Meter driftRanges = new Meter();
+    private final AtomicLong lastPassDrift = new AtomicLong();
+    private final Meter repaired = new Meter();
+
+    private PipelineMetrics() {
+    }
+
+    /**
+     * @return the metrics of this JVM, registered with the platform MBean
+     * server
+     */
+    public static PipelineMetrics get() {
+        return instance;
+    }
+
+    /**
+     * A message came off the queue.
+     *
+     * @param sentAt when it was sent in milliseconds since the epoch, 0 if
+     * unknown, for the queue lag
+     */
+    public void messageConsumed(long sentAt) {
+        consumed.mark();
+        if (sentAt > 0) {
+            lagMillis.record(System.currentTimeMillis() - sentAt);
+        }
+    }
+
+    /**
+     * A message was skipped because the DB already has a newer version.
+     */
+    public void staleMessage() {
+        stale.mark();
+    }
+
+    /**
+     * A message could not be parsed and was dropped.
+     */
+    public void badMessage() {
+        bad.mark();
+    }
+
+    public void fieldsMapMutated(int entries) {
+        mutations.mark(entries);
+    }
+
+    public void fieldsMapCommitted(long nanos) {
+        commits.mark();
+        commitNanos.record(nanos);
+    }
+
+    /**
+     * A DB write timed out.
+     *
+     * @param retrying false if it will not be retried
+     */
+    public void dbWriteTimedOut(boolean retrying) {
+        timeouts.mark();
+        if (retrying) {
+            retries.mark();
+        } else {
+            givenUp.mark();
+        }
+    }
+
+    public void deadLettered(int users) {
+        deadLettered.mark(users);
+    }
+
+    /**
+     * A batch write (one user or one chunk) was handed to a writer thread.
+     */
+    public void batchWriteStarted() {
+        inFlight.incrementAndGet();
+    }
+
+    public void batchWriteFinished(boolean succeeded) {
+        inFlight.decrementAndGet();
+        if (succeeded) {
+            writesSucceeded.mark();
+        } else {
+            writesFailed.mark();
+        }
+    }
+
+    /**
+     * A fields map verifier pass finished.
+     *
+     * @param ranges user_id ranges compared
+     * @param drifted ranges that did not match
+     * @param postingsRepaired fields map entries added or removed
+     */
+    public void fieldsMapVerified(int ranges, int drifted, long postingsRepaired) {
+        verifiedRanges.mark(ranges);
+        driftRanges.mark(drifted);
+        lastPassDrift.set(drifted);
+        repaired.mark(postingsRepaired);
+    }
+
+    @Override
+    public long getMessagesConsumed() {
+        return consumed.getCount();
+    }
+
+    @Override
+    public double getMessagesConsumedRate() {
+        return consumed.getOneMinuteRate();
+    }
+
+    @Override
+    public long getStaleMessagesSkipped() {
+        return stale.getCount();
+    }
+
+    @Override
+    public long getBadMessagesDropped() {
+        return bad.getCount();
+    }
+
+    @Override
+    public long getFieldsMapMutations() {
+        return mutations.getCount();
+    }
+
+    @Override
+    public double getFieldsMapMutationRate() {
+        return mutations.getOneMinuteRate();
+    }
+
+    @Override
+    public long getFieldsMapCommits() {
+        return commits.getCount();
+    }
+
+    @Override
+    public double getCommitMillisMean() {
+        return commitNanos.getMean() / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    @Override
+    public double getCommitMillis99thPercentile() {
+        return (double) commitNanos.getPercentile(99) / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    @Override
+    public double getCommitMillisMax() {
+        return (double) commitNanos.getMax() / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    @Override
+    public long getDbWriteTimeouts() {
+        return timeouts.getCount();
+    }
+
+    @Override
+    public long getDbWriteRetries() {
+        return retries.getCount();
+    }
+
+    @Override
+    public long getDbWritesGivenUp() {
+        return givenUp.getCount();
+    }
+
+    @Override
+    public long getDeadLettered() {
+        return deadLettered.getCount();
+    }
+
+    @Override
+    public long getBatchWritesInFlight() {
+        return inFlight.get();
+    }
+
+    @Override
+    public long getBatchWritesSucceeded() {
+        return writesSucceeded.getCount();
+    }
+
+    @Override
+    public long getBatchWritesFailed() {
+        return writesFailed.getCount();
+    }
+
+    @Override
+    public double getQueueLagMillisMean() {
+        return lagMillis.getMean();
+    }
+
+    @Override
+    public double getQueueLagMillis50thPercentile() {
+        return lagMillis.getPercentile(50);
+    }
+
+    @Override
+    public double getQueueLagMillis99thPercentile() {
+        return lagMillis.getPercentile(99);
+    }
+
+    @Override
+    public double getQueueLagMillisMax() {
+        return lagMillis.getMax();
+    }
+
+    @Override
+    public long getVerifiedRanges() {
+        return verifiedRanges.getCount();
+    }
+
+    @Override
+    public long getDriftRanges() {
+        return driftRanges.getCount();
+    }
+
+    @Override
+    public long getLastPassDriftRanges() {
+        return lastPassDrift.get();
+    }
+
+    @Override
+    public long getPostingsRepaired() {
+        return repaired.getCount();
+    }
+
+    @Override
+    public void resetHistograms() {
+        commitNanos.reset();
+        lagMillis.reset();
+    }
+}
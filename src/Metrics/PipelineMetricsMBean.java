@@ -0,0 +1,76 @@
+package Metrics;
+
+/**
+ * JMX view of PipelineMetrics, registered as
+ * BatchJobsDB:type=UpdatePipeline. Rates are per second averaged over about
+ * the last minute, durations are in milliseconds.
+ *
+ * @author Rob Fusco
+ */
+public interface PipelineMetricsMBean {
+
+    long getMessagesConsumed();
+
+    double getMessagesConsumedRate();
+
+    long getStaleMessagesSkipped();
+
+    long getBadMessagesDropped();
+
+    long getFieldsMapMutations();
+
+    double getFieldsMapMutationRate();
+
+    long getFieldsMapCommits();
+
+    double getCommitMillisMean();
+
+    double getCommitMillis99thPercentile();
+
+    double getCommitMillisMax();
+
+    long getDbWriteTimeouts();
+
+    long getDbWriteRetries();
+
+    long getDbWritesGivenUp();
+
+    long getDeadLettered();
+
+    long getBatchWritesInFlight();
+
+    long getBatchWritesSucceeded();
+
+    long getBatchWritesFailed();
+
+    double getQueueLagMillisMean();
+
+    double getQueueLagMillis50thPercentile();
+
+    double getQueueLagMillis99thPercentile();
+
+    double getQueueLagMillisMax();
+
+    long getVerifiedRanges();
+
+    /**
+     * @return user_id ranges whose fields map entries did not match their
+     * documents, over all verifier passes
+     */
+    long getDriftRanges();
+
+    /**
+     * @return drift ranges found by the last verifier pass
+     */
+    long getLastPassDriftRanges();
+
+    /**
+     * @return fields map entries added or removed by repairs
+     */
+    long getPostingsRepaired();
+
+    /**
+     * Starts the commit and queue lag distributions over.
+     */
+    void resetHistograms();
+}
@@ -4,15 +4,22 @@ import static BatchUpdate.BatchUpdate.industryMap;
 import static BatchUpdate.BatchUpdate.jobTitleMap;
 import Database.DatabaseMock;
 import Database.UserData;
+import Database.UserDataCodec;
+import MessageQueue.LaneDispatcher;
+import MessageQueue.MessageQueueMock;
+import MessageQueue.MessageQueueMock.Update;
+import MessageQueue.RingBufferTransport;
 import MessageQueue.SendMock;
+import MessageQueue.Transport;
 import com.google.gson.Gson;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
-import jdbm.RecordManager;
-import jdbm.RecordManagerFactory;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import jdbm.PrimaryTreeMap;
@@ -64,22 +71,22 @@ public class BatchUpdateTest extends TestCase {
     @Override
     protected void tearDown() throws Exception {
         DatabaseMock db = new DatabaseMock(dbName);
-        RecordManager recMan = RecordManagerFactory.createRecordManager(BatchUpdate.getFieldsMapName(db));
-        PrimaryTreeMap<String, Set<Integer>> jobTitlesTree = recMan.treeMap(jobTitleMap);
-        PrimaryTreeMap<String, Set<Integer>> industriesTree = recMan.treeMap(industryMap);
+        FieldsMapStore store = FieldsMapStore.open(db);
+        PrimaryTreeMap<String, PostingList> jobTitlesTree = store.table(jobTitleMap);
+        PrimaryTreeMap<String, PostingList> industriesTree = store.table(industryMap);
 
         // Delete FieldsMap
-        Iterator<Map.Entry<String, Set<Integer>>> jobIter = jobTitlesTree.entrySet().iterator();
+        Iterator<Map.Entry<String, PostingList>> jobIter = jobTitlesTree.entrySet().iterator();
         while (jobIter.hasNext()) {
             jobTitlesTree.remove(jobIter.next().getKey());
         }
 
-        Iterator<Map.Entry<String, Set<Integer>>> industryIter = industriesTree.entrySet().iterator();
+        Iterator<Map.Entry<String, PostingList>> industryIter = industriesTree.entrySet().iterator();
         while (industryIter.hasNext()) {
             industriesTree.remove(industryIter.next().getKey());
         }
 
-        recMan.close();
+        store.close();
         // Delete DB
         Iterator<Map.Entry<Integer, String>> iter = db.scan(0);
         while (iter.hasNext()) {
@@ -99,15 +106,15 @@ public class BatchUpdateTest extends TestCase {
         // prePopulateFieldsMap(DatabaseMock db) already run in set up
 
         DatabaseMock db = new DatabaseMock(dbName);
-        RecordManager recMan = RecordManagerFactory.createRecordManager(BatchUpdate.getFieldsMapName(db));
-        PrimaryTreeMap<String, Set<Integer>> jobTitlesTree = recMan.treeMap(jobTitleMap);
-        PrimaryTreeMap<String, Set<Integer>> industriesTree = recMan.treeMap(industryMap);
+        FieldsMapStore store = FieldsMapStore.open(db);
+        PrimaryTreeMap<String, PostingList> jobTitlesTree = store.table(jobTitleMap);
+        PrimaryTreeMap<String, PostingList> industriesTree = store.table(industryMap);
 
-        Set<Map.Entry<String, Set<Integer>>> jobUserIds = jobTitlesTree.entrySet();
+        Set<Map.Entry<String, PostingList>> jobUserIds = jobTitlesTree.entrySet();
         // check that the job FieldsMap is correct
-        Iterator<Map.Entry<String, Set<Integer>>> iter = jobUserIds.iterator();
+        Iterator<Map.Entry<String, PostingList>> iter = jobUserIds.iterator();
         while (iter.hasNext()) {
-            Map.Entry<String, Set<Integer>> entry = iter.next();
+            Map.Entry<String, PostingList> entry = iter.next();
             Set<Integer> user_ids = new HashSet<>();
             switch (entry.getKey()) {
                 case sdeJob:
@@ -130,11 +137,11 @@ public class BatchUpdateTest extends TestCase {
             }
         }
 
-        Set<Map.Entry<String, Set<Integer>>> industryuserIds = industriesTree.entrySet();
+        Set<Map.Entry<String, PostingList>> industryuserIds = industriesTree.entrySet();
         // check that the industry FieldsMap is correct
         iter = industryuserIds.iterator();
         while (iter.hasNext()) {
-            Map.Entry<String, Set<Integer>> entry = iter.next();
+            Map.Entry<String, PostingList> entry = iter.next();
             Set<Integer> user_ids = new HashSet<>();
             switch (entry.getKey()) {
                 case saasInd:
@@ -156,7 +163,71 @@ public class BatchUpdateTest extends TestCase {
                     break;
             }
         }
-        recMan.close();
+        store.close();
+        db.close();
+    }
+
+    /**
+     * Test of parallel prePopulateFieldsMap method, of class BatchUpdate.
+     * Rebuilds an emptied fields map with more threads than rows.
+     *
+     * @throws java.io.IOException
+     */
+    public void testPrePopulateFieldsMapParallel() throws IOException {
+        System.out.println("prePopulateFieldsMapParallel");
+        DatabaseMock db = new DatabaseMock(dbName);
+        FieldsMapStore store = FieldsMapStore.open(db);
+        store.table(jobTitleMap).clear();
+        store.table(industryMap).clear();
+        store.close();
+
+        RebuildStats stats = BatchUpdate.prePopulateFieldsMap(db, 8);
+        assertEquals(6, stats.getRows());
+        assertEquals(6, stats.getKeysWritten());
+
+        store = FieldsMapStore.open(db);
+        PrimaryTreeMap<String, PostingList> jobTitlesTree = store.table(jobTitleMap);
+        PrimaryTreeMap<String, PostingList> industriesTree = store.table(industryMap);
+        assertEquals(new HashSet<>(Arrays.asList(0, 1, 3)), jobTitlesTree.get(sdeJob));
+        assertEquals(new HashSet<>(Arrays.asList(2, 5)), jobTitlesTree.get(managerJob));
+        assertEquals(new HashSet<>(Arrays.asList(4)), jobTitlesTree.get(epJob));
+        assertEquals(new HashSet<>(Arrays.asList(0, 1)), industriesTree.get(saasInd));
+        assertEquals(new HashSet<>(Arrays.asList(2, 3)), industriesTree.get(aviInd));
+        assertEquals(new HashSet<>(Arrays.asList(4, 5)), industriesTree.get(trInd));
+        store.close();
+        db.close();
+    }
+
+    /**
+     * Test of bulkLoadFieldsMap method, of class BatchUpdate.
+     * Replaces a fields map holding a stale user_id, spilling a run every
+     * few entries.
+     *
+     * @throws java.io.IOException
+     */
+    public void testBulkLoadFieldsMap() throws IOException {
+        System.out.println("bulkLoadFieldsMap");
+        DatabaseMock db = new DatabaseMock(dbName);
+        FieldsMapStore store = FieldsMapStore.open(db);
+        store.add(jobTitleMap, epJob, 3);
+        store.close();
+
+        RebuildStats stats = BatchUpdate.bulkLoadFieldsMap(db, 4);
+        assertEquals(6, stats.getRows());
+        assertEquals(6, stats.getKeysWritten());
+        assertEquals(3, stats.getPartitions());
+
+        store = FieldsMapStore.open(db);
+        PrimaryTreeMap<String, PostingList> jobTitlesTree = store.table(jobTitleMap);
+        PrimaryTreeMap<String, PostingList> industriesTree = store.table(industryMap);
+        assertEquals(new HashSet<>(Arrays.asList(0, 1, 3)), jobTitlesTree.get(sdeJob));
+        assertEquals(new HashSet<>(Arrays.asList(2, 5)), jobTitlesTree.get(managerJob));
+        assertEquals(new HashSet<>(Arrays.asList(4)), jobTitlesTree.get(epJob));
+        assertEquals(new HashSet<>(Arrays.asList(0, 1)), industriesTree.get(saasInd));
+        assertEquals(new HashSet<>(Arrays.asList(2, 3)), industriesTree.get(aviInd));
+        assertEquals(new HashSet<>(Arrays.asList(4, 5)), industriesTree.get(trInd));
+        assertEquals(new HashSet<>(Arrays.asList(4)), store.get(jobTitleMap, epJob));
+        store.close();
         db.close();
     }
 
@@ -193,15 +264,15 @@ public class BatchUpdateTest extends TestCase {
         //Extra long wait to be certain that all threads are finished editing FieldsMap
         Thread.sleep(10000);
 
-        RecordManager recMan = RecordManagerFactory.createRecordManager(BatchUpdate.getFieldsMapName(db));
-        PrimaryTreeMap<String, Set<Integer>> jobTitlesTree = recMan.treeMap(jobTitleMap);
-        PrimaryTreeMap<String, Set<Integer>> industriesTree = recMan.treeMap(industryMap);
+        FieldsMapStore store = FieldsMapStore.open(db);
+        PrimaryTreeMap<String, PostingList> jobTitlesTree = store.table(jobTitleMap);
+        PrimaryTreeMap<String, PostingList> industriesTree = store.table(industryMap);
 
-        Set<Map.Entry<String, Set<Integer>>> jobUserIds = jobTitlesTree.entrySet();
+        Set<Map.Entry<String, PostingList>> jobUserIds = jobTitlesTree.entrySet();
         // check that the job FieldsMap is correct
-        Iterator<Map.Entry<String, Set<Integer>>> iter = jobUserIds.iterator();
+        Iterator<Map.Entry<String, PostingList>> iter = jobUserIds.iterator();
         while (iter.hasNext()) {
-            Map.Entry<String, Set<Integer>> entry = iter.next();
+            Map.Entry<String, PostingList> entry = iter.next();
             Set<Integer> user_ids = new HashSet<>();
             switch (entry.getKey()) {
                 case sdeJob:
@@ -224,11 +295,11 @@ public class BatchUpdateTest extends TestCase {
             }
         }
 
-        Set<Map.Entry<String, Set<Integer>>> industryuserIds = industriesTree.entrySet();
+        Set<Map.Entry<String, PostingList>> industryuserIds = industriesTree.entrySet();
         // check that the industry FieldsMap is correct
         iter = industryuserIds.iterator();
         while (iter.hasNext()) {
-            Map.Entry<String, Set<Integer>> entry = iter.next();
+            Map.Entry<String, PostingList> entry = iter.next();
             Set<Integer> user_ids = new HashSet<>();
             switch (entry.getKey()) {
                 case saasInd:
@@ -253,10 +324,149 @@ public class BatchUpdateTest extends TestCase {
                     break;
             }
         }
-        recMan.close();
+        store.close();
         db.close();
     }
 
+    /**
+     * Test of callback_batch method, of class BatchUpdate.UpdateFieldMap.
+     * Two changes to the same user in one batch end up where the last one
+     * left them, and stale messages in the batch are ignored.
+     *
+     * @throws java.lang.Exception
+     */
+    public void testUpdateFieldsMapBatch() throws Exception {
+        System.out.println("updateFieldsMapBatch");
+        DatabaseMock db = new DatabaseMock(dbName);
+
+        final String paycheckJob = "Paycheck Collecter";
+
+        BatchUpdate.UpdateFieldMap callback = new BatchUpdate.UpdateFieldMap(db, CommitPolicy.DEFAULT);
+        try {
+            callback.callback_batch(Arrays.asList(
+                    new Update(4, "{\"old_job_title\": \"" + epJob + "\", \"new_job_title\": \"" + managerJob + "\", \"version\": 10}"),
+                    // Stale, must not move user 0
+                    new Update(0, "{\"old_industry\": \"" + saasInd + "\", \"new_industry\": \"" + trInd + "\", \"version\": 0}"),
+                    new Update(4, "{\"old_job_title\": \"" + managerJob + "\", \"new_job_title\": \"" + paycheckJob + "\", \"version\": 11}")));
+        } finally {
+            callback.close();
+        }
+
+        try (FieldsMapStore store = FieldsMapStore.open(db)) {
+            assertTrue(store.get(jobTitleMap, epJob).isEmpty());
+            assertEquals(new HashSet<>(Arrays.asList(2, 5)), store.get(jobTitleMap, managerJob));
+            assertEquals(new HashSet<>(Arrays.asList(4)), store.get(jobTitleMap, paycheckJob));
+            assertEquals(new HashSet<>(Arrays.asList(0, 1)), store.get(industryMap, saasInd));
+            assertEquals(new HashSet<>(Arrays.asList(4, 5)), store.get(industryMap, trInd));
+        } finally {
+            db.close();
+        }
+    }
+
+    /**
+     * Test of callback_function method, of class BatchUpdate.UpdateFieldMap.
+     * Many users moving between a few job titles at once on several lanes,
+     * so the same fields map keys are written from every lane. Each user
+     * must end up under the last job title it was sent, and nowhere else.
+     *
+     * @throws java.lang.Exception
+     */
+    public void testUpdateFieldsMapLanes() throws Exception {
+        System.out.println("updateFieldsMapLanes");
+        final String[] jobs = {"Job A", "Job B", "Job C", "Job D"};
+        final int firstUser = 100;
+        final int users = 400;
+        final int moves = 6;
+
+        DatabaseMock db = new DatabaseMock(dbName);
+        try {
+            for (int user_id = firstUser; user_id < firstUser + users; user_id++) {
+                db.update(user_id, "{\"name\":\"User\",\"job_title\":\"" + jobs[0] + "\",\"industry\":\"" + saasInd + "\",\"version\":\"0\"}");
+            }
+            BatchUpdate.prePopulateFieldsMap(db);
+
+            BatchUpdate.UpdateFieldMap callback = new BatchUpdate.UpdateFieldMap(db, CommitPolicy.DEFAULT);
+            LaneDispatcher dispatcher = new LaneDispatcher(callback, 8, 16);
+            try {
+                for (int move = 1; move <= moves; move++) {
+                    for (int user_id = firstUser; user_id < firstUser + users; user_id++) {
+                        String from = jobs[(user_id + move - 1) % jobs.length];
+                        String to = jobs[(user_id + move) % jobs.length];
+                        if (move == 1) {
+                            from = jobs[0];
+                        }
+                        dispatcher.dispatch(user_id, "{\"old_job_title\": \"" + from + "\", \"new_job_title\": \"" + to + "\", \"version\": " + move + "}");
+                    }
+                }
+            } finally {
+                dispatcher.close();
+                callback.close();
+            }
+
+            try (FieldsMapStore store = FieldsMapStore.open(db)) {
+                for (String job : jobs) {
+                    Set<Integer> expected = new HashSet<>();
+                    for (int user_id = firstUser; user_id < firstUser + users; user_id++) {
+                        if (jobs[(user_id + moves) % jobs.length].equals(job)) {
+                            expected.add(user_id);
+                        }
+                    }
+                    assertEquals(job, expected, store.get(jobTitleMap, job));
+                }
+            }
+        } finally {
+            db.close();
+        }
+    }
+
+    /**
+     * Test of updateFieldsMap method, of class BatchUpdate, end to end without
+     * a broker: SendMock and the subscription share a RingBufferTransport,
+     * and closing it ends the subscription once every message was applied.
+     *
+     * @throws java.lang.Exception
+     */
+    public void testUpdateFieldsMapRingBuffer() throws Exception {
+        System.out.println("updateFieldsMapRingBuffer");
+        final String paycheckJob = "Paycheck Collecter";
+        final String fractureInd = "Fracture Fixers";
+
+        DatabaseMock db = new DatabaseMock(dbName);
+        Transport previous = MessageQueueMock.getDefaultTransport();
+        RingBufferTransport transport = new RingBufferTransport();
+        MessageQueueMock.setDefaultTransport(transport);
+        try {
+            Exception[] failed = new Exception[1];
+            Thread t = new Thread(() -> {
+                try {
+                    BatchUpdate.updateFieldsMap(db);
+                } catch (Exception ex) {
+                    failed[0] = ex;
+                }
+            });
+            t.start();
+
+            SendMock.send(4, "{\"old_job_title\": \"" + epJob + "\", \"new_job_title\": \"" + paycheckJob + "\", \"version\": 10}");
+            SendMock.send(5, "{\"old_industry\": \"" + trInd + "\", \"new_industry\": \"" + fractureInd + "\", \"version\": 10}");
+            // Stale, must not move user 0
+            SendMock.send(0, "{\"old_industry\": \"" + saasInd + "\", \"new_industry\": \"" + trInd + "\", \"version\": 0}");
+            transport.close();
+            t.join();
+            assertNull(failed[0]);
+
+            try (FieldsMapStore store = FieldsMapStore.open(db)) {
+                assertTrue(store.get(jobTitleMap, epJob).isEmpty());
+                assertEquals(new HashSet<>(Arrays.asList(4)), store.get(jobTitleMap, paycheckJob));
+                assertEquals(new HashSet<>(Arrays.asList(5)), store.get(industryMap, fractureInd));
+                assertEquals(new HashSet<>(Arrays.asList(4)), store.get(industryMap, trInd));
+                assertEquals(new HashSet<>(Arrays.asList(0, 1)), store.get(industryMap, saasInd));
+            }
+        } finally {
+            MessageQueueMock.setDefaultTransport(previous);
+            db.close();
+        }
+    }
+
     /**
      * Test of change_job_title method, of class BatchUpdate.
      *
@@ -304,6 +514,112 @@ public class BatchUpdateTest extends TestCase {
         db.close();
     }
 
+    /**
+     * Test of change_job_title method, of class BatchUpdate.
+     * The returned handle waits for every write instead of sleeping.
+     *
+     * @throws java.lang.Exception
+     */
+    public void testChange_job_title_await() throws Exception {
+        System.out.println("change_job_title_await");
+        DatabaseMock db = new DatabaseMock(dbName);
+
+        final String newJob = "Keyboard Operator";
+        Gson gson = new Gson();
+
+        // Two chunks, one of two users and one of one
+        BatchUpdate.setChunkSize(2);
+        BatchWrite batch;
+        try {
+            batch = BatchUpdate.change_job_title(db, sdeJob, newJob, WriteEngine.platform(2, 1));
+        } finally {
+            BatchUpdate.setChunkSize(BatchUpdate.DEFAULT_CHUNK_SIZE);
+        }
+        assertTrue(batch.await(30, TimeUnit.SECONDS));
+        assertEquals(3, batch.getTotal());
+        assertEquals(3, batch.getSucceeded());
+        assertEquals(0, batch.getFailed());
+
+        assertEquals(newJob, gson.fromJson(db.read(0), UserData.class).getJobTitle());
+        assertEquals(newJob, gson.fromJson(db.read(1), UserData.class).getJobTitle());
+        assertEquals(newJob, gson.fromJson(db.read(3), UserData.class).getJobTitle());
+        assertEquals(managerJob, gson.fromJson(db.read(2), UserData.class).getJobTitle());
+        db.close();
+    }
+
+    /**
+     * Test of change_job_title method, of class BatchUpdate.
+     * A user whose job_title changed after the fields map was last updated
+     * keeps the newer job_title.
+     *
+     * @throws java.lang.Exception
+     */
+    public void testChange_job_title_keepsNewerWrite() throws Exception {
+        System.out.println("change_job_title_keepsNewerWrite");
+        DatabaseMock db = new DatabaseMock(dbName);
+        try {
+            final String newJob = "Keyboard Operator";
+            final String liveJob = "Astronaut";
+            db.update(3, "{\"name\":\"Joe\",\"job_title\":\"" + liveJob + "\",\"industry\":\"" + aviInd + "\",\"version\":\"1\"}");
+
+            BatchWrite batch = BatchUpdate.change_job_title(db, sdeJob, newJob, WriteEngine.platform(2, 1));
+            assertTrue(batch.await(30, TimeUnit.SECONDS));
+            assertEquals(0, batch.getFailed());
+
+            assertEquals(newJob, UserDataCodec.decode(db.read(0)).getJobTitle());
+            assertEquals(newJob, UserDataCodec.decode(db.read(1)).getJobTitle());
+            assertEquals(liveJob, UserDataCodec.decode(db.read(3)).getJobTitle());
+            assertEquals(Long.valueOf(1), db.readVersion(3));
+        } finally {
+            db.close();
+        }
+    }
+
+    /**
+     * Test of change_job_title and retryDeadLetters methods, of class
+     * BatchUpdate. Users whose write keeps timing out are dead lettered, and
+     * run again once the DB recovers.
+     *
+     * @throws java.lang.Exception
+     */
+    public void testChange_job_title_deadLetters() throws Exception {
+        System.out.println("change_job_title_deadLetters");
+        final String newJob = "Keyboard Operator";
+
+        DatabaseMock overloaded = new DatabaseMock(dbName) {
+            @Override
+            public Map<Integer, Long> compareAndUpdateBatch(Map<Integer, String> documents, Map<Integer, Long> expectedVersions) throws TimeoutException {
+                throw new TimeoutException("overloaded");
+            }
+        };
+        BatchUpdate.setRetryPolicy(new RetryPolicy(3, 1, 2, 0));
+        try {
+            BatchWrite batch = BatchUpdate.change_job_title(overloaded, sdeJob, newJob, WriteEngine.platform(2, 1));
+            assertTrue(batch.await(30, TimeUnit.SECONDS));
+            assertEquals(3, batch.getFailed());
+        } finally {
+            BatchUpdate.setRetryPolicy(RetryPolicy.DEFAULT);
+            overloaded.close();
+        }
+
+        DatabaseMock db = new DatabaseMock(dbName);
+        try {
+            try (DeadLetterStore store = DeadLetterStore.open(db)) {
+                assertEquals(3, store.size());
+            }
+            assertEquals(sdeJob, UserDataCodec.decode(db.read(0)).getJobTitle());
+
+            assertEquals(3, BatchUpdate.retryDeadLetters(db));
+            assertEquals(newJob, UserDataCodec.decode(db.read(0)).getJobTitle());
+            assertEquals(newJob, UserDataCodec.decode(db.read(3)).getJobTitle());
+            try (DeadLetterStore store = DeadLetterStore.open(db)) {
+                assertEquals(0, store.size());
+            }
+        } finally {
+            db.close();
+        }
+    }
+
     /**
      * Test of change_industry method, of class BatchUpdate.
      *
@@ -0,0 +1,92 @@
+package BatchUpdate;
+
+import Database.UserData.FieldType;
+import java.io.IOException;
+import java.util.Map;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Rob Fusco
+ */
+public class DeltaTest extends TestCase {
+
+    /**
+     * Test of read method, of class Delta.
+     * Reading again into the same Delta forgets the previous message.
+     *
+     * @throws java.lang.Exception
+     */
+    public void testRead() throws Exception {
+        System.out.println("read");
+        Delta delta = new Delta().read("{\"old_job_title\": \"A\", \"new_job_title\": \"B\", "
+                + "\"old_favourite\": {\"x\": 1}, \"version\": \"10\"}");
+        assertEquals("A", delta.getOld(FieldType.job_title));
+        assertEquals("B", delta.getNew(FieldType.job_title));
+        assertFalse(delta.hasOld(FieldType.industry));
+        assertTrue(delta.hasVersion());
+        assertEquals(10, delta.getVersion());
+
+        delta.read("{\"old_industry\": null, \"new_industry\": \"SaaS\"}");
+        assertFalse(delta.hasOld(FieldType.job_title));
+        assertTrue(delta.hasOld(FieldType.industry));
+        assertNull(delta.getOld(FieldType.industry));
+        assertEquals("SaaS", delta.getNew(FieldType.industry));
+        assertFalse(delta.hasVersion());
+
+        try {
+            delta.read("{\"version\": \"ten\"}");
+            fail("Read a delta with a bad version");
+        } catch (IOException ex) {
+            // expected
+        }
+    }
+
+    /**
+     * Test of add and coalesced methods, of class DeltaCoalescer.
+     *
+     * @throws java.lang.Exception
+     */
+    public void testCoalesce() throws Exception {
+        System.out.println("coalesce");
+        DeltaCoalescer coalescer = new DeltaCoalescer();
+        Delta reused = new Delta();
+        coalescer.add(1, reused.read("{\"old_job_title\": \"A\", \"new_job_title\": \"B\", \"version\": 5}"));
+        coalescer.add(2, reused.read("{\"old_industry\": \"X\", \"new_industry\": \"Y\", \"version\": 3}"));
+        coalescer.add(1, reused.read("{\"old_job_title\": \"B\", \"new_job_title\": \"C\", \"version\": 6}"));
+        coalescer.add(2, reused.read("{\"old_industry\": \"Y\", \"new_industry\": \"X\", \"version\": 4}"));
+
+        Map<Integer, Delta> coalesced = coalescer.coalesced();
+        assertEquals(2, coalescer.size());
+        Delta first = coalesced.get(1);
+        assertEquals("A", first.getOld(FieldType.job_title));
+        assertEquals("C", first.getNew(FieldType.job_title));
+        assertEquals(6, first.getVersion());
+
+        // Moved back to where it started, nothing left to write
+        Delta second = coalesced.get(2);
+        assertFalse(second.hasOld(FieldType.industry));
+        assertFalse(second.hasNew(FieldType.industry));
+        assertEquals(4, second.getVersion());
+    }
+
+    /**
+     * Test of add and coalesced methods, of class DeltaCoalescer.
+     * A removal after a move drops the value moved to, so only the removal of
+     * the value the user started with is left.
+     *
+     * @throws java.lang.Exception
+     */
+    public void testCoalesceRemoval() throws Exception {
+        System.out.println("coalesceRemoval");
+        DeltaCoalescer coalescer = new DeltaCoalescer();
+        Delta reused = new Delta();
+        coalescer.add(1, reused.read("{\"old_job_title\": \"A\", \"new_job_title\": \"B\", \"version\": 5}"));
+        coalescer.add(1, reused.read("{\"old_job_title\": \"B\", \"version\": 6}"));
+
+        Delta delta = coalescer.coalesced().get(1);
+        assertEquals("A", delta.getOld(FieldType.job_title));
+        assertFalse(delta.hasNew(FieldType.job_title));
+        assertEquals(6, delta.getVersion());
+    }
+}
@@ -0,0 +1,96 @@
+package BatchUpdate;
+
+import Database.DatabaseMock;
+import Database.TestFiles;
+import java.util.Map;
+import jdbm.PrimaryTreeMap;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Rob Fusco
+ */
+public class ExternalFieldsMapBuilderTest extends TestCase {
+
+    private static final String dbName = "ExternalFieldsMapBuilderTest";
+
+    private DatabaseMock db;
+
+    @Override
+    protected void setUp() throws Exception {
+        TestFiles.deleteFiles(dbName, "FieldsMap4" + dbName);
+        db = new DatabaseMock(dbName);
+        super.setUp();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        TestFieldsMaps.clearTables(db);
+        db.close();
+        TestFiles.deleteFiles(dbName, "FieldsMap4" + dbName);
+        super.tearDown();
+    }
+
+    /**
+     * Test of build method, of class ExternalFieldsMapBuilder.
+     * More runs than can be merged at once take an extra merge pass, and the
+     * result matches an in-place rebuild.
+     *
+     * @throws java.lang.Exception
+     */
+    public void testMergePasses() throws Exception {
+        System.out.println("mergePasses");
+        int users = 300;
+        for (int user_id = 0; user_id < users; user_id++) {
+            db.update(user_id, "{\"name\":\"User " + user_id + "\",\"job_title\":\"Job " + (user_id % 13)
+                    + "\",\"industry\":\"Industry " + (user_id % 5) + "\",\"version\":\"0\"}");
+        }
+
+        // One user per run
+        RebuildStats stats = ExternalFieldsMapBuilder.build(db, 2);
+        assertEquals(users, stats.getRows());
+        assertEquals(users, stats.getPartitions());
+        assertEquals(13 + 5, stats.getKeysWritten());
+
+        try (FieldsMapStore store = FieldsMapStore.open(db)) {
+            PrimaryTreeMap<String, PostingList> jobTitles = store.table(BatchUpdate.jobTitleMap);
+            assertEquals(13, jobTitles.size());
+            for (Map.Entry<String, PostingList> entry : jobTitles.entrySet()) {
+                int job = Integer.parseInt(entry.getKey().substring("Job ".length()));
+                PostingList user_ids = entry.getValue();
+                assertEquals((users - job + 12) / 13, user_ids.size());
+                for (int i = 0; i < user_ids.size(); i++) {
+                    assertEquals(job + 13 * i, user_ids.get(i));
+                }
+            }
+            assertEquals(5, store.table(BatchUpdate.industryMap).size());
+            assertEquals(users / 5, store.get(BatchUpdate.industryMap, "Industry 4").size());
+        }
+    }
+
+    /**
+     * Test of build method, of class ExternalFieldsMapBuilder.
+     * Loading an empty DB empties the fields map, and cached posting lists of
+     * the old tables are not served after the swap.
+     *
+     * @throws java.lang.Exception
+     */
+    public void testSwap() throws Exception {
+        System.out.println("swap");
+        try (FieldsMapStore store = FieldsMapStore.open(db)) {
+            store.add(BatchUpdate.jobTitleMap, "Job", 1);
+            assertNotNull(store.get(BatchUpdate.jobTitleMap, "Job"));
+
+            RebuildStats stats = ExternalFieldsMapBuilder.build(db, 10);
+            assertEquals(0, stats.getRows());
+            assertEquals(0, stats.getPartitions());
+            assertNull(store.get(BatchUpdate.jobTitleMap, "Job"));
+            assertTrue(store.table(BatchUpdate.jobTitleMap).isEmpty());
+
+            // A fresh table left by a load that did not finish is dropped
+            store.fresh(BatchUpdate.industryMap).put("Industry", new PostingList());
+            ExternalFieldsMapBuilder.build(db, 10);
+            assertTrue(store.table(BatchUpdate.industryMap).isEmpty());
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package BatchUpdate;
+
+import Database.DatabaseMock;
+import Database.UserData.FieldType;
+import MessageQueue.MessageQueueMock.Update;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Rob Fusco
+ */
+public class FieldIndexTest extends TestCase {
+
+    private static final String dbName = "FieldIndexTest";
+    private static final String nameMap = "namePostings";
+
+    private DatabaseMock db;
+
+    @Override
+    protected void setUp() throws Exception {
+        db = new DatabaseMock(dbName);
+        db.update(1, "{\"name\":\"Rob\",\"job_title\":\"Software Developer\",\"industry\":\"SaaS\",\"version\":\"0\"}");
+        db.update(2, "{\"name\":\"ROB\",\"job_title\":\"Finance Manager\",\"industry\":\"Aviation\",\"version\":\"0\"}");
+        db.update(3, "{\"name\":\"Jane\",\"job_title\":\"Software Developer\",\"industry\":\"Aviation\",\"version\":\"0\"}");
+        // Case insensitive on purpose, lookups and queue messages go through the same key
+        FieldIndex.register(new FieldIndex(FieldType.name, nameMap, String::toLowerCase));
+        super.setUp();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FieldIndex.unregister(FieldType.name);
+        TestFieldsMaps.clearTables(db, nameMap, BatchUpdate.jobTitleMap, BatchUpdate.industryMap);
+        Iterator<Map.Entry<Integer, String>> iter = db.scan(0);
+        while (iter.hasNext()) {
+            db.delete(iter.next().getKey());
+        }
+        db.close();
+        super.tearDown();
+    }
+
+    /**
+     * Test of register method, of class FieldIndex.
+     * A registered index is built along with the others and kept up to date
+     * by the queue consumer.
+     *
+     * @throws java.lang.Exception
+     */
+    public void testRegisteredIndexIsMaintained() throws Exception {
+        System.out.println("registeredIndexIsMaintained");
+        assertEquals(3, FieldIndex.all().size());
+        BatchUpdate.prePopulateFieldsMap(db);
+
+        try (FieldsMapStore store = FieldsMapStore.open(db)) {
+            assertEquals(new HashSet<>(Arrays.asList(1, 2)), store.get(nameMap, "rob"));
+            assertEquals(new HashSet<>(Arrays.asList(1, 3)), store.get(BatchUpdate.jobTitleMap, "Software Developer"));
+        }
+
+        BatchUpdate.UpdateFieldMap callback = new BatchUpdate.UpdateFieldMap(db, CommitPolicy.PER_MUTATION);
+        try {
+            callback.callback_batch(Arrays.asList(
+                    new Update(2, "{\"old_name\": \"ROB\", \"new_name\": \"Robert\", \"version\": 1}")));
+        } finally {
+            callback.close();
+        }
+
+        try (FieldsMapStore store = FieldsMapStore.open(db)) {
+            assertEquals(new HashSet<>(Arrays.asList(1)), store.get(nameMap, "rob"));
+            assertEquals(new HashSet<>(Arrays.asList(2)), store.get(nameMap, "robert"));
+        }
+    }
+
+    /**
+     * Test of prePopulateFieldsMap method, of class BatchUpdate.
+     * The parallel build fills registered indexes too.
+     *
+     * @throws java.lang.Exception
+     */
+    public void testParallelBuildUsesRegistry() throws Exception {
+        System.out.println("parallelBuildUsesRegistry");
+        RebuildStats stats = BatchUpdate.prePopulateFieldsMap(db, 2);
+        assertEquals(3, stats.getRows());
+
+        try (FieldsMapStore store = FieldsMapStore.open(db)) {
+            assertEquals(new HashSet<>(Arrays.asList(3)), store.get(nameMap, "jane"));
+            assertEquals(new HashSet<>(Arrays.asList(2, 3)), store.get(BatchUpdate.industryMap, "Aviation"));
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package BatchUpdate;
+
+import Database.DatabaseMock;
+import Database.TestFiles;
+import Database.UserData.FieldType;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import jdbm.PrimaryTreeMap;
+import jdbm.RecordManager;
+import jdbm.RecordManagerFactory;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Rob Fusco
+ */
+public class FieldsMapStoreTest extends TestCase {
+
+    private static final String dbName = "FieldsMapStoreTest";
+    private static final String table = "testTable";
+
+    private DatabaseMock db;
+
+    @Override
+    protected void setUp() throws Exception {
+        db = new DatabaseMock(dbName);
+        super.setUp();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        TestFieldsMaps.clearTables(db, table);
+        db.close();
+        super.tearDown();
+    }
+
+    /**
+     * Test of open and close methods, of class FieldsMapStore.
+     * Opening twice gives two handles on one store which stays usable until
+     * the last handle is closed, and a handle can only be closed once.
+     *
+     * @throws java.lang.Exception
+     */
+    public void testOpenIsShared() throws Exception {
+        System.out.println("openIsShared");
+        FieldsMapStore first = FieldsMapStore.open(db);
+        FieldsMapStore second = FieldsMapStore.open(db);
+        assertNotSame(first, second);
+        assertSame(first.getCache(), second.getCache());
+
+        first.add(table, "value", 1);
+        first.close();
+        try {
+            first.close();
+            fail("Closed the same handle twice");
+        } catch (IllegalStateException ex) {
+            // expected
+        }
+        // The second close did not drop the other handle
+        second.add(table, "value", 2);
+        assertEquals(new HashSet<>(Arrays.asList(1, 2)), second.get(table, "value"));
+        second.close();
+
+        // Reopening after the last close opens a new store, which reads what
+        // was committed on close
+        try (FieldsMapStore store = FieldsMapStore.open(db)) {
+            assertNotSame(first.getCommitLock(), store.getCommitLock());
+            assertEquals(new HashSet<>(Arrays.asList(1, 2)), store.get(table, "value"));
+        }
+    }
+
+    /**
+     * Test of get method, of class FieldsMapStore.
+     * Changing the returned list does not change the fields map.
+     *
+     * @throws java.lang.Exception
+     */
+    public void testGetReturnsCopy() throws Exception {
+        System.out.println("getReturnsCopy");
+        try (FieldsMapStore store = FieldsMapStore.open(db)) {
+            store.add(table, "value", 1);
+            PostingList user_ids = store.get(table, "value");
+            user_ids.add(99);
+            assertEquals(new HashSet<>(Arrays.asList(1)), store.get(table, "value"));
+
+            store.remove(table, "value", 1);
+            assertTrue(store.get(table, "value").isEmpty());
+            assertNull(store.get(table, "missing"));
+        }
+    }
+
+    /**
+     * Test of commit method, of class FieldsMapStore.
+     * A commit of the store waits for the GroupCommitter mutation being
+     * applied, so it never holds half of it.
+     *
+     * @throws java.lang.Exception
+     */
+    public void testCommitWaitsForMutation() throws Exception {
+        System.out.println("commitWaitsForMutation");
+        try (FieldsMapStore store = FieldsMapStore.open(db);
+                GroupCommitter committer = new GroupCommitter(CommitPolicy.DEFAULT, store)) {
+            CountDownLatch applying = new CountDownLatch(1);
+            CountDownLatch finish = new CountDownLatch(1);
+            Thread mutator = new Thread(() -> {
+                try {
+                    committer.mutate(() -> {
+                        store.add(table, "key", 1);
+                        applying.countDown();
+                        try {
+                            finish.await();
+                        } catch (InterruptedException ex) {
+                            throw new InterruptedIOException();
+                        }
+                        store.add(table, "key", 2);
+                        return 2;
+                    });
+                } catch (Exception ex) {
+                    throw new RuntimeException(ex);
+                }
+            });
+            mutator.start();
+            applying.await();
+
+            AtomicBoolean committed = new AtomicBoolean();
+            Thread commit = new Thread(() -> {
+                try {
+                    store.commit();
+                    committed.set(true);
+                } catch (Exception ex) {
+                    throw new RuntimeException(ex);
+                }
+            });
+            commit.start();
+            commit.join(200);
+            assertFalse(committed.get());
+
+            finish.countDown();
+            mutator.join(5000);
+            commit.join(5000);
+            assertTrue(committed.get());
+            assertEquals(new HashSet<>(Arrays.asList(1, 2)), store.get(table, "key"));
+        }
+    }
+
+    /**
+     * Test of open method, of class FieldsMapStore.
+     * Tables of Java serialized sets left by an older version are migrated to
+     * the PostingList tables and deleted.
+     *
+     * @throws java.lang.Exception
+     */
+    public void testMigratesLegacyTables() throws Exception {
+        System.out.println("migratesLegacyTables");
+        String legacyName = dbName + "Legacy";
+        TestFiles.deleteFiles(legacyName, "FieldsMap4" + legacyName);
+        DatabaseMock legacyDb = new DatabaseMock(legacyName);
+        try {
+            RecordManager recMan = RecordManagerFactory.createRecordManager(BatchUpdate.getFieldsMapName(legacyDb));
+            try {
+                PrimaryTreeMap<String, Set<Integer>> jobTitles = recMan.treeMap("jobTitle");
+                jobTitles.put("Software Developer", new HashSet<>(Arrays.asList(3, 1)));
+                jobTitles.put("Manager", new HashSet<>(Arrays.asList(2)));
+                PrimaryTreeMap<String, Set<Integer>> industries = recMan.treeMap("industryTitle");
+                industries.put("SaaS", new HashSet<>(Arrays.asList(1, 2, 3)));
+                recMan.commit();
+            } finally {
+                recMan.close();
+            }
+
+            try (FieldsMapStore store = FieldsMapStore.open(legacyDb)) {
+                assertEquals(new HashSet<>(Arrays.asList(1, 3)), store.get(BatchUpdate.jobTitleMap, "Software Developer"));
+                assertEquals(new HashSet<>(Arrays.asList(2)), store.get(BatchUpdate.jobTitleMap, "Manager"));
+                assertEquals(new HashSet<>(Arrays.asList(1, 2, 3)), store.get(BatchUpdate.industryMap, "SaaS"));
+            }
+            assertEquals(new HashSet<>(Arrays.asList(1, 3)), BatchUpdate.findMatches(legacyDb, "Software Developer", FieldType.job_title));
+
+            recMan = RecordManagerFactory.createRecordManager(BatchUpdate.getFieldsMapName(legacyDb));
+            try {
+                assertEquals(0, recMan.getNamedObject("jobTitle"));
+                assertEquals(0, recMan.getNamedObject("industryTitle"));
+            } finally {
+                recMan.close();
+            }
+        } finally {
+            legacyDb.close();
+            TestFiles.deleteFiles(legacyName, "FieldsMap4" + legacyName);
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package BatchUpdate;
+
+import Database.DatabaseMock;
+import Database.TestFiles;
+import Metrics.PipelineMetrics;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Rob Fusco
+ */
+public class FieldsMapVerifierTest extends TestCase {
+
+    private static final String dbName = "FieldsMapVerifierTest";
+    private static final int users = 100;
+
+    private DatabaseMock db;
+
+    @Override
+    protected void setUp() throws Exception {
+        TestFiles.deleteFiles(dbName, "FieldsMap4" + dbName);
+        db = new DatabaseMock(dbName);
+        for (int user_id = 0; user_id < users; user_id++) {
+            db.update(user_id, document(user_id, "Job " + (user_id % 7), "Industry " + (user_id % 3)));
+        }
+        BatchUpdate.prePopulateFieldsMap(db);
+        super.setUp();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        TestFieldsMaps.clearTables(db);
+        db.close();
+        TestFiles.deleteFiles(dbName, "FieldsMap4" + dbName);
+        super.tearDown();
+    }
+
+    private static String document(int user_id, String job_title, String industry) {
+        return "{\"name\":\"User " + user_id + "\",\"job_title\":\"" + job_title + "\",\"industry\":\"" + industry + "\",\"version\":\"0\"}";
+    }
+
+    /**
+     * Test of verify method, of class FieldsMapVerifier.
+     * A fields map built from the documents has no drift.
+     *
+     * @throws java.lang.Exception
+     */
+    public void testConsistent() throws Exception {
+        System.out.println("consistent");
+        FieldsMapVerifier verifier = new FieldsMapVerifier(db);
+        verifier.setRangeBits(4);
+        long verified = PipelineMetrics.get().getVerifiedRanges();
+
+        VerifyStats stats = verifier.verify();
+        assertEquals(7, stats.getRanges());
+        assertEquals(0, stats.getDriftRanges());
+        assertEquals(users, stats.getRows());
+        assertEquals(2 * users, stats.getPostings());
+        assertEquals(0, stats.getPostingsRepaired());
+        assertEquals(verified + 7, PipelineMetrics.get().getVerifiedRanges());
+        assertEquals(0, PipelineMetrics.get().getLastPassDriftRanges());
+    }
+
+    /**
+     * Test of verify method, of class FieldsMapVerifier.
+     * Entries left behind by a delete, missing or stale entries are repaired
+     * in the ranges they are in, after which the next pass finds no drift.
+     *
+     * @throws java.lang.Exception
+     */
+    public void testRepairsDrift() throws Exception {
+        System.out.println("repairsDrift");
+        // Changes that bypass the fields map
+        db.delete(3);
+        db.update(40, document(40, "Astronaut", "Industry 0"));
+        try (FieldsMapStore store = FieldsMapStore.open(db)) {
+            store.remove(BatchUpdate.industryMap, "Industry 2", 41);
+            store.add(BatchUpdate.jobTitleMap, "Job 1", 42);
+        }
+
+        FieldsMapVerifier verifier = new FieldsMapVerifier(db);
+        verifier.setRangeBits(4);
+        long repaired = PipelineMetrics.get().getPostingsRepaired();
+
+        VerifyStats stats = verifier.verify();
+        // user 3 in range 0, users 40 to 42 in range 2
+        assertEquals(2, stats.getDriftRanges());
+        assertEquals(4, stats.getUsersRepaired());
+        // 2 for user 3, 4 for user 40, 1 each for 41 and 42
+        assertEquals(8, stats.getPostingsRepaired());
+        assertEquals(repaired + 8, PipelineMetrics.get().getPostingsRepaired());
+        assertEquals(2, PipelineMetrics.get().getLastPassDriftRanges());
+
+        try (FieldsMapStore store = FieldsMapStore.open(db)) {
+            assertFalse(store.get(BatchUpdate.jobTitleMap, "Job 3").contains(3));
+            assertTrue(store.get(BatchUpdate.jobTitleMap, "Astronaut").contains(40));
+            assertFalse(store.get(BatchUpdate.jobTitleMap, "Job 5").contains(40));
+            assertTrue(store.get(BatchUpdate.industryMap, "Industry 0").contains(40));
+            assertFalse(store.get(BatchUpdate.industryMap, "Industry 1").contains(40));
+            assertTrue(store.get(BatchUpdate.industryMap, "Industry 2").contains(41));
+            assertFalse(store.get(BatchUpdate.jobTitleMap, "Job 1").contains(42));
+        }
+
+        stats = verifier.verify();
+        assertEquals(0, stats.getDriftRanges());
+        assertEquals(2 * (users - 1), stats.getPostings());
+    }
+
+    /**
+     * Test of setMaxBatchEntries method, of class FieldsMapVerifier.
+     * An emptied fields map drifts in every range, it is refilled a batch of
+     * ranges at a time.
+     *
+     * @throws java.lang.Exception
+     */
+    public void testRepairsInBatches() throws Exception {
+        System.out.println("repairsInBatches");
+        TestFieldsMaps.clearTables(db);
+
+        FieldsMapVerifier verifier = new FieldsMapVerifier(db);
+        verifier.setRangeBits(4);
+        // 16 users with 2 entries each per range, so one range per batch
+        verifier.setMaxBatchEntries(20);
+
+        VerifyStats stats = verifier.verify();
+        assertEquals(7, stats.getDriftRanges());
+        assertEquals(0, stats.getPostings());
+        assertEquals(users, stats.getUsersRepaired());
+        assertEquals(2 * users, stats.getPostingsRepaired());
+
+        try (FieldsMapStore store = FieldsMapStore.open(db)) {
+            assertTrue(store.get(BatchUpdate.jobTitleMap, "Job 5").contains(40));
+            assertTrue(store.get(BatchUpdate.industryMap, "Industry 1").contains(40));
+        }
+
+        stats = verifier.verify();
+        assertEquals(0, stats.getDriftRanges());
+        assertEquals(2 * users, stats.getPostings());
+    }
+
+    /**
+     * Test of setMaxRowsPerSecond method, of class FieldsMapVerifier.
+     * A pass reads no faster than the limit, and stops once interrupted with
+     * or without one.
+     *
+     * @throws java.lang.Exception
+     */
+    public void testThrottle() throws Exception {
+        System.out.println("throttle");
+        FieldsMapVerifier verifier = new FieldsMapVerifier(db);
+        // 100 documents, 2 x 100 entries and their keys
+        verifier.setMaxRowsPerSecond(1000);
+        VerifyStats stats = verifier.verify();
+        assertTrue(stats.toString(), stats.getElapsedMillis() >= 250);
+
+        // Unthrottled passes never sleep, they still stop once interrupted
+        verifier.setMaxRowsPerSecond(0);
+        Thread.currentThread().interrupt();
+        try {
+            verifier.verify();
+            fail("Verified while interrupted");
+        } catch (InterruptedException ex) {
+            // expected
+        }
+        assertFalse(Thread.interrupted());
+    }
+
+    /**
+     * Test of start and close methods, of class FieldsMapVerifier.
+     * Background passes repair drift until the verifier is closed.
+     *
+     * @throws java.lang.Exception
+     */
+    public void testBackground() throws Exception {
+        System.out.println("background");
+        db.delete(7);
+        try (FieldsMapVerifier verifier = new FieldsMapVerifier(db)) {
+            verifier.start(10);
+            try {
+                verifier.start(10);
+                fail("Started twice");
+            } catch (IllegalStateException ex) {
+                // expected
+            }
+            long deadline = System.currentTimeMillis() + 10000;
+            boolean repaired = false;
+            while (!repaired && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+                try (FieldsMapStore store = FieldsMapStore.open(db)) {
+                    repaired = !store.get(BatchUpdate.jobTitleMap, "Job 0").contains(7);
+                }
+            }
+            assertTrue(repaired);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package BatchUpdate;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Rob Fusco
+ */
+public class GroupCommitterTest extends TestCase {
+
+    /**
+     * Test of mutate method, of class GroupCommitter.
+     * Commits once every maxMutations mutations.
+     *
+     * @throws java.lang.Exception
+     */
+    public void testCommitEveryMutations() throws Exception {
+        System.out.println("commitEveryMutations");
+        AtomicInteger commits = new AtomicInteger();
+        GroupCommitter committer = new GroupCommitter(CommitPolicy.everyMutations(10), commits::incrementAndGet);
+
+        for (int i = 0; i < 25; i++) {
+            committer.mutate(() -> 2);
+        }
+        // 50 mutations in groups of 10
+        assertEquals(5, commits.get());
+        assertEquals(0, committer.getPending());
+
+        committer.mutate(() -> 0);
+        assertEquals(5, commits.get());
+
+        committer.mutate(() -> 3);
+        assertEquals(3, committer.getPending());
+        committer.close();
+        assertEquals(6, commits.get());
+        assertEquals(0, committer.getPending());
+    }
+
+    /**
+     * Test of mutate method, of class GroupCommitter.
+     * Pending mutations are committed once they are maxDelayMillis old even
+     * if the group is not full.
+     *
+     * @throws java.lang.Exception
+     */
+    public void testCommitEveryMillis() throws Exception {
+        System.out.println("commitEveryMillis");
+        AtomicInteger commits = new AtomicInteger();
+        GroupCommitter committer = new GroupCommitter(new CommitPolicy(1000, 50), commits::incrementAndGet);
+
+        committer.mutate(() -> 1);
+        assertEquals(0, commits.get());
+
+        // getCommits is counted along with clearing pending, after the commit
+        long deadline = System.currentTimeMillis() + 5000;
+        while (committer.getCommits() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, commits.get());
+        assertEquals(0, committer.getPending());
+        committer.close();
+        // Nothing was pending so closing does not commit again
+        assertEquals(1, commits.get());
+    }
+
+    /**
+     * Test of close method, of class GroupCommitter.
+     *
+     * @throws java.lang.Exception
+     */
+    public void testMutateAfterClose() throws Exception {
+        System.out.println("mutateAfterClose");
+        GroupCommitter committer = new GroupCommitter(CommitPolicy.DEFAULT, () -> {
+        });
+        committer.close();
+        try {
+            committer.mutate(() -> 1);
+            fail("Mutation accepted after close");
+        } catch (IllegalStateException ex) {
+            // expected
+        }
+    }
+}
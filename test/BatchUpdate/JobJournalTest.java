@@ -0,0 +1,156 @@
+package BatchUpdate;
+
+import Database.DatabaseMock;
+import Database.TestFiles;
+import Database.UserData.FieldType;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Rob Fusco
+ */
+public class JobJournalTest extends TestCase {
+
+    private static final String dbName = "JobJournalTest";
+    private static final String oldJob = "Software Developer";
+    private static final String newJob = "Software Engineer";
+
+    private DatabaseMock db;
+
+    @Override
+    protected void setUp() throws Exception {
+        TestFiles.deleteFiles(dbName, "FieldsMap4" + dbName, "Jobs4" + dbName);
+        db = new DatabaseMock(dbName);
+        super.setUp();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        TestFieldsMaps.clearTables(db);
+        db.close();
+        TestFiles.deleteFiles(dbName, "FieldsMap4" + dbName, "Jobs4" + dbName);
+        super.tearDown();
+    }
+
+    private void addUsers(int users) throws Exception {
+        for (int user_id = 0; user_id < users; user_id++) {
+            db.update(user_id, "{\"name\":\"User " + user_id + "\",\"job_title\":\"" + oldJob
+                    + "\",\"industry\":\"Internet\",\"version\":\"0\"}");
+        }
+        BatchUpdate.prePopulateFieldsMap(db);
+    }
+
+    /**
+     * Test of create, start, chunkDone and remaining methods, of class
+     * JobJournal. Checkpoints survive reopening the journal, a job that was
+     * running when its journal was closed can be resumed, and chunks are
+     * left in user_id order.
+     *
+     * @throws java.lang.Exception
+     */
+    public void testCheckpoint() throws Exception {
+        System.out.println("checkpoint");
+        List<List<Integer>> chunks = Arrays.asList(Arrays.asList(1, 2), Arrays.asList(3, 4), Arrays.asList(5));
+        long id;
+        try (JobJournal journal = JobJournal.open(db)) {
+            id = journal.create(FieldType.job_title, oldJob, newJob, chunks).getId();
+            assertNotNull(journal.start(id));
+            assertNull(journal.start(id));
+            journal.chunkDone(id, chunks.get(1));
+            assertEquals(Arrays.asList(chunks.get(0), chunks.get(2)), journal.remaining(id));
+            assertTrue(journal.resumable().isEmpty());
+        }
+
+        try (JobJournal journal = JobJournal.open(db)) {
+            BatchJob job = journal.get(id);
+            assertEquals(BatchJob.Status.RUNNING, job.getStatus());
+            assertEquals(FieldType.job_title, job.getField());
+            assertEquals(newJob, job.getNewValue());
+            assertEquals(5, job.getTotalUsers());
+            assertEquals(2, job.getDoneUsers());
+            assertEquals(3, job.getRemainingUsers());
+            assertEquals(Arrays.asList(id), journal.resumable());
+            assertEquals(Arrays.asList(chunks.get(0), chunks.get(2)), journal.remaining(id));
+
+            // A second job gets the next id, its chunks come back in user_id
+            // order, negative ones first
+            List<List<Integer>> signed = Arrays.asList(Arrays.asList(3), Arrays.asList(-7, -6), Arrays.asList(0));
+            assertEquals(id + 1, journal.create(FieldType.industry, "a", "b", signed).getId());
+            assertEquals(Arrays.asList(signed.get(1), signed.get(2), signed.get(0)), journal.remaining(id + 1));
+            journal.chunkDone(id + 1, signed.get(1));
+            assertEquals(Arrays.asList(signed.get(2), signed.get(0)), journal.remaining(id + 1));
+        }
+    }
+
+    /**
+     * Test of change_job_title method, of class BatchUpdate.
+     * The change is journaled and ends up DONE with every user written.
+     *
+     * @throws java.lang.Exception
+     */
+    public void testChangeJobTitleJournaled() throws Exception {
+        System.out.println("changeJobTitleJournaled");
+        addUsers(10);
+        int chunkSize = BatchUpdate.getChunkSize();
+        BatchUpdate.setChunkSize(3);
+        try {
+            BatchWrite batch = BatchUpdate.change_job_title(db, oldJob, newJob);
+            batch.await();
+            assertEquals(10, batch.getSucceeded());
+            assertTrue(batch.getJobId() >= 0);
+
+            try (JobJournal journal = JobJournal.open(db)) {
+                BatchJob job = journal.get(batch.getJobId());
+                assertEquals(BatchJob.Status.DONE, job.getStatus());
+                assertEquals(10, job.getDoneUsers());
+                assertEquals(0, job.getEtaMillis());
+                assertTrue(journal.remaining(batch.getJobId()).isEmpty());
+            }
+        } finally {
+            BatchUpdate.setChunkSize(chunkSize);
+        }
+    }
+
+    /**
+     * Test of resumeJobs method, of class BatchUpdate.
+     * Only the chunks without a checkpoint are written, and a finished job is
+     * not resumed again.
+     *
+     * @throws java.lang.Exception
+     */
+    public void testResumeJobs() throws Exception {
+        System.out.println("resumeJobs");
+        addUsers(6);
+        List<List<Integer>> chunks = Arrays.asList(Arrays.asList(0, 1, 2), Arrays.asList(3, 4, 5));
+        long id;
+        try (JobJournal journal = JobJournal.open(db)) {
+            // A run that checkpointed its first chunk and then stopped
+            id = journal.create(FieldType.job_title, oldJob, newJob, chunks).getId();
+            journal.start(id);
+            journal.chunkDone(id, chunks.get(0));
+            journal.finish(id);
+            assertEquals(BatchJob.Status.FAILED, journal.get(id).getStatus());
+        }
+
+        Map<Long, BatchWrite> resumed = BatchUpdate.resumeJobs(db, WriteEngine.platform(2, 4));
+        assertEquals(1, resumed.size());
+        BatchWrite batch = resumed.get(id);
+        batch.await();
+        assertEquals(3, batch.getTotal());
+        assertEquals(3, batch.getSucceeded());
+
+        for (int user_id = 0; user_id < 6; user_id++) {
+            assertEquals(user_id < 3 ? oldJob : newJob, db.readUserData(user_id).getJobTitle());
+        }
+        try (JobJournal journal = JobJournal.open(db)) {
+            BatchJob job = journal.get(id);
+            assertEquals(BatchJob.Status.DONE, job.getStatus());
+            assertEquals(6, job.getDoneUsers());
+            assertEquals(2, job.getRuns());
+        }
+        assertTrue(BatchUpdate.resumeJobs(db).isEmpty());
+    }
+}
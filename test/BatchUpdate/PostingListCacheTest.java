@@ -0,0 +1,170 @@
+package BatchUpdate;
+
+import Database.DatabaseMock;
+import Database.UserData.FieldType;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import jdbm.RecordManager;
+import jdbm.RecordManagerFactory;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Rob Fusco
+ */
+public class PostingListCacheTest extends TestCase {
+
+    private static final String dbName = "PostingListCacheTest";
+    private static final String table = BatchUpdate.jobTitleMap;
+
+    private DatabaseMock db;
+
+    @Override
+    protected void setUp() throws Exception {
+        db = new DatabaseMock(dbName);
+        super.setUp();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        TestFieldsMaps.clearTables(db, table);
+        db.close();
+        super.tearDown();
+    }
+
+    /**
+     * Test of put and get, of class PostingListCache.
+     * The least recently used entries are evicted once the cache is over its
+     * weight, and a posting list too heavy on its own is not cached.
+     */
+    public void testEviction() {
+        System.out.println("eviction");
+        PostingListCache cache = new PostingListCache("testEviction", 100);
+        PostingList a = new PostingList(Arrays.asList(1, 2, 3));
+        PostingList b = new PostingList(Arrays.asList(4, 5));
+        cache.put(table, "a", a);
+        cache.put(table, "b", b);
+        assertEquals(2, cache.getEntries());
+        assertEquals(3 + 2 + 64, cache.getWeight());
+
+        // a is now more recently used than b
+        assertSame(a, cache.get(table, "a"));
+        cache.put(table, "c", new PostingList(Arrays.asList(6)));
+        assertNull(cache.get(table, "b"));
+        assertSame(a, cache.get(table, "a"));
+        assertNotNull(cache.get(table, "c"));
+        assertEquals(1, cache.getEvictions());
+        assertEquals(3, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        PostingList heavy = new PostingList();
+        for (int user_id = 0; user_id < 100; user_id++) {
+            heavy.add(user_id);
+        }
+        cache.put(table, "heavy", heavy);
+        assertNull(cache.get(table, "heavy"));
+        assertEquals(2, cache.getEntries());
+
+        cache.setMaxWeight(0);
+        assertEquals(0, cache.getEntries());
+        assertEquals(0, cache.getWeight());
+    }
+
+    /**
+     * Test of refresh, of class PostingListCache, through FieldsMapStore.
+     * Writes to a key that is cached are seen by the next lookup, writes to
+     * a key that is not cached do not get it cached.
+     *
+     * @throws java.lang.Exception
+     */
+    public void testWritesKeepCacheCurrent() throws Exception {
+        System.out.println("writesKeepCacheCurrent");
+        String key = FieldIndex.jobTitle.key("Engineer");
+        try (FieldsMapStore store = FieldsMapStore.open(db)) {
+            PostingListCache cache = store.getCache();
+            cache.clear();
+            store.add(table, key, 1);
+            assertEquals(0, cache.getEntries());
+
+            assertEquals(set(1), BatchUpdate.findMatches(db, "Engineer", FieldType.job_title));
+            assertEquals(1, cache.getEntries());
+            long hits = cache.getHits();
+            assertEquals(set(1), BatchUpdate.findMatches(db, "Engineer", FieldType.job_title));
+            assertEquals(hits + 1, cache.getHits());
+
+            store.add(table, key, 2);
+            store.addAll(table, key, new PostingList(Arrays.asList(3, 4)));
+            store.remove(table, key, 1);
+            assertEquals(set(2, 3, 4), BatchUpdate.findMatches(db, "Engineer", FieldType.job_title));
+            assertEquals(set(2, 3, 4), store.get(table, key));
+            assertEquals(3 + 32, cache.getWeight());
+
+            store.remove(table, key, 2);
+            store.remove(table, key, 3);
+            store.remove(table, key, 4);
+            assertTrue(BatchUpdate.findMatches(db, "Engineer", FieldType.job_title).isEmpty());
+        }
+    }
+
+    /**
+     * Test of table, of class FieldsMapStore.
+     * Handing out the raw table drops what is cached of it, since writes to
+     * it bypass the cache.
+     *
+     * @throws java.lang.Exception
+     */
+    public void testRawTableInvalidates() throws Exception {
+        System.out.println("rawTableInvalidates");
+        try (FieldsMapStore store = FieldsMapStore.open(db)) {
+            store.add(table, "key", 1);
+            store.add(BatchUpdate.industryMap, "key", 1);
+            assertEquals(set(1), store.get(table, "key"));
+            assertEquals(set(1), store.get(BatchUpdate.industryMap, "key"));
+
+            store.table(table).put("key", new PostingList(Arrays.asList(7)));
+            assertEquals(set(7), store.get(table, "key"));
+            assertNotNull(store.getCache().get(BatchUpdate.industryMap, "key"));
+            store.table(BatchUpdate.industryMap).clear();
+        }
+    }
+
+    /**
+     * Test of close, of class FieldsMapStore.
+     * Closing the last handle clears the cache, so a lookup after the files
+     * were changed reads them again instead of a stale posting list.
+     *
+     * @throws java.lang.Exception
+     */
+    public void testLastCloseClears() throws Exception {
+        System.out.println("lastCloseClears");
+        String key = FieldIndex.jobTitle.key("Engineer");
+        PostingListCache cache;
+        try (FieldsMapStore store = FieldsMapStore.open(db)) {
+            cache = store.getCache();
+            store.add(table, key, 1);
+            FieldsMapStore other = FieldsMapStore.open(db);
+            try {
+                assertEquals(set(1), BatchUpdate.findMatches(db, "Engineer", FieldType.job_title));
+            } finally {
+                other.close();
+            }
+            assertEquals(1, cache.getEntries());
+        }
+        assertEquals(0, cache.getEntries());
+
+        // Rewritten by someone else while closed
+        RecordManager recMan = RecordManagerFactory.createRecordManager(BatchUpdate.getFieldsMapName(db));
+        try {
+            recMan.treeMap(table, PostingListSerializer.INSTANCE).put(key, new PostingList(Arrays.asList(2)));
+            recMan.commit();
+        } finally {
+            recMan.close();
+        }
+        assertEquals(set(2), BatchUpdate.findMatches(db, "Engineer", FieldType.job_title));
+    }
+
+    private static Set<Integer> set(Integer... user_ids) {
+        return new HashSet<>(Arrays.asList(user_ids));
+    }
+}
@@ -0,0 +1,128 @@
+package BatchUpdate;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import jdbm.SerializerInput;
+import jdbm.SerializerOutput;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Rob Fusco
+ */
+public class PostingListTest extends TestCase {
+
+    private static byte[] serialize(PostingList list) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        SerializerOutput out = new SerializerOutput(bytes);
+        PostingListSerializer.INSTANCE.serialize(out, list);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static PostingList deserialize(byte[] bytes) throws Exception {
+        return PostingListSerializer.INSTANCE.deserialize(new SerializerInput(new ByteArrayInputStream(bytes)));
+    }
+
+    /**
+     * Test of add and remove methods, of class PostingList.
+     * Behaves like any other Set of Integers and stays sorted.
+     */
+    public void testAddRemove() {
+        System.out.println("addRemove");
+        PostingList list = new PostingList();
+        assertTrue(list.add(5));
+        assertTrue(list.add(1));
+        assertTrue(list.add(9));
+        assertTrue(list.add(3));
+        assertFalse(list.add(5));
+        assertEquals(4, list.size());
+        assertTrue(Arrays.equals(new int[]{1, 3, 5, 9}, list.toIntArray()));
+
+        assertTrue(list.remove(3));
+        assertFalse(list.remove(3));
+        assertFalse(list.contains(3));
+        assertTrue(list.contains(Integer.valueOf(9)));
+
+        Set<Integer> expected = new HashSet<>(Arrays.asList(1, 5, 9));
+        assertEquals(expected, list);
+        assertEquals(list, expected);
+        assertEquals(expected.hashCode(), list.hashCode());
+
+        Iterator<Integer> iter = list.iterator();
+        iter.next();
+        iter.remove();
+        assertEquals(new HashSet<>(Arrays.asList(5, 9)), list);
+    }
+
+    /**
+     * Test of addAll method, of class PostingList.
+     */
+    public void testAddAll() {
+        System.out.println("addAll");
+        PostingList a = new PostingList(Arrays.asList(1, 4, 7, 10));
+        PostingList b = new PostingList(Arrays.asList(2, 4, 8, 12, 14));
+        a.addAll(b);
+        assertTrue(Arrays.equals(new int[]{1, 2, 4, 7, 8, 10, 12, 14}, a.toIntArray()));
+    }
+
+    /**
+     * Test of union method, of class PostingList.
+     * Lists that follow one another are concatenated, overlapping ones
+     * merged without duplicates, and none of them is changed.
+     */
+    public void testUnion() {
+        System.out.println("union");
+        PostingList a = new PostingList(Arrays.asList(1, 4, 7));
+        PostingList b = new PostingList(Arrays.asList(10, 12));
+        PostingList c = new PostingList(Arrays.asList(20));
+        PostingList union = PostingList.union(Arrays.asList(c, new PostingList(), a, b));
+        assertTrue(Arrays.equals(new int[]{1, 4, 7, 10, 12, 20}, union.toIntArray()));
+
+        PostingList d = new PostingList(Arrays.asList(2, 4, 8, 12, 14));
+        union = PostingList.union(Arrays.asList(a, b, c, d));
+        assertTrue(Arrays.equals(new int[]{1, 2, 4, 7, 8, 10, 12, 14, 20}, union.toIntArray()));
+        assertTrue(Arrays.equals(new int[]{1, 4, 7}, a.toIntArray()));
+
+        union.add(30);
+        assertEquals(10, union.size());
+        assertEquals(0, PostingList.union(Arrays.asList(new PostingList())).size());
+    }
+
+    /**
+     * Test of serialize and deserialize methods, of class
+     * PostingListSerializer.
+     *
+     * @throws java.lang.Exception
+     */
+    public void testSerializerRoundTrip() throws Exception {
+        System.out.println("serializerRoundTrip");
+        PostingList list = new PostingList(Arrays.asList(Integer.MIN_VALUE, -7, 0, 1, 2, 300, Integer.MAX_VALUE));
+        PostingList copy = deserialize(serialize(list));
+        assertTrue(Arrays.equals(list.toIntArray(), copy.toIntArray()));
+
+        PostingList empty = deserialize(serialize(new PostingList()));
+        assertTrue(empty.isEmpty());
+    }
+
+    /**
+     * Test of serialize method, of class PostingListSerializer.
+     * A dense run of user_ids costs about a byte per user.
+     *
+     * @throws java.lang.Exception
+     */
+    public void testSerializerIsCompact() throws Exception {
+        System.out.println("serializerIsCompact");
+        PostingList list = new PostingList();
+        for (int user_id = 1000000; user_id < 1100000; user_id++) {
+            list.add(user_id);
+        }
+        byte[] bytes = serialize(list);
+        assertTrue("100000 user_ids took " + bytes.length + " bytes", bytes.length < 110000);
+        assertEquals(list, deserialize(bytes));
+    }
+}
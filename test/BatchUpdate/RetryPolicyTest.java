@@ -0,0 +1,79 @@
+package BatchUpdate;
+
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Rob Fusco
+ */
+public class RetryPolicyTest extends TestCase {
+
+    /**
+     * Test of run method, of class RetryPolicy.
+     * Timeouts are retried until an attempt goes through.
+     *
+     * @throws java.lang.Exception
+     */
+    public void testRunRetriesTimeouts() throws Exception {
+        System.out.println("runRetriesTimeouts");
+        RetryPolicy policy = new RetryPolicy(5, 1, 4, 0);
+        AtomicInteger attempts = new AtomicInteger();
+        String result = policy.run(() -> {
+            if (attempts.incrementAndGet() < 3) {
+                throw new TimeoutException("busy");
+            }
+            return "done";
+        });
+        assertEquals("done", result);
+        assertEquals(3, attempts.get());
+    }
+
+    /**
+     * Test of run method, of class RetryPolicy.
+     * Gives up with the last timeout after maxAttempts.
+     *
+     * @throws java.lang.Exception
+     */
+    public void testRunGivesUp() throws Exception {
+        System.out.println("runGivesUp");
+        RetryPolicy policy = new RetryPolicy(4, 1, 2, 0);
+        AtomicInteger attempts = new AtomicInteger();
+        try {
+            policy.run(() -> {
+                throw new TimeoutException("attempt " + attempts.incrementAndGet());
+            });
+            fail("Kept retrying past maxAttempts");
+        } catch (TimeoutException ex) {
+            assertEquals("attempt 4", ex.getMessage());
+        }
+
+        // The deadline stops it long before the attempts run out
+        policy = new RetryPolicy(0, 20, 20, 50);
+        long start = System.currentTimeMillis();
+        try {
+            policy.run(() -> {
+                throw new TimeoutException();
+            });
+            fail("Kept retrying past the deadline");
+        } catch (TimeoutException ex) {
+            assertTrue(System.currentTimeMillis() - start < 1000);
+        }
+    }
+
+    /**
+     * Test of backoffMillis method, of class RetryPolicy.
+     * Jittered below a bound that doubles up to maxBackoffMillis.
+     */
+    public void testBackoffMillis() {
+        System.out.println("backoffMillis");
+        RetryPolicy policy = new RetryPolicy(0, 10, 100, 1000);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(policy.backoffMillis(1) <= 10);
+            assertTrue(policy.backoffMillis(3) <= 40);
+            assertTrue(policy.backoffMillis(30) <= 100);
+            assertTrue(policy.backoffMillis(30) >= 0);
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package BatchUpdate;
+
+import Database.DatabaseMock;
+import java.io.IOException;
+
+/**
+ * Cleans up the fields maps tests fill.
+ *
+ * @author Rob Fusco
+ */
+final class TestFieldsMaps {
+
+    private TestFieldsMaps() {
+    }
+
+    /**
+     * Clears tables of the fields map of db, the job title and industry
+     * tables if none are given.
+     *
+     * @param db
+     * @param tables
+     * @throws IOException
+     */
+    static void clearTables(DatabaseMock db, String... tables) throws IOException {
+        if (tables.length == 0) {
+            tables = new String[]{BatchUpdate.jobTitleMap, BatchUpdate.industryMap};
+        }
+        try (FieldsMapStore store = FieldsMapStore.open(db)) {
+            for (String table : tables) {
+                store.table(table).clear();
+            }
+        }
+    }
+}
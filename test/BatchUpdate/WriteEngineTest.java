@@ -0,0 +1,135 @@
+package BatchUpdate;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Rob Fusco
+ */
+public class WriteEngineTest extends TestCase {
+
+    private static List<Integer> userIds(int count) {
+        List<Integer> user_ids = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            user_ids.add(i);
+        }
+        return user_ids;
+    }
+
+    /**
+     * Test of submit method, of class WriteEngine.
+     * The number of writes running at once never goes above maxInFlight.
+     *
+     * @throws java.lang.Exception
+     */
+    public void testSubmitCapsInFlight() throws Exception {
+        System.out.println("submitCapsInFlight");
+        final int maxInFlight = 4;
+        WriteEngine engine = WriteEngine.platform(16, maxInFlight);
+
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        BatchWrite batch = engine.submit(userIds(200), user_id -> {
+            int now = running.incrementAndGet();
+            maxRunning.accumulateAndGet(now, Math::max);
+            Thread.sleep(1);
+            running.decrementAndGet();
+        });
+
+        assertTrue(batch.await(30, TimeUnit.SECONDS));
+        assertEquals(200, batch.getSucceeded());
+        assertEquals(0, batch.getFailed());
+        assertTrue(maxRunning.get() <= maxInFlight);
+        engine.shutdown();
+    }
+
+    /**
+     * Test of submit method, of class WriteEngine.
+     * Writes that throw are counted as failed and do not stop the batch.
+     *
+     * @throws java.lang.Exception
+     */
+    public void testSubmitCountsFailures() throws Exception {
+        System.out.println("submitCountsFailures");
+        WriteEngine engine = WriteEngine.virtual(8);
+
+        BatchWrite batch = engine.submit(userIds(10), user_id -> {
+            if (user_id % 2 == 0) {
+                throw new IllegalStateException("even user_id " + user_id);
+            }
+        });
+
+        batch.await();
+        assertTrue(batch.isDone());
+        assertEquals(10, batch.getTotal());
+        assertEquals(5, batch.getSucceeded());
+        assertEquals(5, batch.getFailed());
+        assertEquals(0, engine.getInFlight());
+        engine.shutdown();
+    }
+
+    /**
+     * Test of submitChunks method, of class WriteEngine.
+     * Every user_id is written once, in chunks of at most chunkSize, and a
+     * failing chunk fails all of its users.
+     *
+     * @throws java.lang.Exception
+     */
+    public void testSubmitChunks() throws Exception {
+        System.out.println("submitChunks");
+        WriteEngine engine = WriteEngine.platform(4, 2);
+
+        List<Integer> written = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger chunks = new AtomicInteger();
+        BatchWrite batch = engine.submitChunks(userIds(25), 10, user_ids -> {
+            assertTrue(user_ids.size() <= 10);
+            chunks.incrementAndGet();
+            if (user_ids.contains(24)) {
+                throw new IllegalStateException("last chunk");
+            }
+            written.addAll(user_ids);
+        });
+
+        assertTrue(batch.await(30, TimeUnit.SECONDS));
+        assertEquals(3, chunks.get());
+        assertEquals(25, batch.getTotal());
+        assertEquals(20, batch.getSucceeded());
+        assertEquals(5, batch.getFailed());
+        assertEquals(new HashSet<>(userIds(20)), new HashSet<>(written));
+        engine.shutdown();
+    }
+
+    /**
+     * Test of submit method, of class WriteEngine.
+     * Writes submitted after shutdown fail instead of leaving the batch
+     * waiting for them, and take no slot.
+     *
+     * @throws java.lang.Exception
+     */
+    public void testSubmitAfterShutdown() throws Exception {
+        System.out.println("submitAfterShutdown");
+        WriteEngine engine = WriteEngine.platform(2, 2);
+        engine.shutdown();
+
+        BatchWrite batch = engine.submit(userIds(5), user_id -> {
+            fail("Wrote after shutdown");
+        });
+        assertTrue(batch.await(30, TimeUnit.SECONDS));
+        assertEquals(0, batch.getSucceeded());
+        assertEquals(5, batch.getFailed());
+        assertEquals(0, engine.getInFlight());
+
+        batch = engine.submitChunks(Collections.singletonList(userIds(3)), user_ids -> {
+            fail("Wrote after shutdown");
+        });
+        assertTrue(batch.await(30, TimeUnit.SECONDS));
+        assertEquals(3, batch.getFailed());
+        assertEquals(0, engine.getInFlight());
+    }
+}
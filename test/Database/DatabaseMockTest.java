@@ -0,0 +1,256 @@
+package Database;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import jdbm.PrimaryTreeMap;
+import jdbm.RecordManager;
+import jdbm.RecordManagerFactory;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Rob Fusco
+ */
+public class DatabaseMockTest extends TestCase {
+
+    private static final String dbName = "DatabaseMockTest";
+
+    private DatabaseMock db;
+
+    @Override
+    protected void setUp() throws Exception {
+        db = new DatabaseMock(dbName);
+        // Gaps in the user_ids on purpose
+        for (int user_id = 0; user_id < 20; user_id += 2) {
+            db.update(user_id, "{\"name\":\"User" + user_id + "\",\"job_title\":\"Tester\",\"industry\":\"QA\",\"version\":\"0\"}");
+        }
+        super.setUp();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Iterator<Map.Entry<Integer, String>> iter = db.scan(0);
+        while (iter.hasNext()) {
+            db.delete(iter.next().getKey());
+        }
+        db.close();
+        super.tearDown();
+    }
+
+    private static List<Integer> keys(Iterator<Map.Entry<Integer, String>> iter) {
+        List<Integer> keys = new ArrayList<>();
+        while (iter.hasNext()) {
+            keys.add(iter.next().getKey());
+        }
+        return keys;
+    }
+
+    /**
+     * Test of scan method, of class DatabaseMock.
+     * Starts at the next existing user ID and wraps around to the start.
+     */
+    public void testScanWraps() {
+        System.out.println("scanWraps");
+        List<Integer> keys = keys(db.scan(7));
+        assertEquals(10, keys.size());
+        assertEquals(Integer.valueOf(8), keys.get(0));
+        assertEquals(Integer.valueOf(18), keys.get(5));
+        assertEquals(Integer.valueOf(0), keys.get(6));
+        assertEquals(Integer.valueOf(6), keys.get(9));
+    }
+
+    /**
+     * Test of scan method with a range, of class DatabaseMock.
+     * Small pages still return every row in the range exactly once.
+     */
+    public void testScanRangePaged() {
+        System.out.println("scanRangePaged");
+        List<Integer> keys = keys(db.scan(3, 14, 2));
+        List<Integer> expected = new ArrayList<>();
+        for (int user_id = 4; user_id < 14; user_id += 2) {
+            expected.add(user_id);
+        }
+        assertEquals(expected, keys);
+
+        assertTrue(keys(db.scan(20, null, 2)).isEmpty());
+        assertTrue(keys(db.scan(10, 10, 2)).isEmpty());
+    }
+
+    /**
+     * Test of scan method, of class DatabaseMock.
+     * Deleting rows behind the cursor does not disturb the rest of the scan.
+     */
+    public void testScanWhileDeleting() {
+        System.out.println("scanWhileDeleting");
+        Iterator<Map.Entry<Integer, String>> iter = db.scan(0, null, 3);
+        int seen = 0;
+        while (iter.hasNext()) {
+            db.delete(iter.next().getKey());
+            seen++;
+        }
+        assertEquals(10, seen);
+        assertFalse(db.scan(0).hasNext());
+    }
+
+    /**
+     * Test of readVersion method, of class DatabaseMock.
+     * Follows update and delete.
+     *
+     * @throws java.lang.Exception
+     */
+    public void testReadVersion() throws Exception {
+        System.out.println("readVersion");
+        assertEquals(Long.valueOf(0), db.readVersion(4));
+        assertNull(db.readVersion(5));
+
+        assertEquals(7, db.update(4, "{\"name\":\"User4\",\"version\":7}"));
+        assertEquals(Long.valueOf(7), db.readVersion(4));
+
+        db.delete(4);
+        assertNull(db.readVersion(4));
+    }
+
+    /**
+     * Test of readVersion method, of class DatabaseMock.
+     * A DB written without the version index gets it built when opened.
+     *
+     * @throws java.lang.Exception
+     */
+    public void testReadVersionBackfill() throws Exception {
+        System.out.println("readVersionBackfill");
+        db.close();
+        RecordManager recMan = RecordManagerFactory.createRecordManager(dbName);
+        recMan.treeMap("version", VersionSerializer.INSTANCE).clear();
+        PrimaryTreeMap<Integer, String> documents = recMan.treeMap("user_id");
+        documents.put(3, "{\"name\":\"User3\",\"version\":\"42\"}");
+        recMan.close();
+
+        db = new DatabaseMock(dbName);
+        assertEquals(Long.valueOf(42), db.readVersion(3));
+        assertEquals(Long.valueOf(0), db.readVersion(2));
+    }
+
+    /**
+     * Test of readBatch and updateBatch methods, of class DatabaseMock.
+     *
+     * @throws java.lang.Exception
+     */
+    public void testReadUpdateBatch() throws Exception {
+        System.out.println("readUpdateBatch");
+        Map<Integer, String> documents = db.readBatch(Arrays.asList(4, 5, 2));
+        assertEquals(Arrays.asList(4, 2), new ArrayList<>(documents.keySet()));
+
+        documents.put(4, "{\"name\":\"User4\",\"version\":3}");
+        documents.put(2, "{\"name\":\"User2\",\"version\":\"5\"}");
+        Map<Integer, Long> versions = db.updateBatch(documents);
+        assertEquals(Long.valueOf(3), versions.get(4));
+        assertEquals(Long.valueOf(5), versions.get(2));
+        assertEquals(documents.get(4), db.read(4));
+        assertEquals(Long.valueOf(5), db.readVersion(2));
+    }
+
+    /**
+     * Test of compareAndUpdate and compareAndUpdateBatch methods, of class
+     * DatabaseMock. Only documents still at the expected version are written.
+     *
+     * @throws java.lang.Exception
+     */
+    public void testCompareAndUpdate() throws Exception {
+        System.out.println("compareAndUpdate");
+        assertEquals(1, db.compareAndUpdate(4, 0, "{\"name\":\"User4\",\"version\":1}"));
+        try {
+            db.compareAndUpdate(4, 0, "{\"name\":\"Lost\",\"version\":1}");
+            fail("Overwrote a newer version");
+        } catch (VersionConflictException ex) {
+            assertEquals(4, ex.getUserId());
+            assertEquals(Long.valueOf(1), ex.getActualVersion());
+        }
+        assertEquals("{\"name\":\"User4\",\"version\":1}", db.read(4));
+
+        Map<Integer, String> documents = new HashMap<>();
+        documents.put(2, "{\"name\":\"User2\",\"version\":1}");
+        documents.put(4, "{\"name\":\"User4\",\"version\":2}");
+        documents.put(5, "{\"name\":\"User5\",\"version\":1}");
+        Map<Integer, Long> expected = new HashMap<>();
+        expected.put(2, 0L);
+        expected.put(4, 0L);
+        expected.put(5, 0L);
+        Map<Integer, Long> written = db.compareAndUpdateBatch(documents, expected);
+        assertEquals(Collections.singleton(2), written.keySet());
+        assertEquals(Long.valueOf(1), db.readVersion(4));
+        assertNull(db.read(5));
+    }
+
+    /**
+     * Test of the BINARY storage format, of class DatabaseMock.
+     * Documents go in and come out as JSON, can be read and scanned decoded,
+     * and the DB can not be opened in the other format.
+     *
+     * @throws java.lang.Exception
+     */
+    public void testBinaryFormat() throws Exception {
+        System.out.println("binaryFormat");
+        String binaryName = dbName + "Binary";
+        TestFiles.deleteFiles(binaryName);
+        DatabaseMock binary = new DatabaseMock(binaryName, DatabaseMock.StorageFormat.BINARY);
+        try {
+            assertEquals(3, binary.update(1, "{\"name\":\"Zoë\",\"job_title\":\"Tester\",\"version\":3}"));
+            binary.update(-2, UserDataCodec.encode(new UserData("Neg", "Tester", "QA")));
+            assertEquals("{\"name\":\"Zoë\",\"job_title\":\"Tester\",\"version\":3}", binary.read(1));
+            assertEquals(Long.valueOf(3), binary.readVersion(1));
+            assertNull(binary.readUserData(1).getIndustry());
+
+            UserData user_data = binary.readUserData(-2);
+            user_data.setIndustry("Ops");
+            assertEquals("QA", binary.readUserData(-2).getIndustry());
+            binary.compareAndUpdate(-2, 1, UserDataCodec.encode(user_data));
+
+            Iterator<Map.Entry<Integer, UserData>> iter = binary.scanUserData(Integer.MIN_VALUE, null, 1);
+            assertEquals("Ops", iter.next().getValue().getIndustry());
+            assertEquals("Zoë", iter.next().getValue().getName());
+            assertFalse(iter.hasNext());
+            assertEquals(Arrays.asList(-2, 1), keys(binary.scan(Integer.MIN_VALUE, null, 10)));
+            assertEquals(Integer.valueOf(-2), binary.firstUserId());
+            assertEquals(Integer.valueOf(1), binary.lastUserId());
+
+            assertEquals(1, binary.getDictionary(UserData.FieldType.job_title).size());
+            assertEquals(2, binary.getDictionary(UserData.FieldType.industry).size());
+            assertNull(binary.getDictionary(UserData.FieldType.name));
+            assertNull(db.getDictionary(UserData.FieldType.job_title));
+        } finally {
+            binary.close();
+        }
+
+        // Ids handed out are kept with the rows
+        binary = new DatabaseMock(binaryName, DatabaseMock.StorageFormat.BINARY);
+        try {
+            assertEquals("Tester", binary.readUserData(1).getJobTitle());
+            assertEquals("Ops", binary.readUserData(-2).getIndustry());
+            binary.delete(1);
+            assertNull(binary.read(1));
+            assertNull(binary.readUserData(1));
+        } finally {
+            binary.close();
+        }
+
+        try {
+            new DatabaseMock(binaryName).close();
+            fail("Opened a BINARY DB as JSON");
+        } catch (IOException ex) {
+            // expected
+        }
+        try {
+            new DatabaseMock(dbName, DatabaseMock.StorageFormat.BINARY).close();
+            fail("Opened a JSON DB as BINARY");
+        } catch (IOException ex) {
+            // expected
+        }
+        TestFiles.deleteFiles(binaryName);
+    }
+}
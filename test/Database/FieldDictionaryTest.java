@@ -0,0 +1,63 @@
+package Database;
+
+import Database.UserData.FieldType;
+import jdbm.RecordManager;
+import jdbm.RecordManagerFactory;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Rob Fusco
+ */
+public class FieldDictionaryTest extends TestCase {
+
+    private static final String dbName = "FieldDictionaryTest";
+
+    @Override
+    protected void setUp() throws Exception {
+        TestFiles.deleteFiles(dbName);
+        super.setUp();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        TestFiles.deleteFiles(dbName);
+        super.tearDown();
+    }
+
+    /**
+     * Test of encode, lookup and decode, of class FieldDictionary.
+     * Values get ids from 1 up in the order first seen, which survive
+     * reopening the DB.
+     *
+     * @throws java.lang.Exception
+     */
+    public void testEncodeDecode() throws Exception {
+        System.out.println("encodeDecode");
+        RecordManager recMan = RecordManagerFactory.createRecordManager(dbName);
+        FieldDictionary dictionary = new FieldDictionary(recMan, FieldType.job_title);
+        assertEquals(1, dictionary.encode("Software Developer"));
+        assertEquals(2, dictionary.encode("Tester"));
+        assertEquals(1, dictionary.encode("Software Developer"));
+        assertEquals(0, dictionary.lookup("Manager"));
+        assertEquals(2, dictionary.size());
+        assertEquals(0, new FieldDictionary(recMan, FieldType.industry).size());
+        recMan.commit();
+        recMan.close();
+
+        recMan = RecordManagerFactory.createRecordManager(dbName);
+        dictionary = new FieldDictionary(recMan, FieldType.job_title);
+        assertEquals(2, dictionary.size());
+        assertEquals("Tester", dictionary.decode(2));
+        assertEquals(1, dictionary.lookup("Software Developer"));
+        assertEquals(3, dictionary.encode("Manager"));
+        assertSame(dictionary.decode(3), dictionary.decode(3));
+        try {
+            dictionary.decode(4);
+            fail("Decoded an id that was never handed out");
+        } catch (IllegalArgumentException ex) {
+            // expected
+        }
+        recMan.close();
+    }
+}
@@ -0,0 +1,35 @@
+package Database;
+
+import java.io.File;
+
+/**
+ * JDBM files left in the working directory by tests.
+ *
+ * @author Rob Fusco
+ */
+public final class TestFiles {
+
+    private TestFiles() {
+    }
+
+    /**
+     * Deletes the files of the JDBM DBs of names, e.g. name.db and name.lg.
+     *
+     * @param names
+     */
+    public static void deleteFiles(String... names) {
+        File[] files = new File(".").listFiles((dir, file) -> {
+            for (String name : names) {
+                if (file.startsWith(name + ".")) {
+                    return true;
+                }
+            }
+            return false;
+        });
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+}
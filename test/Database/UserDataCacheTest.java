@@ -0,0 +1,142 @@
+package Database;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Rob Fusco
+ */
+public class UserDataCacheTest extends TestCase {
+
+    private static final String dbName = "UserDataCacheTest";
+
+    private DatabaseMock db;
+    private UserDataCache cache;
+
+    @Override
+    protected void setUp() throws Exception {
+        db = new DatabaseMock(dbName);
+        for (int user_id = 0; user_id < 10; user_id++) {
+            db.update(user_id, UserDataCodec.encode(new UserData("User" + user_id, "Tester", "QA")));
+        }
+        cache = new UserDataCache();
+        db.setUserDataCache(cache);
+        super.setUp();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Iterator<Map.Entry<Integer, String>> iter = db.scan(0);
+        while (iter.hasNext()) {
+            db.delete(iter.next().getKey());
+        }
+        db.close();
+        super.tearDown();
+    }
+
+    /**
+     * Test of readUserData, of class DatabaseMock.
+     * A second read is served from the cache, and changing what was read does
+     * not change what is cached.
+     */
+    public void testReadThrough() {
+        System.out.println("readThrough");
+        UserData first = db.readUserData(3);
+        assertEquals("User3", first.getName());
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getEntries());
+
+        first.setJobTitle("Changed");
+        UserData second = db.readUserData(3);
+        assertEquals(1, cache.getHits());
+        assertEquals("Tester", second.getJobTitle());
+        assertEquals(1, second.getVersion());
+        assertNotSame(first, second);
+
+        assertNull(db.readUserData(42));
+        assertEquals(1, cache.getEntries());
+        assertNotNull(cache.get(3, 1));
+        assertNull(cache.get(3, 2));
+    }
+
+    /**
+     * Test of the invalidation in update, compareAndUpdateBatch and delete,
+     * of class DatabaseMock.
+     *
+     * @throws java.lang.Exception
+     */
+    public void testWritesInvalidate() throws Exception {
+        System.out.println("writesInvalidate");
+        db.readUserDataBatch(Arrays.asList(1, 2, 3));
+        assertEquals(3, cache.getEntries());
+
+        UserData user_data = db.readUserData(1);
+        user_data.setIndustry("Ops");
+        db.update(1, UserDataCodec.encode(user_data));
+        assertEquals("Ops", db.readUserData(1).getIndustry());
+
+        user_data = db.readUserData(2);
+        user_data.setName("Renamed");
+        db.compareAndUpdateBatch(Collections.singletonMap(2, UserDataCodec.encode(user_data)),
+                Collections.singletonMap(2, 1L));
+        assertEquals("Renamed", db.readUserData(2).getName());
+        assertEquals(2, db.readUserData(2).getVersion());
+
+        db.delete(3);
+        assertNull(db.readUserData(3));
+        assertEquals(3, cache.getInvalidations());
+    }
+
+    /**
+     * Test of the memory cap, of class UserDataCache.
+     * The least recently read documents are evicted once over maxBytes.
+     */
+    public void testEviction() {
+        System.out.println("eviction");
+        db.readUserData(0);
+        long entryBytes = cache.getBytes();
+        cache.setMaxBytes(entryBytes * 3);
+        db.readUserData(1);
+        db.readUserData(2);
+        db.readUserData(0);
+        db.readUserData(3);
+        assertEquals(3, cache.getEntries());
+        assertEquals(1, cache.getEvictions());
+        assertNull(cache.get(1));
+        assertNotNull(cache.get(0));
+        assertEquals(entryBytes * 3, cache.getBytes());
+
+        cache.setMaxBytes(0);
+        assertEquals(0, cache.getEntries());
+        assertEquals(0, cache.getBytes());
+    }
+
+    /**
+     * Test of setUserDataCache, of class DatabaseMock.
+     * The cache stats can be read over JMX, and reads go to the documents
+     * once caching is turned off.
+     *
+     * @throws java.lang.Exception
+     */
+    public void testJmx() throws Exception {
+        System.out.println("jmx");
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("BatchJobsDB:type=UserDataCache,name=" + ObjectName.quote(dbName));
+        db.readUserData(5);
+        db.readUserData(5);
+        assertEquals(1L, server.getAttribute(name, "Hits"));
+        assertEquals(0.5, server.getAttribute(name, "HitRatio"));
+
+        db.setUserDataCache(null);
+        assertFalse(server.isRegistered(name));
+        assertEquals("User5", db.readUserData(5).getName());
+        assertEquals(1, cache.getHits());
+    }
+}
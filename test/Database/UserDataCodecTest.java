@@ -0,0 +1,50 @@
+package Database;
+
+import com.google.gson.JsonParseException;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Rob Fusco
+ */
+public class UserDataCodecTest extends TestCase {
+
+    /**
+     * Test of decode and encode methods, of class UserDataCodec.
+     */
+    public void testRoundTrip() {
+        System.out.println("roundTrip");
+        UserData user_data = new UserData("Ben Southall", "Caretaker of the Islands", "Hamilton Island Tourism");
+        user_data.setIndustry("Zoology");
+        UserData copy = UserDataCodec.decode(UserDataCodec.encode(user_data));
+        assertEquals(user_data.getName(), copy.getName());
+        assertEquals(user_data.getJobTitle(), copy.getJobTitle());
+        assertEquals("Zoology", copy.getIndustry());
+        assertEquals(2, copy.getVersion());
+    }
+
+    /**
+     * Test of readVersion method, of class UserDataCodec.
+     * Agrees with decode whatever the version looks like.
+     */
+    public void testReadVersion() {
+        System.out.println("readVersion");
+        String[] documents = {
+            "{\"name\":\"Rob\",\"job_title\":\"Software Developer\",\"industry\":\"SaaS\",\"version\":\"7\"}",
+            "{\"version\":12,\"name\":\"Rob\"}",
+            "{\"name\":\"Rob\",\"nested\":{\"version\":3},\"version\":4}",
+            "{\"name\":\"Rob\"}",
+            "{\"name\":\"Rob\",\"version\":null}"
+        };
+        for (String json : documents) {
+            assertEquals(json, UserDataCodec.decode(json).getVersion(), UserDataCodec.readVersion(json));
+        }
+
+        try {
+            UserDataCodec.readVersion("[1, 2]");
+            fail("Read a version from an array");
+        } catch (JsonParseException ex) {
+            // expected
+        }
+    }
+}
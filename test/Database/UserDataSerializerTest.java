@@ -0,0 +1,129 @@
+package Database;
+
+import Database.UserData.FieldType;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import jdbm.RecordManager;
+import jdbm.RecordManagerFactory;
+import jdbm.SerializerInput;
+import jdbm.SerializerOutput;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Rob Fusco
+ */
+public class UserDataSerializerTest extends TestCase {
+
+    private static byte[] serialize(UserData user_data) throws IOException {
+        return serialize(UserDataSerializer.INSTANCE, user_data);
+    }
+
+    private static byte[] serialize(UserDataSerializer serializer, UserData user_data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (SerializerOutput out = new SerializerOutput(bytes)) {
+            serializer.serialize(out, user_data);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static UserData deserialize(byte[] bytes) throws Exception {
+        return deserialize(UserDataSerializer.INSTANCE, bytes);
+    }
+
+    private static UserData deserialize(UserDataSerializer serializer, byte[] bytes) throws Exception {
+        try (SerializerInput in = new SerializerInput(new ByteArrayInputStream(bytes))) {
+            return serializer.deserialize(in);
+        }
+    }
+
+    /**
+     * Test of serialize and deserialize, of class UserDataSerializer.
+     * Nulls, non ASCII text and any version survive the round trip.
+     *
+     * @throws java.lang.Exception
+     */
+    public void testRoundTrip() throws Exception {
+        System.out.println("roundTrip");
+        UserData user_data = new UserData("Zoë 日本", null, "");
+        for (long version : new long[]{0, 1, -1, 300, Long.MAX_VALUE, Long.MIN_VALUE}) {
+            user_data.version = version;
+            UserData read = deserialize(serialize(user_data));
+            assertEquals(UserDataCodec.encode(user_data), UserDataCodec.encode(read));
+        }
+    }
+
+    /**
+     * Test of serialize, of class UserDataSerializer.
+     * A typical document takes far less than its JSON.
+     *
+     * @throws java.lang.Exception
+     */
+    public void testCompact() throws Exception {
+        System.out.println("compact");
+        UserData user_data = new UserData("User 12345", "Software Engineer", "Internet");
+        byte[] bytes = serialize(user_data);
+        assertEquals(1 + 1 + 11 + 18 + 9, bytes.length);
+        assertTrue(bytes.length * 2 < UserDataCodec.encode(user_data).length());
+    }
+
+    /**
+     * Test of serialize and deserialize with dictionaries, of class
+     * UserDataSerializer. Job titles and industries with an id take a byte,
+     * values without one are written out, and documents written without
+     * dictionaries can still be read.
+     *
+     * @throws java.lang.Exception
+     */
+    public void testDictionary() throws Exception {
+        System.out.println("dictionary");
+        RecordManager recMan = RecordManagerFactory.createRecordManager("UserDataSerializerTest");
+        try {
+            FieldDictionary jobTitles = new FieldDictionary(recMan, FieldType.job_title);
+            FieldDictionary industries = new FieldDictionary(recMan, FieldType.industry);
+            UserDataSerializer serializer = new UserDataSerializer(jobTitles, industries);
+            jobTitles.encode("Software Engineer");
+            industries.encode("Internet");
+
+            UserData user_data = new UserData("User 12345", "Software Engineer", "Internet");
+            byte[] bytes = serialize(serializer, user_data);
+            assertEquals(1 + 1 + 11 + 1 + 1, bytes.length);
+            UserData read = deserialize(serializer, bytes);
+            assertEquals(UserDataCodec.encode(user_data), UserDataCodec.encode(read));
+            assertSame(jobTitles.decode(1), read.getJobTitle());
+
+            user_data = new UserData("User 1", "Unknown", null);
+            assertEquals(UserDataCodec.encode(user_data), UserDataCodec.encode(deserialize(serializer, serialize(serializer, user_data))));
+            assertEquals("Unknown", deserialize(serializer, serialize(user_data)).getJobTitle());
+
+            try {
+                deserialize(bytes);
+                fail("Read ids without dictionaries");
+            } catch (IOException ex) {
+                // expected
+            }
+        } finally {
+            recMan.close();
+            TestFiles.deleteFiles("UserDataSerializerTest");
+        }
+    }
+
+    /**
+     * Test of deserialize, of class UserDataSerializer.
+     * Rows in a format it does not know are refused.
+     *
+     * @throws java.lang.Exception
+     */
+    public void testUnknownFormat() throws Exception {
+        System.out.println("unknownFormat");
+        byte[] bytes = serialize(new UserData("a", "b", "c"));
+        bytes[0] = 9;
+        try {
+            deserialize(bytes);
+            fail("Read an unknown format");
+        } catch (IOException ex) {
+            // expected
+        }
+    }
+}
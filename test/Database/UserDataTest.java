@@ -98,4 +98,22 @@ public class UserDataTest extends TestCase {
         assertEquals(bestJobInTheWorld.getVersion(), 4);
         // Sorry Ben, it was a good run
     }  
-}
\ No newline at end of file
+
+    /**
+     * Test of getField and setField methods, of class UserData.
+     */
+    public void testGetSetField() {
+        System.out.println("getSetField");
+        assertEquals(job_title, bestJobInTheWorld.getField(UserData.FieldType.job_title));
+        bestJobInTheWorld.setField(UserData.FieldType.industry, worstIndustry);
+        assertEquals(worstIndustry, bestJobInTheWorld.getIndustry());
+        assertEquals("2", bestJobInTheWorld.getField(UserData.FieldType.version));
+
+        try {
+            bestJobInTheWorld.setField(UserData.FieldType.version, "7");
+            fail("Set the version directly");
+        } catch (IllegalArgumentException ex) {
+            // expected
+        }
+    }
+}
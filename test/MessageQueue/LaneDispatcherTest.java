@@ -0,0 +1,78 @@
+package MessageQueue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Rob Fusco
+ */
+public class LaneDispatcherTest extends TestCase {
+
+    /**
+     * Test of dispatch method, of class LaneDispatcher.
+     * Every message is handled once, messages of a user in order and always
+     * on the same thread.
+     *
+     * @throws java.lang.Exception
+     */
+    public void testDispatchKeepsUserOrder() throws Exception {
+        System.out.println("dispatchKeepsUserOrder");
+        final int users = 50;
+        final int messages = 200;
+        Map<Integer, List<Integer>> seen = new HashMap<>();
+        Map<Integer, Set<String>> threads = new HashMap<>();
+        for (int user_id = 0; user_id < users; user_id++) {
+            seen.put(user_id, Collections.synchronizedList(new ArrayList<>()));
+            threads.put(user_id, Collections.synchronizedSet(new HashSet<>()));
+        }
+
+        LaneDispatcher dispatcher = new LaneDispatcher((user_id, delta) -> {
+            seen.get(user_id).add(Integer.parseInt(delta));
+            threads.get(user_id).add(Thread.currentThread().getName());
+        }, 4, 8);
+        for (int i = 0; i < messages; i++) {
+            for (int user_id = 0; user_id < users; user_id++) {
+                dispatcher.dispatch(user_id, Integer.toString(i));
+            }
+        }
+        dispatcher.close();
+
+        for (int user_id = 0; user_id < users; user_id++) {
+            List<Integer> order = seen.get(user_id);
+            assertEquals(messages, order.size());
+            for (int i = 0; i < messages; i++) {
+                assertEquals(i, order.get(i).intValue());
+            }
+            assertEquals(1, threads.get(user_id).size());
+        }
+
+        try {
+            dispatcher.dispatch(0, "0");
+            fail("Dispatched after close");
+        } catch (IllegalStateException ex) {
+            // expected
+        }
+    }
+
+    /**
+     * Test of lane method, of class LaneDispatcher.
+     * Consecutive user_ids are spread over all lanes.
+     */
+    public void testLaneSpreadsUsers() {
+        System.out.println("laneSpreadsUsers");
+        int[] counts = new int[8];
+        for (int user_id = -1000; user_id < 1000; user_id++) {
+            counts[LaneDispatcher.lane(user_id, counts.length)]++;
+        }
+        for (int count : counts) {
+            assertTrue(count > 150);
+        }
+    }
+}
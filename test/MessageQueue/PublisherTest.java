@@ -0,0 +1,96 @@
+package MessageQueue;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Rob Fusco
+ */
+public class PublisherTest extends TestCase {
+
+    /**
+     * Channel standing in for the broker's: counts publishes, and nacks the
+     * next wait for confirms if told to, closing itself like the broker does.
+     */
+    private static class FakeChannel {
+
+        boolean open = true;
+        boolean nack = false;
+        int published = 0;
+
+        Channel proxy() {
+            return (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(), new Class<?>[]{Channel.class},
+                    (p, method, args) -> {
+                        switch (method.getName()) {
+                            case "isOpen":
+                                return open;
+                            case "basicPublish":
+                                if (!open) {
+                                    throw new IOException("Channel is closed");
+                                }
+                                published++;
+                                return null;
+                            case "waitForConfirmsOrDie":
+                                if (nack) {
+                                    open = false;
+                                    throw new IOException("nacks received");
+                                }
+                                return null;
+                            case "close":
+                                open = false;
+                                return null;
+                            default:
+                                return null;
+                        }
+                    });
+        }
+    }
+
+    private static Connection connection(List<FakeChannel> channels) {
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class},
+                (p, method, args) -> {
+                    if (method.getName().equals("createChannel")) {
+                        FakeChannel channel = new FakeChannel();
+                        channels.add(channel);
+                        return channel.proxy();
+                    }
+                    return null;
+                });
+    }
+
+    /**
+     * Test of send method, of class Publisher.
+     * A nacked confirm fails the send that waited for it and closes its
+     * channel, the next send gets a new channel instead of the closed one.
+     *
+     * @throws java.lang.Exception
+     */
+    public void testFailedConfirmReplacesChannel() throws Exception {
+        System.out.println("failedConfirmReplacesChannel");
+        List<FakeChannel> channels = new ArrayList<>();
+        Publisher publisher = new Publisher(connection(channels), "queue", 1, true, 1);
+        assertEquals(1, channels.size());
+
+        channels.get(0).nack = true;
+        try {
+            publisher.send(1, "{}");
+            fail("Send succeeded with a nacked confirm");
+        } catch (IOException ex) {
+            // expected
+        }
+        assertFalse(channels.get(0).open);
+
+        publisher.send(2, "{}");
+        publisher.sendBatch(Arrays.asList(new MessageQueueMock.Update(3, "{}")));
+        assertEquals(2, channels.size());
+        assertEquals(2, channels.get(1).published);
+        publisher.close();
+    }
+}
@@ -0,0 +1,253 @@
+package MessageQueue;
+
+import MessageQueue.MessageQueueMock.Update;
+import MessageQueue.RingBufferTransport.ProducerType;
+import MessageQueue.RingBufferTransport.WaitStrategy;
+import MessageQueue.Transport.Receiver;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Rob Fusco
+ */
+public class RingBufferTransportTest extends TestCase {
+
+    /**
+     * Test of send and next, of class RingBufferTransport.
+     * A single sender pushes many times the capacity through a small ring,
+     * waiting for room, and every message arrives once and in order.
+     *
+     * @throws java.lang.Exception
+     */
+    public void testSingleProducerWrapsInOrder() throws Exception {
+        System.out.println("singleProducerWrapsInOrder");
+        for (WaitStrategy wait : WaitStrategy.values()) {
+            RingBufferTransport transport = new RingBufferTransport(8, ProducerType.SINGLE, wait);
+            final int messages = 1000;
+            Thread sender = new Thread(() -> {
+                try {
+                    for (int i = 0; i < messages; i++) {
+                        transport.send(i, Integer.toString(i));
+                    }
+                } catch (Exception ex) {
+                    throw new RuntimeException(ex);
+                } finally {
+                    transport.close();
+                }
+            });
+            sender.start();
+
+            int received = 0;
+            try (Receiver receiver = transport.receiver(true, 0)) {
+                Update update;
+                while ((update = receiver.next(-1)) != null) {
+                    assertEquals(received, update.getUserId());
+                    assertEquals(Integer.toString(received), update.getDelta());
+                    received++;
+                }
+            }
+            sender.join();
+            assertEquals(wait.toString(), messages, received);
+        }
+    }
+
+    /**
+     * Test of send, of class RingBufferTransport.
+     * Several senders at once, every message arrives once and the messages of
+     * each sender in the order it sent them.
+     *
+     * @throws java.lang.Exception
+     */
+    public void testMultiProducer() throws Exception {
+        System.out.println("multiProducer");
+        for (WaitStrategy wait : WaitStrategy.values()) {
+            RingBufferTransport transport = new RingBufferTransport(16, ProducerType.MULTI, wait);
+            final int senders = 4;
+            final int messages = 2000;
+            List<Thread> threads = new ArrayList<>();
+            for (int s = 0; s < senders; s++) {
+                final int user_id = s;
+                Thread sender = new Thread(() -> {
+                    try {
+                        for (int i = 0; i < messages; i++) {
+                            transport.send(user_id, Integer.toString(i));
+                        }
+                    } catch (Exception ex) {
+                        throw new RuntimeException(ex);
+                    }
+                });
+                threads.add(sender);
+                sender.start();
+            }
+            Thread closer = new Thread(() -> {
+                for (Thread sender : threads) {
+                    try {
+                        sender.join();
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                }
+                transport.close();
+            });
+            closer.start();
+
+            int[] next = new int[senders];
+            try (Receiver receiver = transport.receiver(true, 0)) {
+                Update update;
+                while ((update = receiver.next(-1)) != null) {
+                    assertEquals(next[update.getUserId()]++, Integer.parseInt(update.getDelta()));
+                }
+            }
+            closer.join();
+            for (int s = 0; s < senders; s++) {
+                assertEquals(wait.toString(), messages, next[s]);
+            }
+        }
+    }
+
+    /**
+     * Test of ack and requeue, of class RingBufferTransport.Receiver.
+     * Requeued messages are handed out again, acknowledged ones are not, and
+     * a batch of sends is received in order.
+     *
+     * @throws java.lang.Exception
+     */
+    public void testAckAndRequeue() throws Exception {
+        System.out.println("ackAndRequeue");
+        RingBufferTransport transport = new RingBufferTransport();
+        transport.sendBatch(Arrays.asList(new Update(1, "a"), new Update(2, "b"), new Update(3, "c")));
+
+        try (Receiver receiver = transport.receiver(false, 0)) {
+            assertEquals(1, receiver.next(0).getUserId());
+            receiver.ack();
+            assertEquals(2, receiver.next(0).getUserId());
+            assertEquals(3, receiver.next(0).getUserId());
+            receiver.requeue();
+            assertEquals(2, receiver.next(0).getUserId());
+            assertEquals(3, receiver.next(0).getUserId());
+            assertNull(receiver.next(10));
+        }
+
+        // Unacknowledged messages go to the next receiver
+        try (Receiver receiver = transport.receiver(false, 0)) {
+            assertEquals("b", receiver.next(0).getDelta());
+            try {
+                transport.receiver(false, 0);
+                fail("Opened a second receiver");
+            } catch (IllegalStateException ex) {
+                // expected
+            }
+        }
+
+        transport.close();
+        try {
+            transport.send(4, "d");
+            fail("Sent after close");
+        } catch (IOException ex) {
+            // expected
+        }
+    }
+
+    /**
+     * Test of close, of class RingBufferTransport.
+     * A receiver waiting for messages returns null once the transport is
+     * closed.
+     *
+     * @throws java.lang.Exception
+     */
+    public void testCloseWakesReceiver() throws Exception {
+        System.out.println("closeWakesReceiver");
+        RingBufferTransport transport = new RingBufferTransport();
+        Update[] received = {new Update(0, "not yet")};
+        Thread thread = new Thread(() -> {
+            try (Receiver receiver = transport.receiver(true, 0)) {
+                received[0] = receiver.next(-1);
+            } catch (Exception ex) {
+                throw new RuntimeException(ex);
+            }
+        });
+        thread.start();
+        Thread.sleep(50);
+        transport.close();
+        thread.join(5000);
+        assertFalse(thread.isAlive());
+        assertNull(received[0]);
+    }
+
+    /**
+     * Test of close, of class RingBufferTransport.
+     * Senders racing close: every send that returned is received, including
+     * one that claimed its sequence just before close, and sends that failed
+     * waiting for room do not hold the receiver up.
+     *
+     * @throws java.lang.Exception
+     */
+    public void testCloseRacingSenders() throws Exception {
+        System.out.println("closeRacingSenders");
+        closeRacingSenders(ProducerType.MULTI, 4);
+    }
+
+    /**
+     * Test of close, of class RingBufferTransport.
+     * The single sender racing close: its send that claimed a sequence just
+     * before close is received too, not dropped by a receiver that saw close
+     * first.
+     *
+     * @throws java.lang.Exception
+     */
+    public void testCloseRacingSingleSender() throws Exception {
+        System.out.println("closeRacingSingleSender");
+        closeRacingSenders(ProducerType.SINGLE, 1);
+    }
+
+    private static void closeRacingSenders(ProducerType producerType, int senders) throws Exception {
+        for (WaitStrategy wait : WaitStrategy.values()) {
+            RingBufferTransport transport = new RingBufferTransport(4, producerType, wait);
+            int[] sent = new int[senders];
+            List<Thread> threads = new ArrayList<>();
+            for (int s = 0; s < senders; s++) {
+                final int user_id = s;
+                Thread sender = new Thread(() -> {
+                    try {
+                        while (true) {
+                            transport.send(user_id, Integer.toString(sent[user_id]));
+                            sent[user_id]++;
+                        }
+                    } catch (IOException ex) {
+                        // closed
+                    }
+                });
+                threads.add(sender);
+                sender.start();
+            }
+            Thread closer = new Thread(() -> {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException ex) {
+                    // close now
+                }
+                transport.close();
+            });
+            closer.start();
+
+            int[] received = new int[senders];
+            try (Receiver receiver = transport.receiver(true, 0)) {
+                Update update;
+                while ((update = receiver.next(-1)) != null) {
+                    assertEquals(received[update.getUserId()]++, Integer.parseInt(update.getDelta()));
+                }
+            }
+            closer.join();
+            for (Thread sender : threads) {
+                sender.join();
+            }
+            for (int s = 0; s < senders; s++) {
+                assertEquals(wait.toString(), sent[s], received[s]);
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package Metrics;
+
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Rob Fusco
+ */
+public class HistogramTest extends TestCase {
+
+    /**
+     * Test of index and upperBound, of class Histogram.
+     * Buckets are contiguous and each value falls in the bucket whose bounds
+     * hold it, with at most 12.5% between a value and its bucket's top.
+     */
+    public void testBuckets() {
+        System.out.println("buckets");
+        long previousUpper = -1;
+        for (int index = 0; index <= Histogram.index(Long.MAX_VALUE); index++) {
+            long upper = Histogram.upperBound(index);
+            assertEquals(index, Histogram.index(previousUpper + 1));
+            assertEquals(index, Histogram.index(upper));
+            assertTrue(upper - (previousUpper + 1) <= Math.max(0, (previousUpper + 1) / 8));
+            previousUpper = upper;
+        }
+        assertEquals(Long.MAX_VALUE, previousUpper);
+    }
+
+    /**
+     * Test of getPercentile, of class Histogram.
+     */
+    public void testPercentiles() {
+        System.out.println("percentiles");
+        Histogram histogram = new Histogram();
+        assertEquals(0, histogram.getPercentile(99));
+        for (int value = 1; value <= 1000; value++) {
+            histogram.record(value);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500.5, histogram.getMean(), 1e-9);
+        assertEquals(1000, histogram.getMax());
+        assertWithin(500, histogram.getPercentile(50));
+        assertWithin(990, histogram.getPercentile(99));
+        assertEquals(1000, histogram.getPercentile(100));
+
+        histogram.record(-5);
+        assertEquals(0, histogram.getPercentile(0.01));
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getPercentile(50));
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue(actual + " is not close to " + expected, actual >= expected && actual <= expected * 9 / 8);
+    }
+}
@@ -0,0 +1,77 @@
+package Metrics;
+
+import MessageQueue.MessageQueueMock;
+import MessageQueue.MessageQueueMock.Update;
+import MessageQueue.RingBufferTransport;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Rob Fusco
+ */
+public class PipelineMetricsTest extends TestCase {
+
+    /**
+     * Test of the JMX registration, of class PipelineMetrics.
+     * What is recorded can be read back as MBean attributes.
+     *
+     * @throws java.lang.Exception
+     */
+    public void testJmx() throws Exception {
+        System.out.println("jmx");
+        PipelineMetrics metrics = PipelineMetrics.get();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(PipelineMetrics.OBJECT_NAME);
+        assertTrue(server.isRegistered(name));
+
+        long stale = (Long) server.getAttribute(name, "StaleMessagesSkipped");
+        metrics.staleMessage();
+        assertEquals(stale + 1, server.getAttribute(name, "StaleMessagesSkipped"));
+
+        long commits = metrics.getFieldsMapCommits();
+        metrics.fieldsMapCommitted(3000000);
+        assertEquals(commits + 1, server.getAttribute(name, "FieldsMapCommits"));
+        assertTrue((Double) server.getAttribute(name, "CommitMillisMax") >= 3);
+
+        long inFlight = metrics.getBatchWritesInFlight();
+        metrics.batchWriteStarted();
+        assertEquals(inFlight + 1, server.getAttribute(name, "BatchWritesInFlight"));
+        metrics.batchWriteFinished(true);
+        assertEquals(inFlight, server.getAttribute(name, "BatchWritesInFlight"));
+
+        server.invoke(name, "resetHistograms", null, null);
+        assertEquals(0.0, server.getAttribute(name, "CommitMillisMax"));
+    }
+
+    /**
+     * Test of messageConsumed, of class PipelineMetrics.
+     * Messages taken off a queue are counted and their lag measured from the
+     * time they were sent.
+     *
+     * @throws java.lang.Exception
+     */
+    public void testQueueLag() throws Exception {
+        System.out.println("queueLag");
+        PipelineMetrics metrics = PipelineMetrics.get();
+        metrics.resetHistograms();
+        long consumed = metrics.getMessagesConsumed();
+
+        RingBufferTransport transport = new RingBufferTransport();
+        long sentAt = System.currentTimeMillis() - 5000;
+        transport.sendBatch(Arrays.asList(new Update(1, "{}", sentAt), new Update(2, "{}", sentAt)));
+        transport.close();
+
+        AtomicInteger received = new AtomicInteger();
+        new MessageQueueMock(transport).subscribe_to_updates((user_id, delta) -> received.incrementAndGet());
+
+        assertEquals(2, received.get());
+        assertEquals(consumed + 2, metrics.getMessagesConsumed());
+        assertTrue(metrics.getQueueLagMillis50thPercentile() >= 5000);
+        assertTrue(metrics.getQueueLagMillisMax() >= 5000);
+    }
+}